@@ -15,22 +15,62 @@
  */
 package com.thebuzzmedia.exiftool;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * Class used to provide a Java-like interface to Phil Harvey's excellent,
@@ -66,10 +106,12 @@ import java.util.regex.Pattern;
  * parsed the tag values from the file, the external process exits and this
  * class parses the result before returning it to the caller.
  * <p/>
- * Results from calls to <code>getImageMeta</code> are returned in a {@link Map}
- * with the {@link Tag} values as the keys and {@link String} values for every
- * tag that had a value in the image file as the values. {@link Tag}s with no
- * value found in the image are omitted from the result map.
+ * Results from calls to <code>getImageMeta</code> are returned in a
+ * {@link TagValueMap} with the {@link Tag} values as the keys and
+ * {@link String} values for every tag that had a value in the image file as
+ * the values. {@link Tag}s with no value found in the image are omitted from
+ * the result map. Numeric values can be read directly as primitives using
+ * {@link TagValueMap#getInt(Tag)} and {@link TagValueMap#getDouble(Tag)}.
  * <p/>
  * While each {@link Tag} provides a hint at which format the resulting value
  * for that tag is returned as from ExifTool (see {@link Tag#getType()}), that
@@ -129,8 +171,12 @@ import java.util.regex.Pattern;
  * <p/>
  * Any class activity by way of calls to <code>getImageMeta</code> will always
  * reset the inactivity timer, so in a busy system the cleanup thread could
- * potentially never run, leaving the original host ExifTool process running
- * forever (which is fine).
+ * potentially never reap a process, leaving the original host ExifTool process
+ * running forever (which is fine).
+ * <p/>
+ * A single cleanup thread is shared by all instances of this class; calls
+ * merely record the time they were made and the cleanup thread periodically
+ * checks how long every instance has been idle.
  * <p/>
  * This design was chosen to help make using the class and not introducing
  * memory leaks and bugs into your code easier as well as making very inactive
@@ -173,13 +219,41 @@ import java.util.regex.Pattern;
  * All of this effort was done to ensure that imgscalr and its supporting
  * classes continue to provide best-of-breed performance and memory utilization
  * in long running/high performance environments (e.g. web applications).
+ * <h3>Daemon Process Pooling</h3>
+ * When {@link Feature#STAY_OPEN} is enabled, each instance of this class
+ * manages a pool of daemon ExifTool processes instead of a single one. By
+ * default the pool holds at most 1 process, which matches the behavior of
+ * previous versions of this class exactly.
+ * <p/>
+ * Using the {@link #ExifTool(int, int, Feature...)} constructor, the caller
+ * can allow the pool to grow up to a maximum number of processes that will
+ * service calls in parallel (e.g. 16 daemons on a 32-core machine). Processes
+ * are only started when a call needs one and none are idle, and callers that
+ * arrive when all processes are busy are queued in a first-come-first-served
+ * order until one is returned to the pool.
+ * <p/>
+ * If a process does not become available within
+ * {@link #POOL_CHECKOUT_TIMEOUT} milliseconds, the waiting call fails with an
+ * {@link InterruptedIOException}.
+ * <p/>
+ * Once the pool is at its maximum size, commands can also be pipelined onto
+ * busy processes (see {@link #PIPELINE_DEPTH}) so that every process always
+ * has its next command waiting for it.
+ * <p/>
+ * The minimum pool size is the number of idle processes the automatic cleanup
+ * thread leaves running after a period of inactivity (see
+ * {@link #PROCESS_CLEANUP_DELAY}); calling {@link #close()} always shuts down
+ * every process.
  * <h3>Thread Safety</h3>
- * Instances of this class are <strong>not</strong> Thread-safe. Both the
- * instance of this class and external ExifTool process maintain state specific
- * to the current operation. Use of instances of this class need to be
- * synchronized using an external mechanism or in a highly threaded environment
- * (e.g. web application), instances of this class can be used along with
- * {@link ThreadLocal}s to ensure Thread-safe, highly parallel use.
+ * Instances of this class are Thread-safe. All per-call state (process
+ * arguments, result maps, etc.) is kept local to the call and every command
+ * sent to a daemon ExifTool process is tagged with a unique number that its
+ * response is matched back to, so concurrent callers never see each other's
+ * results.
+ * <p/>
+ * A single instance created with {@link Feature#STAY_OPEN} and a maximum pool
+ * size greater than 1 is the recommended way to share ExifTool across all the
+ * threads of a highly threaded environment (e.g. web application).
  * <h3>Why ExifTool?</h3>
  * <a href="http://www.sno.phy.queensu.ca/~phil/exiftool">ExifTool</a> is
  * written in Perl and requires an external process call from Java to make use
@@ -270,11 +344,12 @@ public class ExifTool {
 	 * used to communicate with it when the {@link Feature#STAY_OPEN} feature is
 	 * used.
 	 * <p/>
-	 * Ever time a call to <code>getImageMeta</code> is processed, the timer
-	 * keeping track of cleanup is reset; more specifically, this class has to
+	 * Ever time a call to <code>getImageMeta</code> is processed, the time of
+	 * the last activity is recorded; more specifically, this class has to
 	 * experience no activity for this duration of time before the cleanup
-	 * process is fired up and cleans up the host OS process and the stream
-	 * resources.
+	 * thread cleans up the host OS process and the stream resources. The
+	 * cleanup thread checks for idle instances 4 times per interval, so
+	 * processes are reaped between 1 and 1.25 intervals after their last use.
 	 * <p/>
 	 * Any subsequent calls to <code>getImageMeta</code> after a cleanup simply
 	 * re-initializes the resources.
@@ -295,7 +370,215 @@ public class ExifTool {
 			"exiftool.processCleanupDelay", 600000);
 
 	/**
-	 * Name used to identify the (optional) cleanup {@link Thread}.
+	 * Maximum amount of time (in milliseconds) a call will wait for a daemon
+	 * ExifTool process to become available from the pool when all of the
+	 * processes are busy servicing other calls and the pool cannot grow any
+	 * further.
+	 * <p/>
+	 * Waiting callers are serviced in the order they arrived. If no process
+	 * becomes available within this interval, the call fails with an
+	 * {@link InterruptedIOException}.
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.poolCheckoutTimeout=30000
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Setting this value to 0 makes callers wait indefinitely for a process.
+	 * <p/>
+	 * Default value is <code>0</code> (wait indefinitely).
+	 */
+	public static final long POOL_CHECKOUT_TIMEOUT = Long.getLong(
+			"exiftool.poolCheckoutTimeout", 0);
+
+	/**
+	 * Maximum number of commands that are written ahead to a single daemon
+	 * ExifTool process before the responses to the earlier ones have been
+	 * read.
+	 * <p/>
+	 * Every command sent to a daemon process is terminated with a numbered
+	 * <code>-executeNNN</code> argument and ExifTool terminates the matching
+	 * response with a <code>{readyNNN}</code> line, which allows the responses
+	 * to be matched back to the callers waiting on them. With a depth greater
+	 * than 1, the next command is already waiting in ExifTool's input while
+	 * the current one executes so the process never sits idle while Java
+	 * prepares the next request, which raises the throughput of a single
+	 * process (most noticeably on slow disks).
+	 * <p/>
+	 * Commands are only pipelined onto a busy process once the pool has
+	 * reached its maximum size (see {@link #ExifTool(int, int, Feature...)}),
+	 * running them in parallel on separate processes is always preferred.
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.pipelineDepth=4
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Values less than 1 are treated as 1.
+	 * <p/>
+	 * Default value is <code>1</code> (no pipelining).
+	 */
+	public static final int PIPELINE_DEPTH = Math.max(1,
+			Integer.getInteger("exiftool.pipelineDepth", 1));
+
+	/**
+	 * Flag used to have instances with {@link Feature#STAY_OPEN} enabled start
+	 * their minimum number of daemon ExifTool processes (at least 1, see
+	 * {@link #ExifTool(int, int, Feature...)}) in the background as soon as
+	 * they are created and keep them running.
+	 * <p/>
+	 * Without it, the first call to an instance (and the first call after the
+	 * cleanup thread reaped all of its processes) waits for Perl and ExifTool
+	 * to start up, which typically takes several hundred milliseconds. With
+	 * it, that cost is paid up front and a process that exits unexpectedly is
+	 * replaced in the background right away, instead of by the next call that
+	 * needs it. The cleanup thread never reaps the minimum number of
+	 * processes.
+	 * <p/>
+	 * Processes are not restarted after {@link #close()} until the next call.
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.prewarm=true
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Default value is <code>false</code>.
+	 */
+	public static final boolean PREWARM = Boolean.getBoolean("exiftool.prewarm");
+
+	/**
+	 * Maximum number of times a command is retried on another daemon ExifTool
+	 * process when the process running it dies (e.g. it was killed, ran out
+	 * of memory or crashed on a bad file) before it returned a complete
+	 * response.
+	 * <p/>
+	 * The dead process is always removed from the pool and replaced by a new
+	 * one when needed; retried calls simply take longer, they never see the
+	 * failure. Once a command has been retried this many times the call fails
+	 * with an {@link IOException}, so a file that reliably crashes ExifTool
+	 * cannot keep killing processes.
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.maxRetries=2
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Setting this value to 0 disables retrying.
+	 * <p/>
+	 * Default value is <code>1</code>.
+	 */
+	public static final int MAX_RETRIES = Math.max(0,
+			Integer.getInteger("exiftool.maxRetries", 1));
+
+	/**
+	 * Default maximum number of milliseconds a single call is allowed to take
+	 * before it is aborted with a {@link CommandTimeoutException}.
+	 * <p/>
+	 * A corrupt or very large file or a stalled network file system can make
+	 * ExifTool block indefinitely, and any call waiting on its response would
+	 * block with it. When a call times out, the ExifTool process running it
+	 * is killed (and, in daemon mode, replaced the next time a process is
+	 * needed) so one pathological file cannot hold on to a process, or the
+	 * threads waiting on it, forever.
+	 * <p/>
+	 * The timeout covers the entire call, including the time spent waiting
+	 * for a daemon process to become available. Reads can override it per
+	 * call using {@link Query#withTimeout(long)}.
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.timeout=30000
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Setting this value to 0 disables the timeout.
+	 * <p/>
+	 * Default value is <code>0</code>.
+	 */
+	public static final long TIMEOUT = Math.max(0,
+			Long.getLong("exiftool.timeout", 0));
+
+	/**
+	 * Maximum number of commands a single daemon ExifTool process runs before
+	 * it is recycled: a replacement process is started in the background and
+	 * the old process is shut down, after finishing the commands already
+	 * handed to it, once the replacement is ready to take over. No call ever
+	 * waits on the replacement starting up.
+	 * <p/>
+	 * Over millions of calls the memory used by a long-running Perl process
+	 * slowly grows; recycling processes keeps it bounded without relying on
+	 * the pool going idle long enough for the cleanup thread to reap them
+	 * (see {@link #PROCESS_CLEANUP_DELAY}). Also see
+	 * {@link #MAX_PROCESS_AGE} and {@link #MAX_PROCESS_MEMORY}.
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.maxProcessRequests=100000
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Setting this value to 0 disables recycling by number of commands.
+	 * <p/>
+	 * Default value is <code>0</code>.
+	 */
+	public static final int MAX_PROCESS_REQUESTS = Math.max(0,
+			Integer.getInteger("exiftool.maxProcessRequests", 0));
+
+	/**
+	 * Maximum age (in milliseconds) of a daemon ExifTool process before it is
+	 * recycled the same way as after {@link #MAX_PROCESS_REQUESTS} commands.
+	 * <p/>
+	 * The age is checked every time the process completes a command, so a
+	 * process that sits idle past this age is recycled after its next
+	 * command (or reaped by the cleanup thread first).
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.maxProcessAge=3600000
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Setting this value to 0 disables recycling by age.
+	 * <p/>
+	 * Default value is <code>0</code>.
+	 */
+	public static final long MAX_PROCESS_AGE = Math.max(0,
+			Long.getLong("exiftool.maxProcessAge", 0));
+
+	/**
+	 * Maximum resident memory (in kilobytes) of a daemon ExifTool process
+	 * before it is recycled the same way as after
+	 * {@link #MAX_PROCESS_REQUESTS} commands.
+	 * <p/>
+	 * The resident set size is read from the <code>VmRSS</code> line of
+	 * <code>/proc/&lt;pid&gt;/status</code> at most once per second while the
+	 * process is completing commands, which is only possible on Linux (and
+	 * compatible systems) for the process this class started; if
+	 * {@link #EXIF_TOOL_PATH} points to a wrapper script, it must
+	 * <code>exec</code> ExifTool for the right process to be measured. On
+	 * other systems this setting has no effect.
+	 * <p/>
+	 * This system property can be set on startup with:<br/>
+	 * <code>
+	 * -Dexiftool.maxProcessMemory=262144
+	 * </code> or by calling {@link System#setProperty(String, String)} before
+	 * this class is loaded.
+	 * <p/>
+	 * Setting this value to 0 disables recycling by memory use.
+	 * <p/>
+	 * Default value is <code>0</code>.
+	 */
+	public static final long MAX_PROCESS_MEMORY = Math.max(0,
+			Long.getLong("exiftool.maxProcessMemory", 0));
+
+	/**
+	 * Name used to identify the (optional) cleanup {@link Thread}, shared by
+	 * all instances of this class, which also enforces call timeouts and
+	 * drains the standard error streams of the ExifTool processes.
 	 * <p/>
 	 * This is only provided to make debugging and profiling easier for
 	 * implementors making use of this class such that the resources this class
@@ -305,12 +588,60 @@ public class ExifTool {
 	 */
 	protected static final String CLEANUP_THREAD_NAME = "ExifTool Cleanup Thread";
 
+	/**
+	 * Name prefix used to identify the reader and writer {@link Thread}s every
+	 * daemon ExifTool process uses to communicate with the process.
+	 * <p/>
+	 * Default value is "<code>ExifTool Daemon</code>".
+	 */
+	protected static final String DAEMON_THREAD_NAME = "ExifTool Daemon";
+
+	/**
+	 * Maximum number of warning and error messages kept for a single call;
+	 * further messages are dropped so a file that makes ExifTool print a
+	 * message per byte cannot exhaust the heap.
+	 */
+	private static final int MAX_MESSAGES = 1000;
+
+	/**
+	 * Maximum number of images written by a single ExifTool command when the
+	 * same tag values are written to many images; larger groups are split up
+	 * so a single command never runs for too long and the batches can be
+	 * spread over several daemon processes.
+	 */
+	private static final int MAX_WRITE_BATCH_SIZE = 100;
+
 	/**
 	 * Compiled {@link Pattern} of ": " used to split compact output from
 	 * ExifTool evenly into name/value pairs.
 	 */
 	protected static final Pattern TAG_VALUE_PATTERN = Pattern.compile(": ");
 
+	/**
+	 * Compiled {@link Pattern} of "." used to split version numbers reported
+	 * by ExifTool into their numeric parts.
+	 */
+	protected static final Pattern VERSION_SEPARATOR_PATTERN = Pattern
+			.compile("\\.");
+
+	/**
+	 * Prefix of the header line ExifTool prints before the output for each
+	 * image when a single command processes more than one image.
+	 */
+	protected static final String FILE_HEADER_PREFIX = "======== ";
+
+	/**
+	 * Prefix of the line a daemon ExifTool process terminates the response to
+	 * every command with (e.g. "<code>{ready12}</code>").
+	 */
+	protected static final String READY_PREFIX = "{ready";
+
+	/**
+	 * Name of the character set ExifTool encodes the values it prints with by
+	 * default.
+	 */
+	protected static final String OUTPUT_CHARSET = "UTF-8";
+
 	/**
 	 * Map shared across all instances of this class that maintains the state of
 	 * {@link Feature}s and if they are supported or not (supported=true,
@@ -330,6 +661,20 @@ public class ExifTool {
 	 */
 	protected static final Map<Feature, Boolean> FEATURE_SUPPORT_MAP = new HashMap<ExifTool.Feature, Boolean>();
 
+	/**
+	 * Version of ExifTool from which on the <code>-echo2</code> option is used
+	 * to mark the messages of pipelined commands (see
+	 * {@link #PIPELINE_DEPTH}).
+	 * <p/>
+	 * The option is older than this version, but an ExifTool that does not
+	 * know it reads the option as a file name, so only versions that certainly
+	 * have it are trusted with it.
+	 */
+	private static final String ECHO_VERSION = "10.00";
+
+	// Guarded by ExifTool.class.
+	private static Boolean echoSupported;
+
 	/**
 	 * Static list of args used to execute ExifTool using the '-ver' flag in
 	 * order to get it to print out its version number. Used by the
@@ -342,9 +687,24 @@ public class ExifTool {
 	private static final List<String> VERIFY_FEATURE_ARGS = new ArrayList<String>(
 			2);
 
+	/**
+	 * Static list of args used to launch a daemon ExifTool process that reads
+	 * its commands from stdin (<code>-stay_open True -@ -</code>).
+	 * <p/>
+	 * Defined here as a <code>static final</code> list because it is used every
+	 * time a pooled process is started and never changes.
+	 */
+	private static final List<String> STAY_OPEN_ARGS = new ArrayList<String>(5);
+
 	static {
 		VERIFY_FEATURE_ARGS.add(EXIF_TOOL_PATH);
 		VERIFY_FEATURE_ARGS.add("-ver");
+
+		STAY_OPEN_ARGS.add(EXIF_TOOL_PATH);
+		STAY_OPEN_ARGS.add("-stay_open");
+		STAY_OPEN_ARGS.add("True");
+		STAY_OPEN_ARGS.add("-@");
+		STAY_OPEN_ARGS.add("-");
 	}
 
 	/**
@@ -454,45 +814,16 @@ public class ExifTool {
 				features.length);
 
 		for (int i = 0; i < features.length; i++) {
-			String ver = null;
 			Boolean supported;
 			Feature feature = features[i];
 
 			log("\t\tChecking feature %s for support, requires ExifTool version %s or higher...",
 					feature, feature.version);
 
-			// Execute 'exiftool -ver'
-			IOStream streams = startExifToolProcess(VERIFY_FEATURE_ARGS);
-
-			try {
-				// Read the single-line reply (version number)
-				ver = streams.reader.readLine();
-
-				// Close r/w streams to exited process.
-				streams.close();
-			} catch (Exception e) {
-				/*
-				 * no-op, while it is important to know that we COULD launch the
-				 * ExifTool process (i.e. startExifToolProcess call worked) but
-				 * couldn't communicate with it, the context with which this
-				 * method is called is from the constructor of this class which
-				 * would just wrap this exception and discard it anyway if it
-				 * failed.
-				 * 
-				 * the caller will realize there is something wrong with the
-				 * ExifTool process communication as soon as they make their
-				 * first call to getImageMeta in which case whatever was causing
-				 * the exception here will popup there and then need to be
-				 * corrected.
-				 * 
-				 * This is an edge case that should only happen in really rare
-				 * scenarios, so making this method easier to use is more
-				 * important that robust IOException handling right here.
-				 */
-			}
+			String ver = readVersion();
 
 			// Ensure the version found is >= the required version.
-			if (ver != null && ver.compareTo(feature.version) >= 0) {
+			if (ver != null && compareVersions(ver, feature.version) >= 0) {
 				supported = Boolean.TRUE;
 				log("\t\tFound ExifTool version %s, feature %s is SUPPORTED.",
 						ver, feature);
@@ -507,6 +838,116 @@ public class ExifTool {
 		}
 	}
 
+	/**
+	 * Used to run "<code>exiftool -ver</code>" to get the version of the
+	 * installed ExifTool.
+	 * 
+	 * @return the version or <code>null</code> if it could not be read.
+	 * 
+	 * @throws RuntimeException
+	 *             if any exception occurs starting the external ExifTool
+	 *             process.
+	 */
+	private static String readVersion() throws RuntimeException {
+		String ver = null;
+
+		// Execute 'exiftool -ver'
+		IOStream streams = startExifToolProcess(VERIFY_FEATURE_ARGS);
+
+		try {
+			// Read the single-line reply (version number)
+			if (streams.reader.nextLine())
+				ver = streams.reader.toString();
+
+			// Close r/w streams to exited process.
+			streams.close();
+		} catch (Exception e) {
+			/*
+			 * no-op, while it is important to know that we COULD launch the
+			 * ExifTool process (i.e. startExifToolProcess call worked) but
+			 * couldn't communicate with it, the context with which this
+			 * method is called is from the constructor of this class which
+			 * would just wrap this exception and discard it anyway if it
+			 * failed.
+			 * 
+			 * the caller will realize there is something wrong with the
+			 * ExifTool process communication as soon as they make their
+			 * first call to getImageMeta in which case whatever was causing
+			 * the exception here will popup there and then need to be
+			 * corrected.
+			 * 
+			 * This is an edge case that should only happen in really rare
+			 * scenarios, so making this method easier to use is more
+			 * important that robust IOException handling right here.
+			 */
+		}
+
+		return ver;
+	}
+
+	/**
+	 * Used to determine if the installed ExifTool supports the
+	 * <code>-echo2</code> option (see {@link #ECHO_VERSION}), which is only
+	 * checked once per JVM session.
+	 */
+	static synchronized boolean isEchoSupported() throws RuntimeException {
+		if (echoSupported == null) {
+			String ver = readVersion();
+
+			echoSupported = Boolean.valueOf(ver != null
+					&& compareVersions(ver, ECHO_VERSION) >= 0);
+			log("\tFound ExifTool version %s, -echo2 markers are %s.", ver,
+					(echoSupported.booleanValue() ? "SUPPORTED"
+							: "NOT SUPPORTED"));
+		}
+
+		return echoSupported.booleanValue();
+	}
+
+	/**
+	 * Used to compare two ExifTool version numbers (e.g. "8.36" and "10.02")
+	 * numerically, part by part, instead of lexicographically where "10.02"
+	 * would incorrectly sort before "8.36".
+	 * 
+	 * @return a negative number, zero or a positive number if
+	 *         <code>version1</code> is lower than, equal to or higher than
+	 *         <code>version2</code> respectively.
+	 */
+	protected static int compareVersions(String version1, String version2) {
+		String[] parts1 = VERSION_SEPARATOR_PATTERN.split(version1.trim());
+		String[] parts2 = VERSION_SEPARATOR_PATTERN.split(version2.trim());
+
+		for (int i = 0, length = Math.max(parts1.length, parts2.length); i < length; i++) {
+			int part1 = (i < parts1.length ? parseVersionPart(parts1[i]) : 0);
+			int part2 = (i < parts2.length ? parseVersionPart(parts2[i]) : 0);
+
+			if (part1 != part2)
+				return (part1 < part2 ? -1 : 1);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @return the value of the leading digits of the given version part,
+	 *         ignoring any trailing qualifier, or <code>0</code> if there are
+	 *         none.
+	 */
+	private static int parseVersionPart(String part) {
+		int value = 0;
+
+		for (int i = 0, length = part.length(); i < length; i++) {
+			char c = part.charAt(i);
+
+			if (c < '0' || c > '9')
+				break;
+
+			value = value * 10 + (c - '0');
+		}
+
+		return value;
+	}
+
 	protected static IOStream startExifToolProcess(List<String> args)
 			throws RuntimeException {
 		Process proc = null;
@@ -532,9 +973,15 @@ public class ExifTool {
 		log("\tSetting up Read/Write streams to the external ExifTool process...");
 
 		// Setup read/write streams to the new process.
-		streams = new IOStream(new BufferedReader(new InputStreamReader(
-				proc.getInputStream())), new OutputStreamWriter(
-				proc.getOutputStream()));
+		streams = new IOStream(proc, new LineReader(proc.getInputStream()),
+				new BufferedOutputStream(proc.getOutputStream()),
+				new ErrorReader(proc.getErrorStream()));
+
+		/*
+		 * Always drain stderr, otherwise a process printing enough warnings to
+		 * fill the pipe blocks forever, and so does anyone waiting on it.
+		 */
+		streams.errors.start();
 
 		log("\t\tSuccessful, returning streams to caller.");
 		return streams;
@@ -553,12 +1000,17 @@ public class ExifTool {
 	 * @since 1.1
 	 */
 	private static class IOStream {
-		BufferedReader reader;
-		OutputStreamWriter writer;
-
-		public IOStream(BufferedReader reader, OutputStreamWriter writer) {
+		Process process;
+		LineReader reader;
+		OutputStream writer;
+		ErrorReader errors;
+
+		public IOStream(Process process, LineReader reader,
+				OutputStream writer, ErrorReader errors) {
+			this.process = process;
 			this.reader = reader;
 			this.writer = writer;
+			this.errors = errors;
 		}
 
 		public void close() {
@@ -578,6 +1030,8 @@ public class ExifTool {
 				// no-op, just try to close it.
 			}
 
+			errors.close();
+
 			// Null the stream references.
 			reader = null;
 			writer = null;
@@ -587,842 +1041,8116 @@ public class ExifTool {
 	}
 
 	/**
-	 * Enum used to define the different kinds of features in the native
-	 * ExifTool executable that this class can help you take advantage of.
-	 * <p/>
-	 * These flags are different from {@link Tag}s in that a "feature" is
-	 * determined to be a special functionality of the underlying ExifTool
-	 * executable that requires a different code-path in this class to take
-	 * advantage of; for example, <code>-stay_open True</code> support.
+	 * Class used to enforce the timeout of a call made with a non-daemon
+	 * ExifTool process, by killing the process if it is still running when
+	 * the timeout expires; this ends its output so the thread reading it
+	 * stops waiting.
 	 * 
-	 * @author Riyad Kalla (software@thebuzzmedia.com)
-	 * @since 1.1
+	 * @since 1.2
 	 */
-	public enum Feature {
-		/**
-		 * Enum used to specify that you wish to launch the underlying ExifTool
-		 * process with <code>-stay_open True</code> support turned on that this
-		 * class can then take advantage of.
-		 * <p/>
-		 * Required ExifTool version is <code>8.36</code> or higher.
-		 */
-		STAY_OPEN("8.36");
+	private static class ProcessWatchdog implements Runnable {
+		private final Process process;
+		private final long timeout;
+		private final Future<?> task;
+
+		private volatile boolean fired;
 
 		/**
-		 * Used to get the version of ExifTool required by this feature in order
-		 * to work.
+		 * Used to start watching the process of the given streams.
 		 * 
-		 * @return the version of ExifTool required by this feature in order to
-		 *         work.
+		 * @param timeout
+		 *            The maximum number of milliseconds the process may run,
+		 *            or <code>0</code> for no limit.
+		 * 
+		 * @return the watchdog, or <code>null</code> if there is no timeout
+		 *         to enforce.
 		 */
-		public String getVersion() {
-			return version;
+		static ProcessWatchdog start(IOStream streams, long timeout) {
+			return (timeout > 0 ? new ProcessWatchdog(streams.process,
+					timeout) : null);
 		}
 
-		private String version;
+		private ProcessWatchdog(Process process, long timeout) {
+			this.process = process;
+			this.timeout = timeout;
+			this.task = CleanupTask.getExecutor().schedule(this, timeout,
+					TimeUnit.MILLISECONDS);
+		}
 
-		private Feature(String version) {
-			this.version = version;
+		public void run() {
+			fired = true;
+
+			log("\tExifTool call timed out after %d ms, killing the ExifTool process running it...",
+					timeout);
+			process.destroy();
+		}
+
+		/**
+		 * Used to stop watching the process once the call is done.
+		 * 
+		 * @throws CommandTimeoutException
+		 *             if the process was killed because the timeout expired.
+		 */
+		void stop() throws CommandTimeoutException {
+			task.cancel(false);
+
+			if (fired)
+				throw new CommandTimeoutException(timeout);
 		}
 	}
 
 	/**
-	 * Enum used to define the 2 different output formats that {@link Tag}
-	 * values can be returned in: numeric or human-readable text.
-	 * <p/>
-	 * ExifTool, via the <code>-n</code> command line arg, is capable of
-	 * returning most values in their raw numeric form (e.g.
-	 * Aperture="2.8010323841") as well as a more human-readable/friendly format
-	 * (e.g. Aperture="2.8").
-	 * <p/>
-	 * While the {@link Tag}s defined on this class do provide a hint at the
-	 * type of the result (see {@link Tag#getType()}), that hint only applies
-	 * when the {@link Format#NUMERIC} form of the value is returned.
-	 * <p/>
-	 * If the caller finds the human-readable format easier to process,
-	 * {@link Format#HUMAN_READABLE} can be specified when calling
-	 * {@link ExifTool#getImageMeta(File, Format, Tag...)} and the returned
-	 * {@link String} values processed manually by the caller.
+	 * Class used to drain the standard error stream of an ExifTool process,
+	 * collecting the warning and error messages ExifTool prints (e.g.
+	 * "<code>Warning: Bad MakerNotes directory - image.jpg</code>") until
+	 * they are taken by the call they belong to.
 	 * <p/>
-	 * In order to see the types of values that are returned when
-	 * {@link Format#HUMAN_READABLE} is used, you can check the comprehensive <a
-	 * href="http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/index.html">
-	 * ExifTool Tag Guide</a>.
+	 * The stream is never read with a blocking read: the cleanup thread polls
+	 * it every {@link #POLL_INTERVAL} milliseconds so ExifTool can never
+	 * block on a full pipe, and taking the messages first reads whatever is
+	 * available. ExifTool runs the commands of a daemon process one at a time
+	 * and prints the messages of a command before the <code>{ready}</code>
+	 * line that terminates its response, so once a response is complete all
+	 * of its messages can be read.
 	 * <p/>
-	 * This makes sense with some values like Aperture that in
-	 * {@link Format#NUMERIC} format end up returning as 14-decimal-place, high
-	 * precision values that are near the intended value (e.g.
-	 * "2.79999992203711" instead of just returning "2.8"). On the other hand,
-	 * other values (like Orientation) are easier to parse when their numeric
-	 * value (1-8) is returned instead of a much longer friendly name (e.g.
-	 * "Mirror horizontal and rotate 270 CW").
+	 * When commands are pipelined, ExifTool may already be running the next
+	 * command by then. To tell their messages apart, every command written to
+	 * a pipelining daemon process starts by printing a
+	 * <code>{errorsNNN}</code> marker line (see
+	 * {@link DaemonProcess#markMessages}); the messages that follow a marker
+	 * belong to the command with that number.
 	 * 
-	 * @author Riyad Kalla (software@thebuzzmedia.com)
-	 * @since 1.1
+	 * @since 1.2
 	 */
-	public enum Format {
-		NUMERIC, HUMAN_READABLE;
-	}
-
+	private static class ErrorReader implements Runnable {
+		/**
+		 * Number of milliseconds between polls of the stream.
+		 */
+		private static final long POLL_INTERVAL = 25;
+
+		/**
+		 * Prefix of the marker line that starts the messages of a command.
+		 */
+		static final String MARKER_PREFIX = "{errors";
+
+		private final InputStream in;
+
+		// Guarded by this.
+		private byte[] buffer = new byte[1024];
+		private int limit;
+		private final List<String> messageList = new ArrayList<String>();
+		private final List<Integer> numberList = new ArrayList<Integer>();
+		private int number;
+		private int sectionCount;
+		private int droppedCount;
+		private boolean closed;
+		private Future<?> task;
+
+		public ErrorReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * Used to start polling the stream.
+		 */
+		public synchronized void start() {
+			task = CleanupTask.getExecutor().scheduleWithFixedDelay(this,
+					POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		public synchronized void run() {
+			read();
+		}
+
+		/**
+		 * Used to take all the messages read so far, first reading everything
+		 * that is available in the stream.
+		 * 
+		 * @return the messages, or <code>null</code> if there are none.
+		 */
+		public synchronized List<String> takeMessages() {
+			read();
+			return take(messageList.size());
+		}
+
+		/**
+		 * Used to take the messages of the command with the given number (and
+		 * any earlier, unmarked messages), first reading everything that is
+		 * available in the stream. Messages that follow the marker of a later
+		 * command are kept for that command.
+		 * 
+		 * @return the messages, or <code>null</code> if there are none.
+		 */
+		public synchronized List<String> takeMessages(int commandNumber) {
+			read();
+
+			int count = 0;
+
+			for (int size = numberList.size(); count < size; count++) {
+				if (numberList.get(count).intValue() > commandNumber)
+					break;
+			}
+
+			return take(count);
+		}
+
+		/**
+		 * Used to wait for the given process to exit and take all the messages
+		 * it printed.
+		 * <p/>
+		 * The stream is not read until it ends, as a process ExifTool started
+		 * (or the script that started ExifTool) may keep it open after
+		 * ExifTool exited; the monitor of this reader is only held while
+		 * reading what is available, so the cleanup thread polling it never
+		 * blocks.
+		 * 
+		 * @param timeout
+		 *            The maximum number of milliseconds to wait for the
+		 *            process to exit, or <code>0</code> for no limit.
+		 * 
+		 * @return the messages, or <code>null</code> if there are none.
+		 */
+		public List<String> awaitMessages(Process process, long timeout) {
+			long deadline = (timeout > 0 ? System.currentTimeMillis()
+					+ timeout : Long.MAX_VALUE);
+			long delay = 1;
+
+			/*
+			 * The process is normally exiting already, so check back quickly
+			 * at first.
+			 */
+			while (!hasExited(process)
+					&& System.currentTimeMillis() < deadline) {
+				synchronized (this) {
+					read();
+				}
+
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+
+				delay = Math.min(delay * 2, POLL_INTERVAL);
+			}
+
+			synchronized (this) {
+				read();
+				close();
+				return take(messageList.size());
+			}
+		}
+
+		/**
+		 * Used to stop polling and close the stream, the messages read so far
+		 * can still be taken.
+		 */
+		public synchronized void close() {
+			if (closed)
+				return;
+
+			closed = true;
+
+			if (task != null)
+				task.cancel(false);
+
+			try {
+				in.close();
+			} catch (IOException e) {
+				// no-op, just try to close it.
+			}
+		}
+
+		/**
+		 * Used to read what is available in the stream without blocking,
+		 * splitting it into messages.
+		 */
+		private void read() {
+			try {
+				while (!closed && in.available() > 0) {
+					if (limit == buffer.length) {
+						// A single message filled the entire buffer, grow it.
+						byte[] newBuffer = new byte[buffer.length * 2];
+						System.arraycopy(buffer, 0, newBuffer, 0, limit);
+						buffer = newBuffer;
+					}
+
+					int read = in.read(buffer, limit, buffer.length - limit);
+
+					if (read == -1) {
+						// Keep the last message even if it was not terminated.
+						addMessage(0, limit);
+						limit = 0;
+						close();
+						return;
+					}
+
+					int start = 0;
+
+					for (int i = limit, end = limit + read; i < end; i++) {
+						if (buffer[i] == '\n') {
+							addMessage(start, (i > start
+									&& buffer[i - 1] == '\r' ? i - 1 : i));
+							start = i + 1;
+						}
+					}
+
+					limit += read;
+
+					// Move the partial message to the front.
+					if (start > 0) {
+						System.arraycopy(buffer, start, buffer, 0, limit
+								- start);
+						limit -= start;
+					}
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void addMessage(int start, int end) {
+			if (end <= start)
+				return;
+
+			String message = decode(buffer, start, end);
+			int markerNumber = parseMarker(message);
+
+			if (markerNumber != -1) {
+				number = markerNumber;
+				sectionCount = 0;
+			} else if (sectionCount < MAX_MESSAGES) {
+				messageList.add(message);
+				numberList.add(Integer.valueOf(number));
+				sectionCount++;
+			} else
+				droppedCount++;
+		}
+
+		/**
+		 * @return the number of the command the given marker line starts the
+		 *         messages of, or <code>-1</code> if it is not a marker.
+		 */
+		private static int parseMarker(String message) {
+			if (!message.startsWith(MARKER_PREFIX) || !message.endsWith("}"))
+				return -1;
+
+			try {
+				return Integer.parseInt(message.substring(
+						MARKER_PREFIX.length(), message.length() - 1));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		private List<String> take(int count) {
+			if (droppedCount > 0) {
+				log("\tDropped %d messages printed by ExifTool.", droppedCount);
+				droppedCount = 0;
+			}
+
+			if (count == 0)
+				return null;
+
+			List<String> head = messageList.subList(0, count);
+			List<String> messages = new ArrayList<String>(head);
+
+			head.clear();
+			numberList.subList(0, count).clear();
+
+			if (messageList.isEmpty())
+				sectionCount = 0;
+
+			return messages;
+		}
+
+		private static boolean hasExited(Process process) {
+			try {
+				process.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				return false;
+			}
+		}
+	}
+
 	/**
-	 * Enum used to pre-define a convenient list of tags that can be easily
-	 * extracted from images using this class with an external install of
-	 * ExifTool.
-	 * <p/>
-	 * Each tag defined also includes a type hint for the parsed value
-	 * associated with it when the default {@link Format#NUMERIC} value format
-	 * is used.
-	 * <p/>
-	 * All replies from ExifTool are parsed as {@link String}s and using the
-	 * type hint from each {@link Tag} can easily be converted to the correct
-	 * data format by using the provided {@link Tag#parseValue(Tag, String)}
-	 * method.
-	 * <p/>
-	 * This class does not make an attempt at converting the value automatically
-	 * in case the caller decides they would prefer tag values returned in
-	 * {@link Format#HUMAN_READABLE} format and to avoid any compatibility
-	 * issues with future versions of ExifTool if a tag's return value is
-	 * changed. This approach to leaving returned tag values as strings until
-	 * the caller decides they want to parse them is a safer and more robust
-	 * approach.
-	 * <p/>
-	 * The types provided by each tag are merely a hint based on the <a
-	 * href="http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/index.html"
-	 * >ExifTool Tag Guide</a> by Phil Harvey; the caller is free to parse or
-	 * process the returned {@link String} values any way they wish.
-	 * <h3>Tag Support</h3>
-	 * ExifTool is capable of parsing almost every tag known to man (1000+), but
-	 * this class makes an attempt at pre-defining a convenient list of the most
-	 * common tags for use.
-	 * <p/>
-	 * This list was determined by looking at the common metadata tag values
-	 * written to images by popular mobile devices (iPhone, Android) as well as
-	 * cameras like simple point and shoots as well as DSLRs. As an additional
-	 * source of input the list of supported/common EXIF formats that Flickr
-	 * supports was also reviewed to ensure the most common/useful tags were
-	 * being covered here.
+	 * Class used to read the output of an ExifTool process one line at a
+	 * time, straight out of a reusable byte buffer.
 	 * <p/>
-	 * Please email me or <a
-	 * href="https://github.com/thebuzzmedia/imgscalr/issues">file an issue</a>
-	 * if you think this list is missing a commonly used tag that should be
-	 * added to it.
+	 * Unlike {@link java.io.BufferedReader#readLine()}, reading a line does not
+	 * create any objects; the current line is exposed as a region of
+	 * {@link #buffer} that stays valid until the next call to
+	 * {@link #nextLine()}. This lets the {@link ResponseHandler}s match tag
+	 * names in place and only decode the values they actually keep, which
+	 * matters when reading the thousands of lines a large batch query
+	 * returns.
 	 * 
-	 * @author Riyad Kalla (software@thebuzzmedia.com)
-	 * @since 1.1
+	 * @since 1.2
 	 */
-	public enum Tag {
-		ISO("ISO", Integer.class), APERTURE("ApertureValue", Double.class), WHITE_BALANCE(
-				"WhiteBalance", Integer.class), CONTRAST("Contrast",
-				Integer.class), SATURATION("Saturation", Integer.class), SHARPNESS(
-				"Sharpness", Integer.class), SHUTTER_SPEED("ShutterSpeedValue",
-				Double.class), DIGITAL_ZOOM_RATIO("DigitalZoomRatio",
-				Double.class), IMAGE_WIDTH("ImageWidth", Integer.class), IMAGE_HEIGHT(
-				"ImageHeight", Integer.class), X_RESOLUTION("XResolution",
-				Double.class), Y_RESOLUTION("YResolution", Double.class), FLASH(
-				"Flash", Integer.class), METERING_MODE("MeteringMode",
-				Integer.class), FOCAL_LENGTH("FocalLength", Double.class), FOCAL_LENGTH_35MM(
-				"FocalLengthIn35mmFormat", Integer.class), EXPOSURE_TIME(
-				"ExposureTime", Double.class), EXPOSURE_COMPENSATION(
-				"ExposureCompensation", Double.class), EXPOSURE_PROGRAM(
-				"ExposureProgram", Integer.class), ORIENTATION("Orientation",
-				Integer.class), COLOR_SPACE("ColorSpace", Integer.class), SENSING_METHOD(
-				"SensingMethod", Integer.class), SOFTWARE("Software",
-				String.class), MAKE("Make", String.class), MODEL("Model",
-				String.class), LENS_MAKE("LensMake", String.class), LENS_MODEL(
-				"LensModel", String.class), OWNER_NAME("OwnerName",
-				String.class), TITLE("XPTitle", String.class), AUTHOR(
-				"XPAuthor", String.class), SUBJECT("XPSubject", String.class), KEYWORDS(
-				"XPKeywords", String.class), COMMENT("XPComment", String.class), RATING(
-				"Rating", Integer.class), RATING_PERCENT("RatingPercent",
-				Integer.class), DATE_TIME_ORIGINAL("DateTimeOriginal",
-				String.class), CREATION_DATE("CreationDate", String.class), GPS_LATITUDE(
-				"GPSLatitude", Double.class), GPS_LATITUDE_REF(
-				"GPSLatitudeRef", String.class), GPS_LONGITUDE("GPSLongitude",
-				Double.class), GPS_LONGITUDE_REF("GPSLongitudeRef",
-				String.class), GPS_ALTITUDE("GPSAltitude", Double.class), GPS_ALTITUDE_REF(
-				"GPSAltitudeRef", Integer.class), GPS_SPEED("GPSSpeed",
-				Double.class), GPS_SPEED_REF("GPSSpeedRef", String.class), GPS_PROCESS_METHOD(
-				"GPSProcessingMethod", String.class), GPS_BEARING(
-				"GPSDestBearing", Double.class), GPS_BEARING_REF(
-				"GPSDestBearingRef", String.class), GPS_TIMESTAMP(
-				"GPSTimeStamp", String.class), ROTATION("Rotation",Integer.class),
-				EXIF_VERSION("ExifVersion",String.class), LENS_ID("LensID",String.class),
-				COPYRIGHT("Copyright", String.class), ARTIST("Artist", String.class),
-                SUB_SEC_TIME_ORIGINAL("SubSecTimeOriginal", Integer.class),
-                OBJECT_NAME("ObjectName", String.class), CAPTION_ABSTRACT("Caption-Abstract",
-                String.class), CREATOR("Creator", String.class), IPTC_KEYWORDS("Keywords",
-                String.class), COPYRIGHT_NOTICE("CopyrightNotice", String.class),
-                FILE_TYPE("FileType", String.class), AVG_BITRATE("AvgBitrate", String.class),
-                MIME_TYPE("MIMEType", String.class);
+	private static class LineReader {
+		private static final int INITIAL_BUFFER_SIZE = 8192;
 
-		private static final Map<String, Tag> TAG_LOOKUP_MAP;
+		private final InputStream in;
 
 		/**
-		 * Initializer used to init the <code>static final</code> tag/name
-		 * lookup map used by all instances of this class.
+		 * The buffer holding the current line; replaced with a larger one when
+		 * a single line does not fit.
 		 */
-		static {
-			Tag[] values = Tag.values();
-			TAG_LOOKUP_MAP = new HashMap<String, ExifTool.Tag>(
-					values.length * 3);
+		byte[] buffer;
 
-			for (int i = 0; i < values.length; i++) {
-				Tag tag = values[i];
-				TAG_LOOKUP_MAP.put(tag.name, tag);
-			}
+		/**
+		 * The index of the first byte of the current line in {@link #buffer}.
+		 */
+		int lineStart;
+
+		/**
+		 * The index after the last byte of the current line in
+		 * {@link #buffer}, excluding the line terminator.
+		 */
+		int lineEnd;
+
+		private int position;
+		private int limit;
+
+		public LineReader(InputStream in) {
+			this.in = in;
+			buffer = new byte[INITIAL_BUFFER_SIZE];
 		}
 
 		/**
-		 * Used to get the {@link Tag} identified by the given, case-sensitive,
-		 * tag name.
+		 * Used to advance to the next line of output, blocking until it has
+		 * been completely read.
 		 * 
-		 * @param name
-		 *            The case-sensitive name of the tag that will be searched
-		 *            for.
+		 * @return <code>true</code> if a line was read or <code>false</code>
+		 *         if the end of the stream was reached.
 		 * 
-		 * @return the {@link Tag} identified by the given, case-sensitive, tag
-		 *         name or <code>null</code> if one couldn't be found.
+		 * @throws IOException
+		 *             if an error occurs reading from the stream.
 		 */
-		public static Tag forName(String name) {
-			return TAG_LOOKUP_MAP.get(name);
+		public boolean nextLine() throws IOException {
+			int scan = position;
+
+			while (true) {
+				for (; scan < limit; scan++) {
+					if (buffer[scan] == '\n') {
+						lineStart = position;
+						lineEnd = (scan > position && buffer[scan - 1] == '\r' ? scan - 1
+								: scan);
+						position = scan + 1;
+						return true;
+					}
+				}
+
+				if (position > 0) {
+					// Move the partial line to the front to make room.
+					System.arraycopy(buffer, position, buffer, 0, limit
+							- position);
+					limit -= position;
+					scan -= position;
+					position = 0;
+				} else if (limit == buffer.length) {
+					// A single line filled the entire buffer, grow it.
+					byte[] newBuffer = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, newBuffer, 0, limit);
+					buffer = newBuffer;
+				}
+
+				int read = in.read(buffer, limit, buffer.length - limit);
+
+				if (read == -1) {
+					// Return the last line even if it was not terminated.
+					if (position < limit) {
+						lineStart = position;
+						lineEnd = limit;
+						position = limit;
+						return true;
+					}
+
+					return false;
+				}
+
+				limit += read;
+			}
 		}
 
 		/**
-		 * Convenience method used to convert the given string Tag value
-		 * (returned from the external ExifTool process) into the type described
-		 * by the associated {@link Tag}.
-		 * 
-		 * @param <T>
-		 *            The type of the returned value.
-		 * @param tag
-		 *            The {@link Tag} whose value this is. The tag's type hint
-		 *            will be queried to determine how to convert this string
-		 *            value.
-		 * @param value
-		 *            The {@link String} representation of the tag's value as
-		 *            parsed from the image.
-		 * 
-		 * @return the given string value converted to a native Java type (e.g.
-		 *         Integer, Double, etc.).
-		 * 
-		 * @throws IllegalArgumentException
-		 *             if <code>tag</code> is <code>null</code>.
-		 * @throws NumberFormatException
-		 *             if any exception occurs while trying to parse the given
-		 *             <code>value</code> to any of the supported numeric types
-		 *             in Java via calls to the respective <code>parseXXX</code>
-		 *             methods defined on all the numeric wrapper classes (e.g.
-		 *             {@link Integer#parseInt(String)} ,
-		 *             {@link Double#parseDouble(String)} and so on).
-		 * @throws ClassCastException
-		 *             if the type defined by <code>T</code> is incompatible
-		 *             with the type defined by {@link Tag#getType()} returned
-		 *             by the <code>tag</code> argument passed in. This class
-		 *             performs an implicit/unchecked cast to the type
-		 *             <code>T</code> before returning the parsed result of the
-		 *             type indicated by {@link Tag#getType()}. If the types do
-		 *             not match, a <code>ClassCastException</code> will be
-		 *             generated by the VM.
+		 * @return the number of bytes the current line took up in the
+		 *         stream, including its line terminator.
 		 */
-		@SuppressWarnings("unchecked")
-		public static <T> T parseValue(Tag tag, String value)
-				throws IllegalArgumentException, NumberFormatException {
-			if (tag == null)
-				throw new IllegalArgumentException("tag cannot be null");
+		public int lineBytes() {
+			return position - lineStart;
+		}
+
+		/**
+		 * @return the current line decoded into a new {@link String}.
+		 */
+		@Override
+		public String toString() {
+			return decode(buffer, lineStart, lineEnd);
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Interface used to receive the lines of output ExifTool prints in
+	 * response to a single command.
+	 * <p/>
+	 * Handlers are invoked from whichever thread is reading the response from
+	 * the ExifTool process; for daemon processes that is the process's reader
+	 * thread and not the thread that issued the command.
+	 * 
+	 * @since 1.2
+	 */
+	private static interface ResponseHandler {
+		/**
+		 * Called once for every line of output, in order, excluding the
+		 * line terminator and the <code>{ready}</code> line terminating the
+		 * response of a daemon process.
+		 * <p/>
+		 * The line is only valid for the duration of the call; the buffer it
+		 * is stored in is reused for the following lines.
+		 * 
+		 * @param buffer
+		 *            The buffer holding the raw (UTF-8) bytes of the line.
+		 * @param start
+		 *            The index of the first byte of the line.
+		 * @param end
+		 *            The index after the last byte of the line.
+		 */
+		public void handleLine(byte[] buffer, int start, int end);
+
+		/**
+		 * Called once after the last line of output, before the command
+		 * completes, with the warning and error messages ExifTool printed to
+		 * its standard error stream while running the command (an empty list
+		 * if it printed none).
+		 */
+		public void handleMessages(List<String> messages);
+
+		/**
+		 * Called before the command is run again after the process running
+		 * it died, to discard everything handled so far.
+		 */
+		public void reset();
+	}
+
+	/**
+	 * {@link ResponseHandler} used to parse the compact (<code>-S</code>)
+	 * output of a query run against a single image.
+	 * 
+	 * @since 1.2
+	 */
+	private static class TagValueHandler implements ResponseHandler {
+		private final Map<Tag, String> resultMap;
+
+		public TagValueHandler(Map<Tag, String> resultMap) {
+			this.resultMap = resultMap;
+		}
+
+		public void handleLine(byte[] buffer, int start, int end) {
+			parseTagValue(buffer, start, end, resultMap);
+		}
+
+		public void handleMessages(List<String> messages) {
+			for (int i = 0, size = messages.size(); i < size; i++)
+				addMessage(resultMap, messages.get(i));
+		}
+
+		public void reset() {
+			resultMap.clear();
+		}
+	}
+
+	/**
+	 * {@link ResponseHandler} used to parse the compact (<code>-S</code>)
+	 * output of a single query run against multiple images, storing every
+	 * recognized tag value in the result map of the image it belongs to.
+	 * <p/>
+	 * ExifTool precedes the output for each image with a
+	 * "<code>======== path</code>" header when more than one image is
+	 * processed; the path is used to look up the result map that the following
+	 * values are stored in. When only a single image was queried no header is
+	 * printed and all values belong to that image.
+	 * 
+	 * @since 1.2
+	 */
+	private static class BatchTagValueHandler implements ResponseHandler {
+		private final Map<String, ? extends Map<Tag, String>> pathResultMap;
+		private Map<Tag, String> resultMap;
+
+		public BatchTagValueHandler(
+				Map<String, ? extends Map<Tag, String>> pathResultMap) {
+			this.pathResultMap = pathResultMap;
+
+			if (pathResultMap.size() == 1)
+				resultMap = pathResultMap.values().iterator().next();
+		}
+
+		public void handleLine(byte[] buffer, int start, int end) {
+			if (startsWith(buffer, start, end, FILE_HEADER_PREFIX)) {
+				String path = decode(buffer,
+						start + FILE_HEADER_PREFIX.length(), end);
+				resultMap = getResultMap(path);
+
+				log("\t\tReading values for image: %s", path);
+			} else if (resultMap != null)
+				parseTagValue(buffer, start, end, resultMap);
+		}
+
+		/**
+		 * @return the map the values of the image with the given path, as
+		 *         reported by ExifTool, are stored in or <code>null</code> to
+		 *         discard them.
+		 */
+		Map<Tag, String> getResultMap(String path) {
+			return lookupPath(pathResultMap, path);
+		}
+
+		public void handleMessages(List<String> messages) {
+			addMessages(messages, pathResultMap);
+		}
+
+		public void reset() {
+			for (Map<Tag, String> map : pathResultMap.values())
+				map.clear();
+
+			resultMap = (pathResultMap.size() == 1 ? pathResultMap.values()
+					.iterator().next() : null);
+		}
+	}
+
+	/**
+	 * {@link ResponseHandler} used to parse the response to a write, which
+	 * ExifTool ends with a summary of what it did, e.g.:
+	 * 
+	 * <pre>
+	 *     2 image files updated
+	 *     1 image files unchanged
+	 *     1 files weren't updated due to errors
+	 * </pre>
+	 * 
+	 * The counts are summed up over all the images written by the command;
+	 * the warning and error messages ExifTool printed are kept as they are.
+	 * If the handler was given a {@link WriteResult}, the outcome is added to
+	 * it before the command completes.
+	 * 
+	 * @since 1.2
+	 */
+	private static class WriteResponseHandler implements ResponseHandler {
+		private final WriteResult result;
+		private final Map<String, File> pathImageMap;
+
+		int updatedCount;
+		int unchangedCount;
+		int failedCount;
+		List<String> messages;
+
+		public WriteResponseHandler() {
+			this(null, null);
+		}
+
+		/**
+		 * @param result
+		 *            The result the outcome of the command is added to.
+		 * @param pathImageMap
+		 *            The images written by the command, keyed by the path
+		 *            they were handed to ExifTool with.
+		 */
+		public WriteResponseHandler(WriteResult result,
+				Map<String, File> pathImageMap) {
+			this.result = result;
+			this.pathImageMap = pathImageMap;
+		}
+
+		public void handleLine(byte[] buffer, int start, int end) {
+			int index = start;
+
+			while (index < end && buffer[index] == ' ')
+				index++;
+
+			int count = 0;
+			int digitStart = index;
+
+			while (index < end && buffer[index] >= '0' && buffer[index] <= '9')
+				count = count * 10 + (buffer[index++] - '0');
+
+			// Not a summary line.
+			if (index == digitStart || count == 0)
+				return;
+
+			String summary = decode(buffer, index, end);
+
+			if (summary.endsWith("due to errors"))
+				failedCount += count;
+			else if (summary.startsWith(" image files")) {
+				if (summary.endsWith("unchanged"))
+					unchangedCount += count;
+				else if (summary.endsWith("updated")
+						|| summary.endsWith("created"))
+					updatedCount += count;
+			}
+		}
+
+		public void handleMessages(List<String> messages) {
+			this.messages = messages;
+
+			if (result != null)
+				result.add(this, pathImageMap);
+		}
+
+		public void reset() {
+			updatedCount = 0;
+			unchangedCount = 0;
+			failedCount = 0;
+			messages = null;
+		}
+	}
+
+	/**
+	 * {@link ResponseHandler} used to parse the JSON (<code>-j</code>) output
+	 * of a query run against one or more images.
+	 * <p/>
+	 * Rather than building a document tree, this is a small streaming
+	 * tokenizer that walks the raw bytes of each line and stores tag values
+	 * straight into the result maps. Tag names are matched in place using
+	 * {@link Tag#forName(byte[], int, int)}, so the only objects created
+	 * per field are the value strings of recognized tags; values of tags that
+	 * were not asked for are skipped without being decoded.
+	 * <p/>
+	 * Unlike compact (<code>-S</code>) output, JSON escapes the contents of
+	 * every value, so values containing "<code>: </code>", quotes or line
+	 * breaks are all returned intact. List values (e.g. multiple keywords) are
+	 * joined with "<code>, </code>", the same way ExifTool formats them in its
+	 * other output modes.
+	 * <p/>
+	 * When more than one image is queried, the "<code>SourceFile</code>" value
+	 * that starts every JSON object is used to look up the result map that the
+	 * following values are stored in.
+	 * 
+	 * @since 1.2
+	 */
+	private static class JsonTagValueHandler implements ResponseHandler {
+		private static final String SOURCE_FILE_KEY = "SourceFile";
+
+		/**
+		 * Nesting depth of a JSON object describing a single image (inside
+		 * the top-level array).
+		 */
+		private static final int IMAGE_DEPTH = 2;
+
+		private final Map<String, ? extends Map<Tag, String>> pathResultMap;
+		private Map<Tag, String> resultMap;
+
+		private int depth;
+		private boolean expectValue;
+		private Tag tag;
+		private boolean sourceFile;
+		private StringBuilder listBuilder;
+		private boolean listValue;
+
+		public JsonTagValueHandler(
+				Map<String, ? extends Map<Tag, String>> pathResultMap) {
+			this.pathResultMap = pathResultMap;
+
+			if (pathResultMap.size() == 1)
+				resultMap = pathResultMap.values().iterator().next();
+		}
+
+		public void handleLine(byte[] buffer, int start, int end) {
+			for (int i = start; i < end; i++) {
+				byte c = buffer[i];
+
+				switch (c) {
+				case '[':
+				case '{':
+					depth++;
+
+					// Start of the object describing the next image.
+					if (depth == IMAGE_DEPTH)
+						resetField();
+
+					// A list value, e.g. "Keywords": ["a", "b"]
+					if (c == '[' && depth == IMAGE_DEPTH + 1 && expectValue) {
+						if (listBuilder == null)
+							listBuilder = new StringBuilder(64);
+
+						listBuilder.setLength(0);
+						listValue = true;
+					}
+					break;
+
+				case ']':
+				case '}':
+					if (listValue && depth == IMAGE_DEPTH + 1) {
+						listValue = false;
+						storeValue(listBuilder.toString());
+					}
+
+					depth--;
+
+					// End of a list or structure value.
+					if (depth == IMAGE_DEPTH)
+						resetField();
+					break;
+
+				case ':':
+					if (depth == IMAGE_DEPTH)
+						expectValue = true;
+					break;
+
+				case ',':
+					if (depth == IMAGE_DEPTH)
+						resetField();
+					break;
+
+				case '"':
+					int stringEnd = findStringEnd(buffer, i + 1, end);
+
+					if (depth == IMAGE_DEPTH && !expectValue) {
+						tag = Tag.forName(buffer, i + 1, stringEnd);
+						sourceFile = (tag == null && stringEnd - i - 1 == SOURCE_FILE_KEY
+								.length())
+								&& startsWith(buffer, i + 1, stringEnd,
+										SOURCE_FILE_KEY);
+					} else if (isValueWanted())
+						handleValue(decodeString(buffer, i + 1, stringEnd));
+
+					i = stringEnd;
+					break;
+
+				case ' ':
+				case '\t':
+				case '\r':
+					break;
+
+				default:
+					// Bare literal value (number, true, false or null).
+					int literalEnd = i + 1;
+
+					while (literalEnd < end && !isLiteralEnd(buffer[literalEnd]))
+						literalEnd++;
+
+					if (isValueWanted())
+						handleValue(decode(buffer, i, literalEnd));
+
+					i = literalEnd - 1;
+				}
+			}
+		}
+
+		public void handleMessages(List<String> messages) {
+			addMessages(messages, pathResultMap);
+		}
+
+		public void reset() {
+			for (Map<Tag, String> map : pathResultMap.values())
+				map.clear();
+
+			resultMap = (pathResultMap.size() == 1 ? pathResultMap.values()
+					.iterator().next() : null);
+			depth = 0;
+			listValue = false;
+			resetField();
+		}
+
+		private void resetField() {
+			expectValue = false;
+			tag = null;
+			sourceFile = false;
+		}
+
+		private boolean isValueWanted() {
+			if (tag == null && !sourceFile)
+				return false;
+
+			return (depth == IMAGE_DEPTH && expectValue)
+					|| (listValue && depth == IMAGE_DEPTH + 1);
+		}
+
+		private void handleValue(String value) {
+			if (listValue) {
+				if (listBuilder.length() > 0)
+					listBuilder.append(", ");
+
+				listBuilder.append(value);
+			} else
+				storeValue(value);
+		}
+
+		private void storeValue(String value) {
+			if (sourceFile) {
+				if (pathResultMap.size() != 1) {
+					resultMap = getResultMap(value);
+
+					if (DEBUG)
+						log("\t\tReading values for image: %s", value);
+				}
+			} else if (tag != null && resultMap != null) {
+				resultMap.put(tag, value);
+
+				if (DEBUG)
+					log("\t\tRead Tag [name=%s, value=%s]", tag.name, value);
+			}
+		}
+
+		/**
+		 * @return the map the values of the image with the given path, as
+		 *         reported by ExifTool, are stored in or <code>null</code> to
+		 *         discard them.
+		 */
+		Map<Tag, String> getResultMap(String path) {
+			return lookupPath(pathResultMap, path);
+		}
+
+		private static boolean isLiteralEnd(byte c) {
+			return c == ',' || c == ']' || c == '}' || c == ' ' || c == '\t'
+					|| c == '\r';
+		}
+
+		/**
+		 * @return the index of the closing quote of the JSON string starting
+		 *         at <code>start</code>, or <code>end</code> if it is
+		 *         unterminated.
+		 */
+		private static int findStringEnd(byte[] buffer, int start, int end) {
+			for (int i = start; i < end; i++) {
+				byte c = buffer[i];
+
+				if (c == '\\')
+					i++;
+				else if (c == '"')
+					return i;
+			}
+
+			return end;
+		}
+
+		private static String decodeString(byte[] buffer, int start, int end) {
+			int escape = start;
+
+			while (escape < end && buffer[escape] != '\\')
+				escape++;
+
+			// Fast path, nothing to unescape.
+			if (escape == end)
+				return decode(buffer, start, end);
+
+			/*
+			 * Escapes are all ASCII and never occur inside of a multi-byte
+			 * UTF-8 sequence, so the runs between them can be decoded on their
+			 * own.
+			 */
+			StringBuilder value = new StringBuilder(end - start);
+			value.append(decode(buffer, start, escape));
+
+			for (int i = escape; i < end; i++) {
+				if (buffer[i] != '\\' || i + 1 >= end) {
+					int runEnd = i + 1;
+
+					while (runEnd < end && buffer[runEnd] != '\\')
+						runEnd++;
+
+					value.append(decode(buffer, i, runEnd));
+					i = runEnd - 1;
+					continue;
+				}
+
+				char c = (char) buffer[++i];
+
+				switch (c) {
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'u':
+					int codeUnit = (i + 4 < end ? parseHex(buffer, i + 1, i + 5)
+							: -1);
+
+					if (codeUnit != -1) {
+						value.append((char) codeUnit);
+						i += 4;
+						break;
+					}
+
+					value.append("\\u");
+					break;
+				default:
+					// \" \\ \/
+					value.append(c);
+				}
+			}
+
+			return value.toString();
+		}
+
+		/**
+		 * @return the value of the hexadecimal digits in the given region or
+		 *         <code>-1</code> if it contains anything else.
+		 */
+		private static int parseHex(byte[] buffer, int start, int end) {
+			int value = 0;
+
+			for (int i = start; i < end; i++) {
+				int digit = Character.digit(buffer[i], 16);
+
+				if (digit == -1)
+					return -1;
+
+				value = (value << 4) | digit;
+			}
+
+			return value;
+		}
+	}
+
+	/**
+	 * Class used to represent a single command (the argument lines preceding
+	 * an <code>-execute</code>) sent to a daemon ExifTool process along with
+	 * the state of its execution.
+	 * <p/>
+	 * A command moves through 3 states: queued in the {@link DaemonPool}
+	 * waiting for a process with a free pipeline slot, dispatched to a
+	 * {@link DaemonProcess} (written or waiting to be written to it) and done,
+	 * either successfully or with a failure.
+	 * 
+	 * @since 1.2
+	 */
+	private static class DaemonCommand {
+		/**
+		 * The encoded argument lines of this command, each terminated with a
+		 * <code>\n</code>, but without the terminating <code>-execute</code>;
+		 * the optional, shared, prefix (e.g. the arguments of a {@link Query})
+		 * is written first, followed by the arguments specific to this
+		 * command.
+		 */
+		final byte[] argPrefix;
+		final byte[] args;
+		final ResponseHandler handler;
+
+		/**
+		 * The metrics recorded for this command, or <code>null</code> if no
+		 * {@link MetricsListener} was set when it was created.
+		 */
+		final RequestMetrics metrics;
+
+		/**
+		 * The number of this command, used in the "<code>-executeNNN</code>"
+		 * argument and the "<code>{readyNNN}</code>" line that terminates its
+		 * response; assigned by the process that writes it.
+		 */
+		int number;
+
+		/**
+		 * The number of times this command has been retried after the
+		 * process running it died; guarded by the pool.
+		 */
+		int retryCount;
+
+		/**
+		 * The process this command was last dispatched to; guarded by the
+		 * pool.
+		 */
+		DaemonProcess process;
+
+		/**
+		 * The task that times this command out if it is still running when
+		 * its timeout expires, or <code>null</code>; only used by
+		 * asynchronous commands.
+		 */
+		volatile Future<?> timeoutTask;
+
+		private boolean dispatched;
+		private boolean done;
+		private IOException failure;
+
+		public DaemonCommand(byte[] argPrefix, byte[] args,
+				ResponseHandler handler, RequestMetrics metrics) {
+			this.argPrefix = argPrefix;
+			this.args = args;
+			this.handler = handler;
+			this.metrics = metrics;
+		}
+
+		public synchronized void dispatched() {
+			dispatched = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return <code>true</code> if this call completed the command,
+		 *         <code>false</code> if it had already completed.
+		 */
+		public boolean complete(IOException failure) {
+			boolean ran;
+
+			if (!isDone())
+				completing(failure);
+
+			synchronized (this) {
+				if (done)
+					return false;
+
+				this.failure = failure;
+				done = true;
+				ran = dispatched;
+				notifyAll();
+			}
+
+			Future<?> task = timeoutTask;
+
+			if (task != null)
+				task.cancel(false);
+
+			// Commands cancelled while still queued never ran.
+			if (metrics != null && ran)
+				metrics.completed(failure != null);
+
+			done(failure);
+			return true;
+		}
+
+		/**
+		 * Called right before this command completes, before any thread
+		 * waiting for it is woken, from the thread completing it. Commands
+		 * completed by several threads at once, e.g. by a timeout racing the
+		 * end of the response, can see more than one call.
+		 * 
+		 * @param failure
+		 *            The failure the command is completing with or
+		 *            <code>null</code> if it is completing successfully.
+		 */
+		protected void completing(IOException failure) {
+			// no-op by default.
+		}
+
+		/**
+		 * Called once, right after this command has completed, from the
+		 * thread that completed it.
+		 * 
+		 * @param failure
+		 *            The failure the command completed with or
+		 *            <code>null</code> if it completed successfully.
+		 */
+		protected void done(IOException failure) {
+			// no-op by default.
+		}
+
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Used to wait for this command to be handed to a process.
+		 * 
+		 * @param timeout
+		 *            The maximum number of milliseconds to wait; a value of
+		 *            <code>0</code> or less waits indefinitely.
+		 * 
+		 * @return <code>true</code> if the command was dispatched within the
+		 *         given timeout, otherwise <code>false</code>.
+		 */
+		public synchronized boolean awaitDispatch(long timeout)
+				throws InterruptedException {
+			if (timeout <= 0) {
+				while (!dispatched)
+					wait();
+			} else {
+				long deadline = System.currentTimeMillis() + timeout;
+
+				while (!dispatched) {
+					long remaining = deadline - System.currentTimeMillis();
+
+					if (remaining <= 0)
+						return false;
+
+					wait(remaining);
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Used to wait for the response to this command to be read
+		 * completely.
+		 * 
+		 * @throws IOException
+		 *             if the command could not be executed or the response
+		 *             could not be read.
+		 */
+		public synchronized void await() throws IOException {
+			try {
+				while (!done)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for the response from the ExifTool daemon process.");
+			}
+
+			if (failure != null) {
+				// Re-throw on the caller's thread while keeping the cause.
+				IOException e = (failure instanceof CommandTimeoutException ? new CommandTimeoutException(
+						((CommandTimeoutException) failure).getTimeout())
+						: new IOException(failure.getMessage()));
+				e.initCause(failure);
+				throw e;
+			}
+		}
+
+		/**
+		 * Used to wait for this command to complete.
+		 * 
+		 * @param timeout
+		 *            The maximum number of milliseconds to wait.
+		 * 
+		 * @return <code>true</code> if the command completed within the
+		 *         given timeout, otherwise <code>false</code>.
+		 */
+		protected synchronized boolean awaitDone(long timeout)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+
+			while (!done) {
+				long remaining = deadline - System.currentTimeMillis();
+
+				if (remaining <= 0)
+					return false;
+
+				wait(remaining);
+			}
+
+			return true;
+		}
+
+		protected synchronized IOException getFailure() {
+			return failure;
+		}
+	}
+
+	/**
+	 * {@link DaemonCommand} returned to callers of the asynchronous
+	 * <code>getImageMetaAsync</code> and <code>setImageMetaAsync</code>
+	 * methods as a {@link Future} for the result of the command.
+	 * <p/>
+	 * The optional {@link ResultCallback} is notified from the reader thread
+	 * of the daemon process that executed the command as soon as it completes.
+	 * 
+	 * @since 1.2
+	 */
+	private static class FutureCommand<T> extends DaemonCommand implements
+			Future<T> {
+		private final DaemonPool pool;
+		private final T result;
+		private final ResultCallback<? super T> callback;
+
+		private boolean cancelled;
+
+		public FutureCommand(DaemonPool pool, byte[] argPrefix, byte[] args,
+				ResponseHandler handler, RequestMetrics metrics, T result,
+				ResultCallback<? super T> callback) {
+			super(argPrefix, args, handler, metrics);
+
+			this.pool = pool;
+			this.result = result;
+			this.callback = callback;
+		}
+
+		@Override
+		protected void done(IOException failure) {
+			if (callback == null || isCancelled())
+				return;
+
+			try {
+				if (failure == null)
+					callback.onSuccess(result);
+				else
+					callback.onFailure(failure);
+			} catch (RuntimeException e) {
+				// Never let a callback take down the thread notifying it.
+				log("\tResultCallback %s threw an exception: %s", callback, e);
+			}
+		}
+
+		/**
+		 * Only commands that are still queued, waiting for a daemon process,
+		 * can be cancelled; once a command has been handed to a process it
+		 * will run to completion.
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!pool.cancel(this))
+				return false;
+
+			synchronized (this) {
+				cancelled = true;
+			}
+
+			complete(null);
+			return true;
+		}
+
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		public T get() throws InterruptedException, ExecutionException {
+			try {
+				await();
+			} catch (CommandTimeoutException e) {
+				// no-op, reported by getResult below.
+			} catch (InterruptedIOException e) {
+				throw new InterruptedException(e.getMessage());
+			} catch (IOException e) {
+				// no-op, reported by getResult below.
+			}
+
+			return getResult();
+		}
+
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			if (!awaitDone(unit.toMillis(timeout)))
+				throw new TimeoutException("Timed out after " + timeout + " "
+						+ unit + " waiting for the ExifTool command to complete.");
+
+			return getResult();
+		}
+
+		private T getResult() throws ExecutionException {
+			if (isCancelled())
+				throw new CancellationException(
+						"The ExifTool command was cancelled before it was run.");
+
+			IOException failure = getFailure();
+
+			if (failure != null)
+				throw new ExecutionException(failure);
+
+			return result;
+		}
+	}
+
+	/**
+	 * Class used to represent a single external ExifTool process running in
+	 * daemon mode (<code>-stay_open True</code>) and the threads used to
+	 * communicate with it.
+	 * <p/>
+	 * Every process has a dedicated writer thread that writes the commands
+	 * dispatched to it by the {@link DaemonPool} and a dedicated reader thread
+	 * that reads the responses. Each command is terminated with a numbered
+	 * <code>-executeNNN</code> argument, causing ExifTool to terminate its
+	 * response with a matching <code>{readyNNN}</code> line. This allows up to
+	 * {@link ExifTool#PIPELINE_DEPTH} commands to be written ahead while
+	 * earlier ones are still executing, keeping the ExifTool process busy at
+	 * all times, while the reader thread matches every response back to the
+	 * command (and caller) it belongs to.
+	 * <p/>
+	 * The lifecycle of a process is tracked by its {@link State}, which only
+	 * changes through a few well-defined, atomic transitions so that closing
+	 * a process (by {@link ExifTool#close()} or the cleanup thread) can never
+	 * interrupt a command that has already been handed to it.
+	 * 
+	 * @since 1.2
+	 */
+	private static class DaemonProcess {
+		/**
+		 * The states a process moves through:
+		 * <ul>
+		 * <li>{@link #IDLE} -&gt; {@link #BUSY} when the pool hands it a
+		 * command, and back once the last command it was handed completes.</li>
+		 * <li>{@link #IDLE} -&gt; {@link #CLOSING} when it is shut down while
+		 * idle; it is told to exit immediately.</li>
+		 * <li>{@link #BUSY} -&gt; {@link #CLOSING} when it is shut down while
+		 * busy; it finishes the commands it was already handed and is told to
+		 * exit once the last one completes.</li>
+		 * <li>any -&gt; {@link #CLOSED} once the process has exited, whether
+		 * it was told to or not.</li>
+		 * </ul>
+		 * Only idle processes are ever reaped by the cleanup thread and only
+		 * idle or busy processes are handed commands, so commands submitted
+		 * while a process is closing go to another (or a newly started)
+		 * process instead.
+		 */
+		enum State {
+			IDLE, BUSY, CLOSING, CLOSED
+		}
+
+		/**
+		 * Sentinel command handed to the writer thread to tell it to shut the
+		 * process down.
+		 */
+		static final DaemonCommand SHUTDOWN_COMMAND = new DaemonCommand(null,
+				null, null, null);
+
+		private static final byte[] EXECUTE_ARG = encodeArgs("-execute");
+		private static final byte[] ECHO_MARKER_ARGS = encodeArgs("-echo2\n"
+				+ ErrorReader.MARKER_PREFIX);
+		private static final byte[] MARKER_END = encodeArgs("}\n");
+		private static final byte[] STAY_OPEN_FALSE_ARGS = encodeArgs("-stay_open\nFalse\n");
+
+		/**
+		 * Minimum interval (in milliseconds) between two reads of the resident
+		 * memory of the same process.
+		 */
+		private static final long MEMORY_CHECK_INTERVAL = 1000;
+
+		private static int processCount;
+
+		final DaemonPool pool;
+		final IOStream streams;
+		final BlockingQueue<DaemonCommand> writeQueue;
+
+		/**
+		 * Whether every command written to this process starts by printing a
+		 * numbered marker to stderr (<code>-echo2</code>), which is how the
+		 * messages of pipelined commands are told apart (see
+		 * {@link ErrorReader}).
+		 * <p/>
+		 * Without markers, which requires {@link ExifTool#ECHO_VERSION}, the
+		 * messages read once a command completes are dropped if the next
+		 * command had already been written to the process, as they may
+		 * belong to either.
+		 */
+		final boolean markMessages;
+
+		// Guarded by this.
+		private final LinkedList<DaemonCommand> pendingList;
+		private int commandCount;
+		private boolean dead;
+
+		// Only used by the writer thread.
+		private final byte[] numberBuffer = new byte[10];
+
+		// Only used by the reader thread.
+		private final long startTime = System.currentTimeMillis();
+		private int pid = -1;
+		private int completedCount;
+		private long nextMemoryCheckTime;
+
+		final AtomicReference<State> state = new AtomicReference<State>(
+				State.IDLE);
+
+		// Guarded by the owning pool.
+		int assignedCount;
+		boolean recycling;
+
+		public DaemonProcess(DaemonPool pool) throws RuntimeException {
+			log("\tStarting daemon ExifTool process and creating read/write streams...");
+
+			this.pool = pool;
+			this.markMessages = (PIPELINE_DEPTH > 1 && isEchoSupported());
+			this.streams = startExifToolProcess(STAY_OPEN_ARGS);
+			this.writeQueue = new LinkedBlockingQueue<DaemonCommand>();
+			this.pendingList = new LinkedList<DaemonCommand>();
+
+			int id;
+
+			synchronized (DaemonProcess.class) {
+				id = ++processCount;
+			}
+
+			Thread writerThread = new Thread(new Runnable() {
+				public void run() {
+					writeCommands();
+				}
+			}, DAEMON_THREAD_NAME + " Writer #" + id);
+			Thread readerThread = new Thread(new Runnable() {
+				public void run() {
+					readResponses();
+				}
+			}, DAEMON_THREAD_NAME + " Reader #" + id);
+
+			writerThread.setDaemon(true);
+			readerThread.setDaemon(true);
+			writerThread.start();
+			readerThread.start();
+		}
+
+		/**
+		 * @return <code>true</code> if this process can be handed commands.
+		 */
+		boolean isOpen() {
+			State current = state.get();
+			return (current == State.IDLE || current == State.BUSY);
+		}
+
+		/**
+		 * Used to shut this process down if (and only if) it is idle.
+		 * 
+		 * @return <code>true</code> if the process was idle and has been told
+		 *         to exit.
+		 */
+		boolean closeIfIdle() {
+			if (!state.compareAndSet(State.IDLE, State.CLOSING))
+				return false;
+
+			writeQueue.add(SHUTDOWN_COMMAND);
+			return true;
+		}
+
+		/**
+		 * Used to shut this process down immediately if it is idle, or as soon
+		 * as the commands it was already handed complete if it is busy.
+		 */
+		void close() {
+			while (true) {
+				State current = state.get();
+
+				if (current == State.IDLE) {
+					if (closeIfIdle())
+						return;
+				} else if (current == State.BUSY) {
+					if (state.compareAndSet(State.BUSY, State.CLOSING))
+						return;
+				} else
+					return;
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if the given command has been written to
+		 *         this process and is the one it is currently executing.
+		 */
+		synchronized boolean isExecuting(DaemonCommand command) {
+			return (pendingList.peek() == command);
+		}
+
+		/**
+		 * Body of the writer thread; writes every dispatched command to the
+		 * process until it is told to shut the process down.
+		 */
+		private void writeCommands() {
+			try {
+				DaemonCommand command;
+
+				while ((command = writeQueue.take()) != SHUTDOWN_COMMAND) {
+					// Timed out before it could be written, skip it.
+					if (command.isDone()) {
+						pool.commandCompleted(this);
+						continue;
+					}
+
+					boolean requeue;
+
+					synchronized (this) {
+						/*
+						 * The process exited after this command was dispatched
+						 * to us; it was never written so it is safe to hand it
+						 * back to the pool to run on another process.
+						 */
+						requeue = dead;
+
+						if (!requeue) {
+							command.number = ++commandCount;
+							pendingList.addLast(command);
+						}
+					}
+
+					if (requeue) {
+						pool.requeueCommands(command, writeQueue);
+						continue;
+					}
+
+					RequestMetrics metrics = command.metrics;
+
+					if (metrics != null)
+						metrics.writeStartTime = System.nanoTime();
+
+					if (markMessages) {
+						streams.writer.write(ECHO_MARKER_ARGS);
+						writeNumber(command.number);
+						streams.writer.write(MARKER_END);
+					}
+
+					if (command.argPrefix != null)
+						streams.writer.write(command.argPrefix);
+
+					streams.writer.write(command.args);
+					streams.writer.write(EXECUTE_ARG);
+					writeNumber(command.number);
+					streams.writer.write('\n');
+
+					/*
+					 * Only flush once we have run out of commands to write so
+					 * back-to-back commands go out in a single write.
+					 */
+					if (writeQueue.isEmpty())
+						streams.writer.flush();
+
+					if (metrics != null)
+						metrics.writeEndTime = System.nanoTime();
+				}
+
+				log("\tAttempting to close ExifTool daemon process, issuing '-stay_open\\nFalse\\n' command...");
+
+				// Tell the ExifTool process to exit.
+				streams.writer.write(STAY_OPEN_FALSE_ARGS);
+				streams.writer.flush();
+			} catch (InterruptedException e) {
+				// no-op, just stop writing.
+			} catch (IOException e) {
+				/*
+				 * The process is no longer accepting commands; kill it so the
+				 * reader thread sees the end of the stream and fails the
+				 * commands that were already written.
+				 */
+				log("\tUnable to write to ExifTool daemon process, destroying it: %s",
+						e);
+				streams.process.destroy();
+			}
+
+			try {
+				streams.writer.close();
+			} catch (IOException e) {
+				// no-op, just try to close it.
+			}
+		}
+
+		/**
+		 * Used to write the decimal digits of the given (positive) command
+		 * number without creating a {@link String} for it.
+		 */
+		private void writeNumber(int number) throws IOException {
+			int start = numberBuffer.length;
+
+			do {
+				numberBuffer[--start] = (byte) ('0' + number % 10);
+				number /= 10;
+			} while (number > 0);
+
+			streams.writer.write(numberBuffer, start, numberBuffer.length
+					- start);
+		}
+
+		/**
+		 * Called by the reader thread after every completed command.
+		 * 
+		 * @return <code>true</code> if this process has exceeded
+		 *         {@link ExifTool#MAX_PROCESS_REQUESTS},
+		 *         {@link ExifTool#MAX_PROCESS_AGE} or
+		 *         {@link ExifTool#MAX_PROCESS_MEMORY} and should be recycled.
+		 */
+		private boolean isWornOut() {
+			if (MAX_PROCESS_REQUESTS > 0
+					&& ++completedCount >= MAX_PROCESS_REQUESTS)
+				return true;
+
+			if (MAX_PROCESS_AGE <= 0 && MAX_PROCESS_MEMORY <= 0)
+				return false;
+
+			long now = System.currentTimeMillis();
+
+			if (MAX_PROCESS_AGE > 0 && now - startTime >= MAX_PROCESS_AGE)
+				return true;
+
+			if (MAX_PROCESS_MEMORY <= 0 || now < nextMemoryCheckTime)
+				return false;
+
+			if (nextMemoryCheckTime == 0)
+				pid = getPid(streams.process);
+
+			nextMemoryCheckTime = now + MEMORY_CHECK_INTERVAL;
+
+			if (pid <= 0)
+				return false;
+
+			long memory = readResidentMemory(pid);
+
+			if (memory >= MAX_PROCESS_MEMORY) {
+				log("\tExifTool daemon process %d is using %d kB of memory, recycling it...",
+						pid, memory);
+				return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * Used to find the operating system process ID of the given process,
+		 * which is only exposed by Java 9 and later (<code>Process.pid()</code>)
+		 * and otherwise by the private <code>pid</code> field of the UNIX
+		 * process implementation.
+		 * 
+		 * @return the process ID, or <code>-1</code> if it cannot be found.
+		 */
+		private static int getPid(Process process) {
+			try {
+				return ((Number) Process.class.getMethod("pid").invoke(process))
+						.intValue();
+			} catch (NoSuchMethodException e) {
+				// no-op, fall back to the field below.
+			} catch (Exception e) {
+				return -1;
+			}
+
+			try {
+				Field field = process.getClass().getDeclaredField("pid");
+				field.setAccessible(true);
+				return field.getInt(process);
+			} catch (Exception e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Used to read the resident set size of the given process from the
+		 * <code>VmRSS</code> line of <code>/proc/&lt;pid&gt;/status</code>.
+		 * 
+		 * @return the resident memory in kilobytes, or <code>-1</code> if it
+		 *         cannot be read (e.g. on systems without <code>/proc</code>).
+		 */
+		private static long readResidentMemory(int pid) {
+			BufferedReader reader = null;
+
+			try {
+				reader = new BufferedReader(new FileReader("/proc/" + pid
+						+ "/status"));
+				String line;
+
+				while ((line = reader.readLine()) != null) {
+					if (!line.startsWith("VmRSS:"))
+						continue;
+
+					StringTokenizer tokenizer = new StringTokenizer(
+							line.substring(6));
+					return Long.parseLong(tokenizer.nextToken());
+				}
+			} catch (Exception e) {
+				// no-op, memory use is unknown.
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						// no-op, just try to close it.
+					}
+				}
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Body of the reader thread; reads the responses of the written
+		 * commands, in order, until the process exits.
+		 */
+		private void readResponses() {
+			IOException failure = null;
+			DaemonCommand command = null;
+
+			try {
+				LineReader reader = streams.reader;
+
+				while (reader.nextLine()) {
+					byte[] buffer = reader.buffer;
+					int start = reader.lineStart;
+					int end = reader.lineEnd;
+
+					if (command == null) {
+						synchronized (this) {
+							command = pendingList.peek();
+						}
+					}
+
+					if (command != null && command.metrics != null)
+						command.metrics.lineRead(reader.lineBytes());
+
+					if (startsWith(buffer, start, end, READY_PREFIX)) {
+						if (command == null
+								|| parseReadyNumber(buffer, start, end) != command.number)
+							throw new IOException(
+									"Received unexpected response terminator '"
+											+ reader
+											+ "' from ExifTool daemon process while waiting for '"
+											+ (command == null ? null
+													: READY_PREFIX
+															+ command.number
+															+ '}') + "'.");
+
+						List<String> messages;
+
+						synchronized (this) {
+							pendingList.removeFirst();
+
+							/*
+							 * Without markers, the messages of this command
+							 * can only be told apart from those of the next
+							 * one if the next one has not been written yet;
+							 * the writer cannot write it while we hold the
+							 * lock.
+							 */
+							if (markMessages || pendingList.isEmpty())
+								messages = streams.errors
+										.takeMessages(command.number);
+							else {
+								messages = streams.errors.takeMessages();
+
+								if (messages != null)
+									log("\tDropping %d ExifTool messages that cannot be matched to one of the pipelined commands: %s",
+											messages.size(), messages);
+
+								messages = null;
+							}
+						}
+
+						handleMessages(command.handler, messages);
+						pool.commandCompleted(this);
+						command.complete(null);
+						command = null;
+
+						if (isWornOut())
+							pool.recycle(this);
+					} else if (command != null && command.handler != null)
+						command.handler.handleLine(buffer, start, end);
+				}
+			} catch (IOException e) {
+				failure = e;
+				streams.process.destroy();
+			}
+
+			List<DaemonCommand> failedList;
+
+			synchronized (this) {
+				dead = true;
+				failedList = new ArrayList<DaemonCommand>(pendingList);
+				pendingList.clear();
+			}
+
+			try {
+				streams.reader.close();
+			} catch (IOException e) {
+				// no-op, just try to close it.
+			}
+
+			log("\tExifTool daemon process terminated.");
+
+			if (failure == null && !failedList.isEmpty()) {
+				// Whatever ExifTool (or Perl) printed last explains why.
+				List<String> messages = streams.errors.takeMessages();
+
+				failure = new IOException(
+						"ExifTool daemon process exited before returning a complete response."
+								+ (messages == null ? "" : " Last message: "
+										+ messages.get(messages.size() - 1)));
+			}
+
+			streams.errors.close();
+
+			// Wake the writer thread up if it is waiting on more commands.
+			writeQueue.add(SHUTDOWN_COMMAND);
+			pool.processExited(this, failedList, failure);
+		}
+	}
+
+	/**
+	 * Class used to manage the set of daemon ExifTool processes used by a
+	 * single {@link ExifTool} instance with {@link Feature#STAY_OPEN} enabled
+	 * and dispatch commands to them.
+	 * <p/>
+	 * A command is dispatched to an idle process if there is one; otherwise a
+	 * new process is started if the pool is allowed to grow, otherwise the
+	 * command is pipelined onto the least busy process that has fewer than
+	 * {@link ExifTool#PIPELINE_DEPTH} commands in flight. When all processes
+	 * are full the command is queued and dispatched, in the order it arrived,
+	 * as soon as any process completes a command.
+	 * <p/>
+	 * Processes are kept in a most-recently-used-first list so the same few
+	 * (warm) processes tend to get re-used when the pool is not under full
+	 * load, allowing the cleanup thread to reap the rest.
+	 * 
+	 * @since 1.2
+	 */
+	private static class DaemonPool {
+		private final int minSize;
+		private final int maxSize;
+		private final int pipelineDepth;
+		private final boolean keepWarm;
+
+		private final LinkedList<DaemonProcess> processList;
+		private final LinkedList<DaemonCommand> commandQueue;
+
+		/**
+		 * The listener notified of processes being started and reaped, kept
+		 * in sync with the one set on the owning {@link ExifTool}.
+		 */
+		volatile MetricsListener metricsListener;
+
+		/**
+		 * The time (in milliseconds) this pool was last submitted a command
+		 * or completed one, checked by the {@link CleanupTask}.
+		 */
+		volatile long lastUsedTime = System.currentTimeMillis();
+
+		/**
+		 * Number of live processes, including the ones currently starting up
+		 * that have not been added to the process list yet.
+		 */
+		private int processCount;
+
+		/**
+		 * Number of times the pool has been closed, used to discard warm
+		 * processes that finish starting after the pool was closed.
+		 */
+		private int closeCount;
+
+		/**
+		 * Number of processes that exited without being asked to.
+		 */
+		private int failureCount;
+
+		/**
+		 * @param keepWarm
+		 *            <code>true</code> to keep at least <code>minSize</code>
+		 *            (and at least 1) processes running at all times, starting
+		 *            them in the background.
+		 */
+		public DaemonPool(int minSize, int maxSize, int pipelineDepth,
+				boolean keepWarm) {
+			this.minSize = (keepWarm ? Math.max(1, minSize) : minSize);
+			this.maxSize = maxSize;
+			this.pipelineDepth = pipelineDepth;
+			this.keepWarm = keepWarm;
+			this.processList = new LinkedList<DaemonProcess>();
+			this.commandQueue = new LinkedList<DaemonCommand>();
+		}
+
+		/**
+		 * Used to execute the given command on one of the processes in this
+		 * pool and wait for its response to be read completely.
+		 * 
+		 * @param timeout
+		 *            The maximum number of milliseconds the command may take,
+		 *            including the time spent waiting for a process, or
+		 *            <code>0</code> for no limit.
+		 * 
+		 * @throws CommandTimeoutException
+		 *             if the command did not complete within the given
+		 *             timeout.
+		 * @throws InterruptedIOException
+		 *             if no process became available to run the command
+		 *             within {@link ExifTool#POOL_CHECKOUT_TIMEOUT}
+		 *             milliseconds or the calling thread was interrupted
+		 *             while waiting.
+		 * @throws IOException
+		 *             if the command failed to execute.
+		 * @throws RuntimeException
+		 *             if a new ExifTool process needed to be started and could
+		 *             not be.
+		 */
+		public void execute(DaemonCommand command, long timeout)
+				throws IOException, RuntimeException {
+			long deadline = System.currentTimeMillis() + timeout;
+
+			submit(command);
+
+			boolean dispatched;
+
+			try {
+				dispatched = command.awaitDispatch(timeout > 0
+						&& (POOL_CHECKOUT_TIMEOUT <= 0 || timeout < POOL_CHECKOUT_TIMEOUT) ? timeout
+						: POOL_CHECKOUT_TIMEOUT);
+			} catch (InterruptedException e) {
+				dispatched = !cancel(command);
+				Thread.currentThread().interrupt();
+
+				if (!dispatched)
+					throw new InterruptedIOException(
+							"Interrupted while waiting for a daemon ExifTool process to become available.");
+			}
+
+			if (!dispatched && cancel(command)) {
+				if (timeout > 0 && System.currentTimeMillis() >= deadline)
+					throw new CommandTimeoutException(timeout);
+
+				throw new InterruptedIOException(
+						"Timed out after "
+								+ POOL_CHECKOUT_TIMEOUT
+								+ " ms waiting for a daemon ExifTool process to become available. Consider raising the maximum pool size or the 'exiftool.poolCheckoutTimeout' system property.");
+			}
+
+			if (timeout > 0) {
+				boolean done;
+
+				try {
+					done = command.awaitDone(deadline
+							- System.currentTimeMillis());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted while waiting for the response from the ExifTool daemon process.");
+				}
+
+				if (!done)
+					timeOut(command, timeout);
+			}
+
+			command.await();
+		}
+
+		/**
+		 * Used to fail the given command with a
+		 * {@link CommandTimeoutException} if it has not completed yet.
+		 * <p/>
+		 * A command that is still queued is simply removed from the queue and
+		 * one that has not been written yet is skipped by the process it was
+		 * dispatched to. If the command is the one its process is currently
+		 * executing, the process is presumed to hang and is killed; the
+		 * commands pipelined behind it are retried on another process.
+		 */
+		void timeOut(DaemonCommand command, long timeout) {
+			DaemonProcess process;
+
+			synchronized (this) {
+				commandQueue.remove(command);
+				process = command.process;
+			}
+
+			if (!command.complete(new CommandTimeoutException(timeout)))
+				return;
+
+			if (process != null && process.isExecuting(command)) {
+				log("\tExifTool command timed out after %d ms, killing the daemon ExifTool process running it...",
+						timeout);
+				process.streams.process.destroy();
+			}
+		}
+
+		/**
+		 * Used to submit the given command for execution without waiting for
+		 * it. If a new process needs to be started to run the command, it is
+		 * started on a background thread and the command is queued until it is
+		 * ready, so this method never blocks.
+		 * 
+		 * @param timeout
+		 *            The maximum number of milliseconds the command may take,
+		 *            including the time spent waiting for a process, or
+		 *            <code>0</code> for no limit.
+		 */
+		public void submitAsync(final DaemonCommand command, final long timeout) {
+			lastUsedTime = System.currentTimeMillis();
+
+			if (timeout > 0)
+				command.timeoutTask = CleanupTask.getExecutor().schedule(
+						new Runnable() {
+							public void run() {
+								timeOut(command, timeout);
+							}
+						}, timeout, TimeUnit.MILLISECONDS);
+
+			if (keepWarm)
+				warmUp();
+
+			synchronized (this) {
+				DaemonProcess process = selectProcess();
+
+				if (process != null
+						&& (process.assignedCount == 0 || processCount >= maxSize)) {
+					assign(process, command);
+					return;
+				}
+
+				commandQueue.addLast(command);
+
+				if (processCount >= maxSize) {
+					log("\tAll ExifTool daemon processes are busy, queuing command...");
+					return;
+				}
+
+				processCount++;
+			}
+
+			Thread starterThread = new Thread(new Runnable() {
+				public void run() {
+					startReservedProcess();
+				}
+			}, DAEMON_THREAD_NAME + " Starter");
+
+			starterThread.setDaemon(true);
+			starterThread.start();
+		}
+
+		private void submit(DaemonCommand command) throws RuntimeException {
+			lastUsedTime = System.currentTimeMillis();
+
+			if (keepWarm)
+				warmUp();
+
+			synchronized (this) {
+				DaemonProcess process = selectProcess();
+
+				/*
+				 * Prefer running commands in parallel on separate processes
+				 * over pipelining them onto a busy one while the pool can
+				 * still grow.
+				 */
+				if (process != null
+						&& (process.assignedCount == 0 || processCount >= maxSize)) {
+					assign(process, command);
+					return;
+				}
+
+				if (processCount >= maxSize) {
+					log("\tAll ExifTool daemon processes are busy, queuing command...");
+					commandQueue.addLast(command);
+					return;
+				}
+
+				processCount++;
+			}
+
+			/*
+			 * Start the new process outside of the lock so other callers can
+			 * keep dispatching commands to the running processes while Perl
+			 * starts up.
+			 */
+			DaemonProcess process;
+
+			try {
+				process = new DaemonProcess(this);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					processCount--;
+				}
+
+				throw e;
+			}
+
+			processStarted();
+
+			synchronized (this) {
+				processList.addFirst(process);
+				assign(process, command);
+				fill(process);
+			}
+		}
+
+		/**
+		 * Used to remove a command that has not been dispatched yet from the
+		 * queue.
+		 * 
+		 * @return <code>true</code> if the command was still queued and has
+		 *         been removed, <code>false</code> if it was already
+		 *         dispatched to a process.
+		 */
+		synchronized boolean cancel(DaemonCommand command) {
+			return commandQueue.remove(command);
+		}
+
+		/**
+		 * @return the most recently used idle process, or if there are none,
+		 *         the process with the fewest commands in flight that still
+		 *         has a free pipeline slot, or <code>null</code> if all
+		 *         processes are full.
+		 */
+		private DaemonProcess selectProcess() {
+			DaemonProcess selected = null;
+
+			for (int i = 0, size = processList.size(); i < size; i++) {
+				DaemonProcess process = processList.get(i);
+
+				if (process.assignedCount == 0)
+					return process;
+
+				if (process.assignedCount < pipelineDepth
+						&& (selected == null || process.assignedCount < selected.assignedCount))
+					selected = process;
+			}
+
+			return selected;
+		}
+
+		private void assign(DaemonProcess process, DaemonCommand command) {
+			if (process.assignedCount++ == 0)
+				process.state.compareAndSet(DaemonProcess.State.IDLE,
+						DaemonProcess.State.BUSY);
+
+			command.process = process;
+			command.dispatched();
+			process.writeQueue.add(command);
+		}
+
+		private void fill(DaemonProcess process) {
+			while (process.isOpen() && !commandQueue.isEmpty()
+					&& process.assignedCount < pipelineDepth)
+				assign(process, commandQueue.removeFirst());
+		}
+
+		/**
+		 * Called by the reader thread of a process every time it finishes
+		 * reading the response to a command, or by the writer thread when it
+		 * skips a command that timed out before it was written.
+		 */
+		synchronized void commandCompleted(DaemonProcess process) {
+			process.assignedCount--;
+			lastUsedTime = System.currentTimeMillis();
+
+			if (process.assignedCount == 0)
+				process.state.compareAndSet(DaemonProcess.State.BUSY,
+						DaemonProcess.State.IDLE);
+
+			DaemonProcess.State state = process.state.get();
+
+			if (state == DaemonProcess.State.CLOSING) {
+				if (process.assignedCount == 0)
+					process.writeQueue.add(DaemonProcess.SHUTDOWN_COMMAND);
+			} else if (state != DaemonProcess.State.CLOSED) {
+				// Keep the most recently used processes at the front.
+				if (processList.getFirst() != process) {
+					processList.remove(process);
+					processList.addFirst(process);
+				}
+
+				fill(process);
+			}
+		}
+
+		/**
+		 * Called by a process that died before it could write the given
+		 * command and the commands remaining in the given queue; they are put
+		 * back at the front of the queue of this pool.
+		 */
+		void requeueCommands(DaemonCommand command,
+				BlockingQueue<DaemonCommand> writeQueue) {
+			requeueCommands(writeQueue, Collections.singletonList(command));
+		}
+
+		/**
+		 * Used to put the commands remaining in the given queue, preceded by
+		 * the given commands, back at the front of the queue of this pool.
+		 */
+		private void requeueCommands(BlockingQueue<DaemonCommand> writeQueue,
+				List<DaemonCommand> retryList) {
+			List<DaemonCommand> commandList = new ArrayList<DaemonCommand>(
+					retryList);
+			writeQueue.drainTo(commandList);
+
+			/*
+			 * The shutdown command the reader thread queued for the writer
+			 * thread may have been drained with the rest; the writer of the
+			 * dead process must still get it or it waits forever.
+			 */
+			writeQueue.add(DaemonProcess.SHUTDOWN_COMMAND);
+
+			synchronized (this) {
+				for (int i = commandList.size() - 1; i >= 0; i--) {
+					DaemonCommand command = commandList.get(i);
+
+					if (command != DaemonProcess.SHUTDOWN_COMMAND
+							&& !command.isDone())
+						commandQueue.addFirst(command);
+				}
+			}
+
+			dispatchQueue();
+		}
+
+		/**
+		 * Called by the reader thread of a process once the process has
+		 * exited, whether it was asked to or not.
+		 * <p/>
+		 * Commands that were written to the process but did not receive a
+		 * complete response are retried on another process, at the front of
+		 * the queue; the command that was executing fails instead if it has
+		 * already been retried {@link ExifTool#MAX_RETRIES} times.
+		 * 
+		 * @param failedList
+		 *            The commands that did not receive a complete response.
+		 * @param failure
+		 *            The failure those commands fail with if they cannot be
+		 *            retried.
+		 */
+		void processExited(DaemonProcess process,
+				List<DaemonCommand> failedList, IOException failure) {
+			boolean unexpected;
+			List<DaemonCommand> retryList = new ArrayList<DaemonCommand>(
+					failedList.size());
+			List<DaemonCommand> abortList = new ArrayList<DaemonCommand>(
+					failedList.size());
+
+			synchronized (this) {
+				DaemonProcess.State previous = process.state
+						.getAndSet(DaemonProcess.State.CLOSED);
+
+				unexpected = (previous != DaemonProcess.State.CLOSING);
+
+				if (unexpected) {
+					log("\tExifTool daemon process exited unexpectedly, removing it from the pool.");
+
+					processList.remove(process);
+					processCount--;
+					failureCount++;
+				}
+
+				/*
+				 * ExifTool runs commands one at a time, so only the first one
+				 * was actually executing when the process died; the ones
+				 * pipelined behind it never started and are retried without
+				 * counting against them.
+				 */
+				for (int i = 0, size = failedList.size(); i < size; i++) {
+					DaemonCommand command = failedList.get(i);
+
+					// Commands that timed out have already failed.
+					if (command.isDone())
+						continue;
+
+					if (i > 0)
+						retryList.add(command);
+					else if (command.retryCount < MAX_RETRIES) {
+						command.retryCount++;
+						retryList.add(command);
+					} else
+						abortList.add(command);
+				}
+			}
+
+			for (int i = 0, size = retryList.size(); i < size; i++) {
+				ResponseHandler handler = retryList.get(i).handler;
+
+				if (handler != null)
+					handler.reset();
+			}
+
+			if (!retryList.isEmpty())
+				log("\tRetrying %d commands of the dead ExifTool daemon process...",
+						retryList.size());
+
+			for (int i = 0, size = abortList.size(); i < size; i++)
+				abortList.get(i).complete(failure);
+
+			if (unexpected) {
+				MetricsListener listener = metricsListener;
+
+				if (listener != null) {
+					try {
+						listener.processFailed(retryList.size());
+					} catch (RuntimeException e) {
+						log("\tMetricsListener %s threw an exception: %s",
+								listener, e);
+					}
+				}
+			}
+
+			/*
+			 * The unwritten commands are put back at the front of the queue
+			 * first, so the retried ones, which were submitted before them,
+			 * end up in front of them.
+			 */
+			requeueCommands(process.writeQueue, retryList);
+
+			// Replace the process before a call needs it.
+			if (unexpected && keepWarm)
+				warmUp();
+		}
+
+		/**
+		 * Used to make sure commands left in the queue (e.g. because the
+		 * processes they were waiting on have been closed) are dispatched,
+		 * starting new processes for them if necessary.
+		 */
+		private void dispatchQueue() {
+			do {
+				synchronized (this) {
+					for (int i = 0, size = processList.size(); i < size; i++)
+						fill(processList.get(i));
+
+					if (commandQueue.isEmpty() || processCount >= maxSize)
+						return;
+
+					processCount++;
+				}
+			} while (startReservedProcess());
+		}
+
+		/**
+		 * Used to start a new process, whose slot has already been reserved
+		 * by incrementing the process count, and hand it queued commands.
+		 * <p/>
+		 * If the process cannot be started and there is no other process left
+		 * that could run the queued commands, they are failed.
+		 * 
+		 * @return <code>true</code> if the process was started.
+		 */
+		private boolean startReservedProcess() {
+			DaemonProcess process;
+
+			try {
+				process = new DaemonProcess(this);
+			} catch (RuntimeException e) {
+				List<DaemonCommand> failedList = null;
+
+				synchronized (this) {
+					processCount--;
+
+					if (processCount == 0) {
+						failedList = new ArrayList<DaemonCommand>(commandQueue);
+						commandQueue.clear();
+					}
+				}
+
+				if (failedList != null) {
+					IOException failure = new IOException(
+							"Unable to start a daemon ExifTool process to run the queued command.");
+					failure.initCause(e);
+
+					for (int i = 0, size = failedList.size(); i < size; i++) {
+						DaemonCommand command = failedList.get(i);
+
+						command.dispatched();
+						command.complete(failure);
+					}
+				}
+
+				return false;
+			}
+
+			processStarted();
+
+			synchronized (this) {
+				processList.addFirst(process);
+				fill(process);
+			}
+
+			return true;
+		}
+
+		private void processStarted() {
+			MetricsListener listener = metricsListener;
+
+			if (listener != null) {
+				try {
+					listener.processStarted(true);
+				} catch (RuntimeException e) {
+					log("\tMetricsListener %s threw an exception: %s",
+							listener, e);
+				}
+			}
+		}
+
+		/**
+		 * Used to start new processes in the background until the pool holds
+		 * its minimum number of processes. Returns immediately.
+		 */
+		public void warmUp() {
+			final int generation;
+			int missing;
+
+			synchronized (this) {
+				missing = minSize - processCount;
+
+				if (missing <= 0)
+					return;
+
+				processCount += missing;
+				generation = closeCount;
+			}
+
+			log("\tStarting %d warm ExifTool daemon processes in the background...",
+					missing);
+
+			// Start them in parallel, startup is mostly spent waiting on Perl.
+			for (int i = 0; i < missing; i++) {
+				Thread starterThread = new Thread(new Runnable() {
+					public void run() {
+						startWarmProcess(generation);
+					}
+				}, DAEMON_THREAD_NAME + " Starter");
+
+				starterThread.setDaemon(true);
+				starterThread.start();
+			}
+		}
+
+		/**
+		 * Used to start a new process, whose slot has already been reserved,
+		 * to keep warm. If the pool was closed while the process started up it
+		 * is shut down again, unless commands are waiting for it.
+		 * 
+		 * @param generation
+		 *            The {@link #closeCount} when the slot was reserved.
+		 */
+		private void startWarmProcess(int generation) {
+			DaemonProcess process;
+
+			try {
+				process = new DaemonProcess(this);
+			} catch (RuntimeException e) {
+				log("\tUnable to start a warm ExifTool daemon process: %s", e);
+
+				synchronized (this) {
+					processCount--;
+				}
+
+				// Commands may have queued up behind the reserved slot.
+				dispatchQueue();
+				return;
+			}
+
+			processStarted();
+
+			synchronized (this) {
+				if (generation == closeCount || !commandQueue.isEmpty()) {
+					processList.addFirst(process);
+					fill(process);
+					return;
+				}
+
+				processCount--;
+			}
+
+			process.close();
+		}
+
+		/**
+		 * Used to replace the given worn out process (see
+		 * {@link ExifTool#MAX_PROCESS_REQUESTS}) with a new one. The
+		 * replacement is started in the background while the old process
+		 * keeps running commands; once it is ready it takes the old process's
+		 * place and the old process is shut down as soon as the commands it
+		 * was already handed complete. Returns immediately.
+		 * <p/>
+		 * While the replacement starts up the pool holds one process more
+		 * than its maximum size.
+		 */
+		void recycle(final DaemonProcess process) {
+			final int generation;
+
+			synchronized (this) {
+				if (process.recycling || !process.isOpen())
+					return;
+
+				process.recycling = true;
+				processCount++;
+				generation = closeCount;
+			}
+
+			log("\tRecycling ExifTool daemon process, starting its replacement in the background...");
+
+			Thread starterThread = new Thread(new Runnable() {
+				public void run() {
+					startReplacementProcess(process, generation);
+				}
+			}, DAEMON_THREAD_NAME + " Starter");
+
+			starterThread.setDaemon(true);
+			starterThread.start();
+		}
+
+		/**
+		 * Used to start the replacement, whose slot has already been reserved,
+		 * of the given process and swap it in. If the replacement cannot be
+		 * started the old process is kept and recycled again later.
+		 * 
+		 * @param generation
+		 *            The {@link #closeCount} when the slot was reserved.
+		 */
+		private void startReplacementProcess(DaemonProcess process,
+				int generation) {
+			DaemonProcess replacement;
+
+			try {
+				replacement = new DaemonProcess(this);
+			} catch (RuntimeException e) {
+				log("\tUnable to start a replacement ExifTool daemon process: %s",
+						e);
+
+				synchronized (this) {
+					processCount--;
+					process.recycling = false;
+				}
+
+				dispatchQueue();
+				return;
+			}
+
+			processStarted();
+
+			synchronized (this) {
+				if (generation == closeCount || !commandQueue.isEmpty()) {
+					processList.addFirst(replacement);
+
+					/*
+					 * The old process may have exited or been reaped in the
+					 * meantime, in which case its slot is already gone.
+					 */
+					if (processList.remove(process)) {
+						processCount--;
+						process.close();
+					}
+
+					fill(replacement);
+					return;
+				}
+
+				processCount--;
+			}
+
+			replacement.close();
+		}
+
+		/**
+		 * Used to shut down idle processes until at most <code>keep</code>
+		 * processes remain. Busy processes are never touched.
+		 * 
+		 * @param keep
+		 *            The number of processes to leave running.
+		 * 
+		 * @return the number of processes that were shut down.
+		 */
+		public synchronized int closeIdle(int keep) {
+			int closed = 0;
+
+			// Reap the least recently used processes first.
+			for (int i = processList.size() - 1; i >= 0
+					&& processList.size() > keep; i--) {
+				DaemonProcess process = processList.get(i);
+
+				if (process.closeIfIdle()) {
+					processList.remove(i);
+					processCount--;
+					closed++;
+				}
+			}
+
+			return closed;
+		}
+
+		/**
+		 * Used to shut down every process in the pool. Idle processes are shut
+		 * down immediately and busy processes are shut down as soon as they
+		 * have finished the commands already dispatched to them.
+		 */
+		public void close() {
+			synchronized (this) {
+				for (int i = 0, size = processList.size(); i < size; i++)
+					processList.get(i).close();
+
+				closeCount++;
+
+				processCount -= processList.size();
+				processList.clear();
+			}
+
+			/*
+			 * Any callers still waiting in the queue would otherwise never be
+			 * serviced as the processes they were waiting on are going away.
+			 */
+			dispatchQueue();
+		}
+
+		/**
+		 * Used by the cleanup thread to trim the pool back down to its minimum
+		 * size after a period of inactivity.
+		 */
+		public void trim() {
+			int reaped = closeIdle(minSize);
+			MetricsListener listener = metricsListener;
+
+			if (reaped > 0 && listener != null) {
+				try {
+					listener.processesReaped(reaped);
+				} catch (RuntimeException e) {
+					log("\tMetricsListener %s threw an exception: %s",
+							listener, e);
+				}
+			}
+		}
+
+		public synchronized boolean isRunning() {
+			return (processCount > 0);
+		}
+
+		public synchronized int getFailureCount() {
+			return failureCount;
+		}
+	}
+
+	/**
+	 * Enum used to define the different kinds of features in the native
+	 * ExifTool executable that this class can help you take advantage of.
+	 * <p/>
+	 * These flags are different from {@link Tag}s in that a "feature" is
+	 * determined to be a special functionality of the underlying ExifTool
+	 * executable that requires a different code-path in this class to take
+	 * advantage of; for example, <code>-stay_open True</code> support.
+	 * 
+	 * @author Riyad Kalla (software@thebuzzmedia.com)
+	 * @since 1.1
+	 */
+	public enum Feature {
+		/**
+		 * Enum used to specify that you wish to launch the underlying ExifTool
+		 * process with <code>-stay_open True</code> support turned on that this
+		 * class can then take advantage of.
+		 * <p/>
+		 * Required ExifTool version is <code>8.36</code> or higher.
+		 */
+		STAY_OPEN("8.36"),
+
+		/**
+		 * Enum used to specify that you wish to have ExifTool return tag values
+		 * using its JSON output format (<code>-j</code>) instead of its compact
+		 * "<code>name: value</code>" format (<code>-S</code>).
+		 * <p/>
+		 * JSON output is parsed by a small streaming tokenizer built into this
+		 * class and, unlike the compact format, correctly returns values that
+		 * contain "<code>: </code>", quotes or line breaks. The result maps
+		 * returned to the caller are identical in both modes.
+		 * <p/>
+		 * Required ExifTool version is <code>8.36</code> or higher (the
+		 * earliest version this class has been verified against with
+		 * <code>-j</code>).
+		 */
+		JSON("8.36");
+
+		/**
+		 * Used to get the version of ExifTool required by this feature in order
+		 * to work.
+		 * 
+		 * @return the version of ExifTool required by this feature in order to
+		 *         work.
+		 */
+		public String getVersion() {
+			return version;
+		}
+
+		private String version;
+
+		private Feature(String version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Enum used to define the 2 different output formats that {@link Tag}
+	 * values can be returned in: numeric or human-readable text.
+	 * <p/>
+	 * ExifTool, via the <code>-n</code> command line arg, is capable of
+	 * returning most values in their raw numeric form (e.g.
+	 * Aperture="2.8010323841") as well as a more human-readable/friendly format
+	 * (e.g. Aperture="2.8").
+	 * <p/>
+	 * While the {@link Tag}s defined on this class do provide a hint at the
+	 * type of the result (see {@link Tag#getType()}), that hint only applies
+	 * when the {@link Format#NUMERIC} form of the value is returned.
+	 * <p/>
+	 * If the caller finds the human-readable format easier to process,
+	 * {@link Format#HUMAN_READABLE} can be specified when calling
+	 * {@link ExifTool#getImageMeta(File, Format, Tag...)} and the returned
+	 * {@link String} values processed manually by the caller.
+	 * <p/>
+	 * In order to see the types of values that are returned when
+	 * {@link Format#HUMAN_READABLE} is used, you can check the comprehensive <a
+	 * href="http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/index.html">
+	 * ExifTool Tag Guide</a>.
+	 * <p/>
+	 * This makes sense with some values like Aperture that in
+	 * {@link Format#NUMERIC} format end up returning as 14-decimal-place, high
+	 * precision values that are near the intended value (e.g.
+	 * "2.79999992203711" instead of just returning "2.8"). On the other hand,
+	 * other values (like Orientation) are easier to parse when their numeric
+	 * value (1-8) is returned instead of a much longer friendly name (e.g.
+	 * "Mirror horizontal and rotate 270 CW").
+	 * 
+	 * @author Riyad Kalla (software@thebuzzmedia.com)
+	 * @since 1.1
+	 */
+	public enum Format {
+		NUMERIC, HUMAN_READABLE;
+	}
+
+	/**
+	 * Enum used to select how ExifTool replaces the original image when new
+	 * tag values are written to it (see
+	 * {@link ExifTool#setWriteMode(WriteMode)}).
+	 * <p/>
+	 * ExifTool never modifies an image directly; it always writes a complete
+	 * new copy of the image and then replaces the original with it. The modes
+	 * differ in what happens to the original afterwards, which matters most
+	 * for large RAW and video files where every extra copy costs as much disk
+	 * I/O as the write itself.
+	 * <p/>
+	 * To leave the original untouched and write the new copy to a different
+	 * path instead, use
+	 * {@link ExifTool#setImageMeta(File, File, Format, Map)}.
+	 *
+	 * @since 1.2
+	 */
+	public enum WriteMode {
+		/**
+		 * ExifTool's default behavior: the original image is renamed by
+		 * appending "<code>_original</code>" to its name and kept as a backup
+		 * next to the new image. Backups are never deleted by ExifTool and
+		 * double the disk space used by every image written.
+		 */
+		BACKUP(null),
+		/**
+		 * The new image is written to a temporary file that is then renamed
+		 * over the original (<code>-overwrite_original</code>), so no backup
+		 * is kept and the original is replaced atomically on most file
+		 * systems. Because the image becomes a new file, file attributes that
+		 * belong to the original file (e.g. its creation date, ownership or
+		 * hard links) are not carried over.
+		 */
+		OVERWRITE("-overwrite_original"),
+		/**
+		 * The new image is written to a temporary file whose contents are then
+		 * copied back into the original file
+		 * (<code>-overwrite_original_in_place</code>), so no backup is kept
+		 * and the attributes of the original file are preserved. This is the
+		 * slowest mode as every image is written twice, and the original is
+		 * not replaced atomically.
+		 */
+		OVERWRITE_IN_PLACE("-overwrite_original_in_place");
+
+		private String arg;
+
+		private WriteMode(String arg) {
+			this.arg = arg;
+		}
+	}
+
+	/**
+	 * Interface used to be notified of the outcome of an asynchronous call
+	 * (e.g. {@link ExifTool#getImageMetaAsync(File, Format, ResultCallback, Tag...)})
+	 * as soon as it completes, without having to block a thread on the
+	 * returned {@link Future}.
+	 * <p/>
+	 * Callbacks are invoked from the internal reader thread of the daemon
+	 * ExifTool process that ran the command (or the cleanup thread, for calls
+	 * that timed out), so implementations must return quickly and never
+	 * block; hand any expensive work off to another thread.
+	 * Callbacks are not invoked for calls that were cancelled using
+	 * {@link Future#cancel(boolean)}.
+	 * 
+	 * @param <T>
+	 *            The type of the result of the call.
+	 * 
+	 * @since 1.2
+	 */
+	public interface ResultCallback<T> {
+		/**
+		 * Called when the call completed successfully.
+		 * 
+		 * @param result
+		 *            The result of the call.
+		 */
+		public void onSuccess(T result);
+
+		/**
+		 * Called when the call failed.
+		 * 
+		 * @param e
+		 *            The exception describing the failure.
+		 */
+		public void onFailure(IOException e);
+	}
+
+	/**
+	 * Interface used to receive timings and counters from an {@link ExifTool}
+	 * instance, e.g. to feed them into the histograms and counters of a
+	 * metrics library (see {@link ExifTool#setMetricsListener(MetricsListener)}
+	 * ).
+	 * <p/>
+	 * Listeners are invoked from whichever thread completed the work being
+	 * reported, which is often the internal reader thread of a daemon ExifTool
+	 * process or the cleanup thread, so implementations must be Thread-safe,
+	 * return quickly and never block.
+	 * 
+	 * @since 1.2
+	 */
+	public interface MetricsListener {
+		/**
+		 * Called every time a call to ExifTool (a single query or write,
+		 * synchronous or asynchronous) completes, successfully or not.
+		 * 
+		 * @param metrics
+		 *            The timings and counters of the call.
+		 */
+		public void requestCompleted(RequestMetrics metrics);
+
+		/**
+		 * Called every time an external ExifTool process is started.
+		 * 
+		 * @param daemon
+		 *            <code>true</code> if the process is a daemon process
+		 *            added to the pool, <code>false</code> if it was started
+		 *            to run a single call.
+		 */
+		public void processStarted(boolean daemon);
+
+		/**
+		 * Called every time a daemon ExifTool process exits without being
+		 * told to (see {@link ExifTool#MAX_RETRIES}).
+		 * 
+		 * @param retriedCount
+		 *            The number of commands in flight on the process that are
+		 *            retried on another process.
+		 */
+		public void processFailed(int retriedCount);
+
+		/**
+		 * Called when the cleanup thread shuts down idle daemon processes
+		 * after a period of inactivity (see {@link #PROCESS_CLEANUP_DELAY}).
+		 * 
+		 * @param count
+		 *            The number of processes that were shut down.
+		 */
+		public void processesReaped(int count);
+	}
+
+	/**
+	 * Class used to describe a single completed call to ExifTool, as reported
+	 * to a {@link MetricsListener}.
+	 * <p/>
+	 * The time a call took is split into 4 consecutive phases, all reported in
+	 * nanoseconds:
+	 * <ol>
+	 * <li>Queue: waiting for a daemon process with a free pipeline slot,
+	 * including starting one if the pool grows (always <code>0</code> without
+	 * {@link Feature#STAY_OPEN}).</li>
+	 * <li>Write: writing the command to the daemon process, or starting a new
+	 * ExifTool process and handing it the arguments.</li>
+	 * <li>Execution: from the command having been written until the first
+	 * line of the response is read; this is the time ExifTool spends reading
+	 * the image(s), including waiting on any commands pipelined ahead of it.</li>
+	 * <li>Parse: from the first line of the response until the last one has
+	 * been read and parsed.</li>
+	 * </ol>
+	 * 
+	 * @since 1.2
+	 */
+	public static class RequestMetrics {
+		private final MetricsListener listener;
+		private final boolean daemon;
+		private final boolean write;
+		private final int imageCount;
+		private final int tagsRequested;
+		private final Collection<? extends Map<Tag, String>> results;
+
+		/*
+		 * Set by the threads the phases happen on, 0 until then. The write
+		 * times are set by the writer thread of a daemon process, possibly
+		 * after the reader thread has already read the response.
+		 */
+		final long startTime;
+		volatile long writeStartTime;
+		volatile long writeEndTime;
+		volatile long responseTime;
+		private long endTime;
+
+		// Only updated by the thread reading the response.
+		long bytesRead;
+
+		private int tagsFound;
+		private boolean failed;
+
+		private RequestMetrics(MetricsListener listener, boolean daemon,
+				boolean write, int imageCount, int tagsRequested,
+				Collection<? extends Map<Tag, String>> results) {
+			this.listener = listener;
+			this.daemon = daemon;
+			this.write = write;
+			this.imageCount = imageCount;
+			this.tagsRequested = tagsRequested;
+			this.results = results;
+
+			startTime = System.nanoTime();
+
+			// Only calls to daemon processes are ever queued.
+			if (!daemon)
+				writeStartTime = startTime;
+		}
+
+		/**
+		 * @return <code>true</code> if the call was run by a daemon process
+		 *         ({@link Feature#STAY_OPEN}).
+		 */
+		public boolean isDaemon() {
+			return daemon;
+		}
+
+		/**
+		 * @return <code>true</code> if the call wrote tag values,
+		 *         <code>false</code> if it queried them.
+		 */
+		public boolean isWrite() {
+			return write;
+		}
+
+		/**
+		 * @return <code>true</code> if the call failed.
+		 */
+		public boolean isFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return the number of images the call read or wrote.
+		 */
+		public int getImageCount() {
+			return imageCount;
+		}
+
+		/**
+		 * @return the number of tag values the call asked for, across all of
+		 *         its images, or the number of tag values it wrote.
+		 */
+		public int getTagsRequested() {
+			return tagsRequested;
+		}
+
+		/**
+		 * @return the number of tag values ExifTool returned, across all of
+		 *         the images of the call; always <code>0</code> for writes.
+		 */
+		public int getTagsFound() {
+			return tagsFound;
+		}
+
+		/**
+		 * @return the number of bytes of output read from ExifTool.
+		 */
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getQueueTime() {
+			return elapsed(startTime, writeStartTime);
+		}
+
+		public long getWriteTime() {
+			return elapsed(writeStartTime, writeEndTime);
+		}
+
+		public long getExecutionTime() {
+			return elapsed(writeEndTime, responseTime);
+		}
+
+		public long getParseTime() {
+			return elapsed(responseTime, endTime);
+		}
+
+		/**
+		 * @return the time from the call being made until it completed.
+		 */
+		public long getTotalTime() {
+			return elapsed(startTime, endTime);
+		}
+
+		@Override
+		public String toString() {
+			return "RequestMetrics[daemon=" + daemon + ", write=" + write
+					+ ", failed=" + failed + ", images=" + imageCount
+					+ ", tagsRequested=" + tagsRequested + ", tagsFound="
+					+ tagsFound + ", bytesRead=" + bytesRead + ", queue="
+					+ getQueueTime() + "ns, write=" + getWriteTime()
+					+ "ns, execution=" + getExecutionTime() + "ns, parse="
+					+ getParseTime() + "ns]";
+		}
+
+		/**
+		 * Used to record the completion of the call and report it to the
+		 * listener.
+		 */
+		void completed(boolean failed) {
+			endTime = System.nanoTime();
+			this.failed = failed;
+
+			// Phases that never started (e.g. on failure) take no time.
+			if (writeStartTime == 0)
+				writeStartTime = endTime;
+			if (writeEndTime == 0)
+				writeEndTime = endTime;
+			if (responseTime == 0)
+				responseTime = endTime;
+
+			if (results != null) {
+				for (Map<Tag, String> resultMap : results)
+					tagsFound += resultMap.size();
+			}
+
+			try {
+				listener.requestCompleted(this);
+			} catch (RuntimeException e) {
+				// Never let a listener take down the thread notifying it.
+				log("\tMetricsListener %s threw an exception: %s", listener, e);
+			}
+		}
+
+		/**
+		 * Used to record a line of the response having been read.
+		 */
+		void lineRead(int length) {
+			if (responseTime == 0)
+				responseTime = System.nanoTime();
+
+			bytesRead += length;
+		}
+
+		private static long elapsed(long from, long to) {
+			long elapsed = to - from;
+			return (elapsed < 0 ? 0 : elapsed);
+		}
+	}
+
+	/**
+	 * Enum used to pre-define a convenient list of tags that can be easily
+	 * extracted from images using this class with an external install of
+	 * ExifTool.
+	 * <p/>
+	 * Each tag defined also includes a type hint for the parsed value
+	 * associated with it when the default {@link Format#NUMERIC} value format
+	 * is used.
+	 * <p/>
+	 * All replies from ExifTool are parsed as {@link String}s and using the
+	 * type hint from each {@link Tag} can easily be converted to the correct
+	 * data format by using the provided {@link Tag#parseValue(Tag, String)}
+	 * method.
+	 * <p/>
+	 * This class does not make an attempt at converting the value automatically
+	 * in case the caller decides they would prefer tag values returned in
+	 * {@link Format#HUMAN_READABLE} format and to avoid any compatibility
+	 * issues with future versions of ExifTool if a tag's return value is
+	 * changed. This approach to leaving returned tag values as strings until
+	 * the caller decides they want to parse them is a safer and more robust
+	 * approach.
+	 * <p/>
+	 * The types provided by each tag are merely a hint based on the <a
+	 * href="http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/index.html"
+	 * >ExifTool Tag Guide</a> by Phil Harvey; the caller is free to parse or
+	 * process the returned {@link String} values any way they wish.
+	 * <h3>Tag Support</h3>
+	 * ExifTool is capable of parsing almost every tag known to man (1000+), but
+	 * this class makes an attempt at pre-defining a convenient list of the most
+	 * common tags for use.
+	 * <p/>
+	 * This list was determined by looking at the common metadata tag values
+	 * written to images by popular mobile devices (iPhone, Android) as well as
+	 * cameras like simple point and shoots as well as DSLRs. As an additional
+	 * source of input the list of supported/common EXIF formats that Flickr
+	 * supports was also reviewed to ensure the most common/useful tags were
+	 * being covered here.
+	 * <p/>
+	 * Please email me or <a
+	 * href="https://github.com/thebuzzmedia/imgscalr/issues">file an issue</a>
+	 * if you think this list is missing a commonly used tag that should be
+	 * added to it.
+	 * 
+	 * @author Riyad Kalla (software@thebuzzmedia.com)
+	 * @since 1.1
+	 */
+	public enum Tag {
+		ISO("ISO", Integer.class), APERTURE("ApertureValue", Double.class), WHITE_BALANCE(
+				"WhiteBalance", Integer.class), CONTRAST("Contrast",
+				Integer.class), SATURATION("Saturation", Integer.class), SHARPNESS(
+				"Sharpness", Integer.class), SHUTTER_SPEED("ShutterSpeedValue",
+				Double.class), DIGITAL_ZOOM_RATIO("DigitalZoomRatio",
+				Double.class), IMAGE_WIDTH("ImageWidth", Integer.class), IMAGE_HEIGHT(
+				"ImageHeight", Integer.class), X_RESOLUTION("XResolution",
+				Double.class), Y_RESOLUTION("YResolution", Double.class), FLASH(
+				"Flash", Integer.class), METERING_MODE("MeteringMode",
+				Integer.class), FOCAL_LENGTH("FocalLength", Double.class), FOCAL_LENGTH_35MM(
+				"FocalLengthIn35mmFormat", Integer.class), EXPOSURE_TIME(
+				"ExposureTime", Double.class), EXPOSURE_COMPENSATION(
+				"ExposureCompensation", Double.class), EXPOSURE_PROGRAM(
+				"ExposureProgram", Integer.class), ORIENTATION("Orientation",
+				Integer.class), COLOR_SPACE("ColorSpace", Integer.class), SENSING_METHOD(
+				"SensingMethod", Integer.class), SOFTWARE("Software",
+				String.class), MAKE("Make", String.class), MODEL("Model",
+				String.class), LENS_MAKE("LensMake", String.class), LENS_MODEL(
+				"LensModel", String.class), OWNER_NAME("OwnerName",
+				String.class), TITLE("XPTitle", String.class), AUTHOR(
+				"XPAuthor", String.class), SUBJECT("XPSubject", String.class), KEYWORDS(
+				"XPKeywords", String.class), COMMENT("XPComment", String.class), RATING(
+				"Rating", Integer.class), RATING_PERCENT("RatingPercent",
+				Integer.class), DATE_TIME_ORIGINAL("DateTimeOriginal",
+				String.class), CREATION_DATE("CreationDate", String.class), GPS_LATITUDE(
+				"GPSLatitude", Double.class), GPS_LATITUDE_REF(
+				"GPSLatitudeRef", String.class), GPS_LONGITUDE("GPSLongitude",
+				Double.class), GPS_LONGITUDE_REF("GPSLongitudeRef",
+				String.class), GPS_ALTITUDE("GPSAltitude", Double.class), GPS_ALTITUDE_REF(
+				"GPSAltitudeRef", Integer.class), GPS_SPEED("GPSSpeed",
+				Double.class), GPS_SPEED_REF("GPSSpeedRef", String.class), GPS_PROCESS_METHOD(
+				"GPSProcessingMethod", String.class), GPS_BEARING(
+				"GPSDestBearing", Double.class), GPS_BEARING_REF(
+				"GPSDestBearingRef", String.class), GPS_TIMESTAMP(
+				"GPSTimeStamp", String.class), ROTATION("Rotation",Integer.class),
+				EXIF_VERSION("ExifVersion",String.class), LENS_ID("LensID",String.class),
+				COPYRIGHT("Copyright", String.class), ARTIST("Artist", String.class),
+                SUB_SEC_TIME_ORIGINAL("SubSecTimeOriginal", Integer.class),
+                OBJECT_NAME("ObjectName", String.class), CAPTION_ABSTRACT("Caption-Abstract",
+                String.class), CREATOR("Creator", String.class), IPTC_KEYWORDS("Keywords",
+                String.class), COPYRIGHT_NOTICE("CopyrightNotice", String.class),
+                FILE_TYPE("FileType", String.class), AVG_BITRATE("AvgBitrate", String.class),
+                MIME_TYPE("MIMEType", String.class);
+
+		private static final Map<String, Tag> TAG_LOOKUP_MAP;
+
+		/**
+		 * Open-addressing hash table of all tags, keyed by the hash of their
+		 * names, used by {@link #forName(CharSequence, int, int)} and
+		 * {@link #forName(byte[], int, int)} to look tags up by a region of a
+		 * larger string or buffer without creating a key string.
+		 */
+		private static final Tag[] TAG_HASH_TABLE;
+
+		/**
+		 * Initializer used to init the <code>static final</code> tag/name
+		 * lookup map used by all instances of this class.
+		 */
+		static {
+			Tag[] values = Tag.values();
+			TAG_LOOKUP_MAP = new HashMap<String, ExifTool.Tag>(
+					values.length * 3);
+
+			for (int i = 0; i < values.length; i++) {
+				Tag tag = values[i];
+				TAG_LOOKUP_MAP.put(tag.name, tag);
+			}
+
+			// Keep the table at most 1/4 full so probe chains stay short.
+			int capacity = Integer.highestOneBit(values.length * 4 - 1) << 1;
+			TAG_HASH_TABLE = new Tag[capacity];
+
+			for (int i = 0; i < values.length; i++) {
+				Tag tag = values[i];
+				int index = hash(tag.name, 0, tag.name.length())
+						& (capacity - 1);
+
+				while (TAG_HASH_TABLE[index] != null)
+					index = (index + 1) & (capacity - 1);
+
+				TAG_HASH_TABLE[index] = tag;
+			}
+		}
+
+		/**
+		 * Used to get the {@link Tag} identified by the given, case-sensitive,
+		 * tag name.
+		 * 
+		 * @param name
+		 *            The case-sensitive name of the tag that will be searched
+		 *            for.
+		 * 
+		 * @return the {@link Tag} identified by the given, case-sensitive, tag
+		 *         name or <code>null</code> if one couldn't be found.
+		 */
+		public static Tag forName(String name) {
+			return TAG_LOOKUP_MAP.get(name);
+		}
+
+		/**
+		 * Used to get the {@link Tag} identified by the given region of a
+		 * larger character sequence (e.g. a line of ExifTool output), without
+		 * creating a {@link String} for the name.
+		 * 
+		 * @param chars
+		 *            The characters containing the tag name.
+		 * @param start
+		 *            The index of the first character of the name.
+		 * @param end
+		 *            The index after the last character of the name.
+		 * 
+		 * @return the {@link Tag} identified by the given, case-sensitive, tag
+		 *         name or <code>null</code> if one couldn't be found.
+		 */
+		public static Tag forName(CharSequence chars, int start, int end) {
+			int mask = TAG_HASH_TABLE.length - 1;
+			int length = end - start;
+			Tag tag;
+
+			for (int index = hash(chars, start, end) & mask; (tag = TAG_HASH_TABLE[index]) != null; index = (index + 1)
+					& mask) {
+				String name = tag.name;
+
+				if (name.length() != length)
+					continue;
+
+				int i = 0;
+
+				while (i < length && name.charAt(i) == chars.charAt(start + i))
+					i++;
+
+				if (i == length)
+					return tag;
+			}
+
+			return null;
+		}
+
+		/**
+		 * Used to get the {@link Tag} identified by the given region of a
+		 * buffer of raw ExifTool output, without creating a {@link String}
+		 * for the name. As all tag names are ASCII, the bytes are compared to
+		 * the characters of the names directly.
+		 * 
+		 * @param bytes
+		 *            The bytes containing the tag name.
+		 * @param start
+		 *            The index of the first byte of the name.
+		 * @param end
+		 *            The index after the last byte of the name.
+		 * 
+		 * @return the {@link Tag} identified by the given, case-sensitive, tag
+		 *         name or <code>null</code> if one couldn't be found.
+		 */
+		public static Tag forName(byte[] bytes, int start, int end) {
+			int mask = TAG_HASH_TABLE.length - 1;
+			int length = end - start;
+			int hash = 0;
+			Tag tag;
+
+			for (int i = start; i < end; i++)
+				hash = 31 * hash + (bytes[i] & 0xFF);
+
+			for (int index = hash & mask; (tag = TAG_HASH_TABLE[index]) != null; index = (index + 1)
+					& mask) {
+				String name = tag.name;
+
+				if (name.length() != length)
+					continue;
+
+				int i = 0;
+
+				while (i < length && name.charAt(i) == bytes[start + i])
+					i++;
+
+				if (i == length)
+					return tag;
+			}
+
+			return null;
+		}
+
+		/**
+		 * @return the same hash {@link String#hashCode()} would return for
+		 *         the given region of characters.
+		 */
+		private static int hash(CharSequence chars, int start, int end) {
+			int hash = 0;
+
+			for (int i = start; i < end; i++)
+				hash = 31 * hash + chars.charAt(i);
+
+			return hash;
+		}
+
+		/**
+		 * Convenience method used to convert the given string Tag value
+		 * (returned from the external ExifTool process) into the type described
+		 * by the associated {@link Tag}.
+		 * 
+		 * @param <T>
+		 *            The type of the returned value.
+		 * @param tag
+		 *            The {@link Tag} whose value this is. The tag's type hint
+		 *            will be queried to determine how to convert this string
+		 *            value.
+		 * @param value
+		 *            The {@link String} representation of the tag's value as
+		 *            parsed from the image.
+		 * 
+		 * @return the given string value converted to a native Java type (e.g.
+		 *         Integer, Double, etc.).
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>tag</code> is <code>null</code>.
+		 * @throws NumberFormatException
+		 *             if any exception occurs while trying to parse the given
+		 *             <code>value</code> to any of the supported numeric types
+		 *             in Java via calls to the respective <code>parseXXX</code>
+		 *             methods defined on all the numeric wrapper classes (e.g.
+		 *             {@link Integer#parseInt(String)} ,
+		 *             {@link Double#parseDouble(String)} and so on).
+		 * @throws ClassCastException
+		 *             if the type defined by <code>T</code> is incompatible
+		 *             with the type defined by {@link Tag#getType()} returned
+		 *             by the <code>tag</code> argument passed in. This class
+		 *             performs an implicit/unchecked cast to the type
+		 *             <code>T</code> before returning the parsed result of the
+		 *             type indicated by {@link Tag#getType()}. If the types do
+		 *             not match, a <code>ClassCastException</code> will be
+		 *             generated by the VM.
+		 */
+		@SuppressWarnings("unchecked")
+		public static <T> T parseValue(Tag tag, String value)
+				throws IllegalArgumentException, NumberFormatException {
+			if (tag == null)
+				throw new IllegalArgumentException("tag cannot be null");
+
+			T result = null;
+
+			// Check that there is work to do first.
+			if (value != null) {
+				Class<?> type = tag.type;
+
+				if (Boolean.class.isAssignableFrom(type))
+					result = (T) Boolean.valueOf(value);
+				else if (Byte.class.isAssignableFrom(type))
+					result = (T) Byte.valueOf(Byte.parseByte(value));
+				else if (Integer.class.isAssignableFrom(type))
+					result = (T) Integer.valueOf(Integer.parseInt(value));
+				else if (Short.class.isAssignableFrom(type))
+					result = (T) Short.valueOf(Short.parseShort(value));
+				else if (Long.class.isAssignableFrom(type))
+					result = (T) Long.valueOf(Long.parseLong(value));
+				else if (Float.class.isAssignableFrom(type))
+					result = (T) Float.valueOf(Float.parseFloat(value));
+				else if (Double.class.isAssignableFrom(type))
+					result = (T) Double.valueOf(Double.parseDouble(value));
+				else if (Character.class.isAssignableFrom(type))
+					result = (T) Character.valueOf(value.charAt(0));
+				else if (String.class.isAssignableFrom(type))
+					result = (T) value;
+			}
+
+			return result;
+		}
+
+		/**
+		 * Used to get the name of the tag (e.g. "Orientation", "ISO", etc.).
+		 * 
+		 * @return the name of the tag (e.g. "Orientation", "ISO", etc.).
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Used to get a hint for the native type of this tag's value as
+		 * specified by Phil Harvey's <a href=
+		 * "http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/index.html"
+		 * >ExifTool Tag Guide</a>.
+		 * 
+		 * @return a hint for the native type of this tag's value.
+		 */
+		public Class<?> getType() {
+			return type;
+		}
+
+		private String name;
+		private Class<?> type;
+
+		private Tag(String name, Class<?> type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Class used to hold the tag values returned by a query.
+	 * <p/>
+	 * This is a {@link Map} (in {@link Tag} declaration order, like an
+	 * {@link java.util.EnumMap}) backed by a flat array indexed by
+	 * {@link Tag#ordinal()}, so storing and looking up a value is a single
+	 * array access and no entry objects are created per value.
+	 * <p/>
+	 * In addition to the raw {@link String} values, numeric values can be
+	 * read using {@link #getInt(Tag)} and {@link #getDouble(Tag)}. Each value
+	 * is only parsed the first time it is asked for and the parsed primitive is
+	 * cached, without being boxed, for subsequent calls. Numeric values are
+	 * only guaranteed to parse when they were queried in
+	 * {@link Format#NUMERIC} format.
+	 * <p/>
+	 * The warning and error messages ExifTool printed about the image while
+	 * reading its values are available from {@link #getMessages()}; they are
+	 * not part of the map itself.
+	 * <p/>
+	 * {@link ExifTool#getImageMeta(File, Tag...)} and
+	 * {@link ExifTool#getImageMeta(File, Format, Tag...)} still declare a
+	 * <code>Map&lt;Tag, String&gt;</code>, as they did in 1.1, but return an
+	 * instance of this class.
+	 * <p/>
+	 * Like {@link java.util.HashMap}, this class is not thread-safe; it must
+	 * be synchronized externally if it is modified or read from multiple
+	 * threads at the same time.
+	 * 
+	 * @since 1.2
+	 */
+	public static class TagValueMap extends AbstractMap<Tag, String> {
+		private static final Tag[] TAGS = Tag.values();
+
+		private final String[] values;
+		private int size;
+
+		/*
+		 * Lazily created caches of the parsed numeric values, a flag is set
+		 * for every value that has been parsed since it was last stored.
+		 */
+		private int[] intValues;
+		private boolean[] intParsed;
+		private double[] doubleValues;
+		private boolean[] doubleParsed;
+
+		// Lazily created, most images have no messages.
+		private List<String> messages;
+
+		public TagValueMap() {
+			values = new String[TAGS.length];
+		}
+
+		/**
+		 * Used to get the warning and error messages ExifTool printed about
+		 * the image while reading the values in this map (e.g.
+		 * "<code>Warning: Bad MakerNotes directory - image.jpg</code>").
+		 * <p/>
+		 * Values returned from a {@link MetadataCache} carry no messages, only
+		 * the values read from ExifTool by the call do.
+		 * 
+		 * @return the messages, in the order ExifTool printed them; an empty
+		 *         list if there were none.
+		 */
+		public List<String> getMessages() {
+			if (messages == null)
+				return Collections.emptyList();
+
+			return Collections.unmodifiableList(messages);
+		}
+
+		void addMessage(String message) {
+			if (messages == null)
+				messages = new ArrayList<String>(2);
+
+			messages.add(message);
+		}
+
+		void addMessages(TagValueMap map) {
+			if (map.messages != null)
+				for (int i = 0, size = map.messages.size(); i < size; i++)
+					addMessage(map.messages.get(i));
+		}
+
+		/**
+		 * Used to get the value of the given tag parsed as an
+		 * <code>int</code>.
+		 * 
+		 * @param tag
+		 *            The tag to get the value of.
+		 * 
+		 * @return the value of the given tag parsed as an <code>int</code>.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>tag</code> is <code>null</code>.
+		 * @throws NumberFormatException
+		 *             if there is no value for the given tag or it is not an
+		 *             integer.
+		 */
+		public int getInt(Tag tag) throws IllegalArgumentException,
+				NumberFormatException {
+			if (tag == null)
+				throw new IllegalArgumentException("tag cannot be null");
+
+			int index = tag.ordinal();
+
+			if (intParsed == null) {
+				intValues = new int[TAGS.length];
+				intParsed = new boolean[TAGS.length];
+			}
+
+			if (!intParsed[index]) {
+				intValues[index] = Integer.parseInt(values[index]);
+				intParsed[index] = true;
+			}
+
+			return intValues[index];
+		}
+
+		/**
+		 * Used to get the value of the given tag parsed as an
+		 * <code>int</code>, or the given default value if there is no value
+		 * for the tag.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>tag</code> is <code>null</code>.
+		 * @throws NumberFormatException
+		 *             if the value of the given tag is not an integer.
+		 */
+		public int getInt(Tag tag, int defaultValue)
+				throws IllegalArgumentException, NumberFormatException {
+			if (tag == null)
+				throw new IllegalArgumentException("tag cannot be null");
+
+			return (values[tag.ordinal()] == null ? defaultValue : getInt(tag));
+		}
+
+		/**
+		 * Used to get the value of the given tag parsed as a
+		 * <code>double</code>.
+		 * 
+		 * @param tag
+		 *            The tag to get the value of.
+		 * 
+		 * @return the value of the given tag parsed as a <code>double</code>.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>tag</code> is <code>null</code>.
+		 * @throws NumberFormatException
+		 *             if there is no value for the given tag or it is not a
+		 *             number.
+		 */
+		public double getDouble(Tag tag) throws IllegalArgumentException,
+				NumberFormatException {
+			if (tag == null)
+				throw new IllegalArgumentException("tag cannot be null");
+
+			int index = tag.ordinal();
+
+			if (doubleParsed == null) {
+				doubleValues = new double[TAGS.length];
+				doubleParsed = new boolean[TAGS.length];
+			}
+
+			if (!doubleParsed[index]) {
+				String value = values[index];
+
+				// Double.parseDouble(null) throws a NullPointerException.
+				if (value == null)
+					throw new NumberFormatException("null");
+
+				doubleValues[index] = Double.parseDouble(value);
+				doubleParsed[index] = true;
+			}
+
+			return doubleValues[index];
+		}
+
+		/**
+		 * Used to get the value of the given tag parsed as a
+		 * <code>double</code>, or the given default value if there is no value
+		 * for the tag.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>tag</code> is <code>null</code>.
+		 * @throws NumberFormatException
+		 *             if the value of the given tag is not a number.
+		 */
+		public double getDouble(Tag tag, double defaultValue)
+				throws IllegalArgumentException, NumberFormatException {
+			if (tag == null)
+				throw new IllegalArgumentException("tag cannot be null");
+
+			return (values[tag.ordinal()] == null ? defaultValue
+					: getDouble(tag));
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return (key instanceof Tag && values[((Tag) key).ordinal()] != null);
+		}
+
+		@Override
+		public String get(Object key) {
+			return (key instanceof Tag ? values[((Tag) key).ordinal()] : null);
+		}
+
+		@Override
+		public String put(Tag key, String value) {
+			if (key == null)
+				throw new NullPointerException("key cannot be null");
+			if (value == null)
+				throw new NullPointerException("value cannot be null");
+
+			return set(key.ordinal(), value);
+		}
+
+		@Override
+		public String remove(Object key) {
+			return (key instanceof Tag ? set(((Tag) key).ordinal(), null)
+					: null);
+		}
+
+		@Override
+		public void clear() {
+			for (int i = 0; i < values.length; i++)
+				set(i, null);
+		}
+
+		@Override
+		public Set<Entry<Tag, String>> entrySet() {
+			return new AbstractSet<Entry<Tag, String>>() {
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Entry<Tag, String>> iterator() {
+					return new EntryIterator();
+				}
+			};
+		}
+
+		/**
+		 * Used to store (or remove, if <code>value</code> is
+		 * <code>null</code>) the value at the given index, invalidating any
+		 * cached numeric value.
+		 * 
+		 * @return the previous value.
+		 */
+		private String set(int index, String value) {
+			String previous = values[index];
+
+			if (previous == null && value != null)
+				size++;
+			else if (previous != null && value == null)
+				size--;
+
+			values[index] = value;
+
+			if (intParsed != null)
+				intParsed[index] = false;
+			if (doubleParsed != null)
+				doubleParsed[index] = false;
+
+			return previous;
+		}
+
+		private class EntryIterator implements Iterator<Entry<Tag, String>> {
+			private int next = findNext(0);
+			private int last = -1;
+
+			public boolean hasNext() {
+				return next < values.length;
+			}
+
+			public Entry<Tag, String> next() {
+				if (next >= values.length)
+					throw new NoSuchElementException();
+
+				last = next;
+				next = findNext(next + 1);
+				return new ValueEntry(last);
+			}
+
+			public void remove() {
+				if (last == -1)
+					throw new IllegalStateException();
+
+				set(last, null);
+				last = -1;
+			}
+
+			private int findNext(int index) {
+				while (index < values.length && values[index] == null)
+					index++;
+
+				return index;
+			}
+		}
+
+		private class ValueEntry implements Entry<Tag, String> {
+			private final int index;
+
+			public ValueEntry(int index) {
+				this.index = index;
+			}
+
+			public Tag getKey() {
+				return TAGS[index];
+			}
+
+			public String getValue() {
+				return values[index];
+			}
+
+			public String setValue(String value) {
+				return put(TAGS[index], value);
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				if (!(obj instanceof Entry))
+					return false;
+
+				Entry<?, ?> entry = (Entry<?, ?>) obj;
+				Object value = values[index];
+
+				return TAGS[index] == entry.getKey()
+						&& (value == null ? entry.getValue() == null : value
+								.equals(entry.getValue()));
+			}
+
+			@Override
+			public int hashCode() {
+				Object value = values[index];
+				return TAGS[index].hashCode()
+						^ (value == null ? 0 : value.hashCode());
+			}
+
+			@Override
+			public String toString() {
+				return TAGS[index] + "=" + values[index];
+			}
+		}
+	}
+
+	/**
+	 * Class used to hold the outcome of writing tag values to one or more
+	 * images: how many images ExifTool updated, left unchanged (because they
+	 * already held the given values) or failed to write, together with the
+	 * warning and error messages it printed.
+	 * <p/>
+	 * The counts are taken from the summary ExifTool prints at the end of
+	 * every write (e.g. "<code>1 image files updated</code>"), so callers do
+	 * not need to read the images back to find out whether a write worked.
+	 * Messages naming an image (e.g. "<code>Error: Not a valid JPG - path</code>")
+	 * are also available per image, and an image is considered failed when
+	 * ExifTool printed an error about it.
+	 * 
+	 * @since 1.2
+	 */
+	public static class WriteResult {
+		private int updatedCount;
+		private int unchangedCount;
+		private int failedCount;
+
+		// Lazily created, most writes print no messages.
+		private List<String> messages;
+		private Map<File, List<String>> imageMessageMap;
+		private Set<File> failedSet;
+
+		WriteResult() {
+			// Only created by ExifTool.
+		}
+
+		/**
+		 * @return the number of images ExifTool wrote the new values to.
+		 */
+		public int getUpdatedCount() {
+			return updatedCount;
+		}
+
+		/**
+		 * @return the number of images that already held the given values,
+		 *         which ExifTool left untouched.
+		 */
+		public int getUnchangedCount() {
+			return unchangedCount;
+		}
+
+		/**
+		 * @return the number of images ExifTool failed to write.
+		 */
+		public int getFailedCount() {
+			return failedCount;
+		}
+
+		/**
+		 * @return <code>true</code> if no image failed to be written.
+		 */
+		public boolean isSuccess() {
+			return (failedCount == 0);
+		}
+
+		/**
+		 * @return the warning and error messages ExifTool printed while
+		 *         writing, in the order it printed them; an empty list if there
+		 *         were none.
+		 */
+		public List<String> getMessages() {
+			if (messages == null)
+				return Collections.emptyList();
+
+			return Collections.unmodifiableList(messages);
+		}
+
+		/**
+		 * @return the warning and error messages ExifTool printed about the
+		 *         given image; an empty list if there were none.
+		 */
+		public List<String> getMessages(File image) {
+			List<String> imageMessages = (imageMessageMap == null ? null
+					: imageMessageMap.get(image));
+
+			if (imageMessages == null)
+				return Collections.emptyList();
+
+			return Collections.unmodifiableList(imageMessages);
+		}
+
+		/**
+		 * @return the images that failed to be written; an empty set if there
+		 *         were none.
+		 */
+		public Set<File> getFailedImages() {
+			if (failedSet == null)
+				return Collections.emptySet();
+
+			return Collections.unmodifiableSet(failedSet);
+		}
+
+		/**
+		 * @return <code>true</code> if the given image failed to be written.
+		 */
+		public boolean isFailed(File image) {
+			return (failedSet != null && failedSet.contains(image));
+		}
+
+		@Override
+		public String toString() {
+			return "WriteResult [updated=" + updatedCount + ", unchanged="
+					+ unchangedCount + ", failed=" + failedCount
+					+ ", messages=" + getMessages() + "]";
+		}
+
+		/**
+		 * Used to add the outcome of a single write command to this result.
+		 * 
+		 * @param pathImageMap
+		 *            The images written by the command, keyed by the path
+		 *            they were handed to ExifTool with.
+		 */
+		void add(WriteResponseHandler handler, Map<String, File> pathImageMap) {
+			updatedCount += handler.updatedCount;
+			unchangedCount += handler.unchangedCount;
+			failedCount += handler.failedCount;
+
+			int failedImages = 0;
+
+			if (handler.messages != null) {
+				for (int i = 0, size = handler.messages.size(); i < size; i++) {
+					String message = handler.messages.get(i);
+					File image = null;
+
+					addMessage(message);
+
+					if (pathImageMap.size() == 1)
+						image = pathImageMap.values().iterator().next();
+					else {
+						int index = message.lastIndexOf(" - ");
+
+						if (index != -1)
+							image = lookupPath(pathImageMap,
+									message.substring(index + 3));
+					}
+
+					if (image == null)
+						continue;
+
+					addMessage(image, message);
+
+					if (message.startsWith("Error") && addFailed(image))
+						failedImages++;
+				}
+			}
+
+			/*
+			 * ExifTool reported failures without naming the images (e.g.
+			 * "Nothing to do."); if nothing was written, they all failed.
+			 */
+			if (handler.failedCount > failedImages
+					&& handler.updatedCount + handler.unchangedCount == 0) {
+				for (File image : pathImageMap.values())
+					addFailed(image);
+			}
+		}
+
+		/**
+		 * Used to add a write command that failed altogether (e.g. because the
+		 * ExifTool process died) to this result.
+		 */
+		void fail(Map<String, File> pathImageMap, Throwable failure) {
+			String message = "Error: " + failure.getMessage();
+
+			failedCount += pathImageMap.size();
+			addMessage(message);
+
+			for (File image : pathImageMap.values()) {
+				addMessage(image, message);
+				addFailed(image);
+			}
+		}
+
+		private void addMessage(String message) {
+			if (messages == null)
+				messages = new ArrayList<String>(2);
+
+			messages.add(message);
+		}
+
+		private void addMessage(File image, String message) {
+			if (imageMessageMap == null)
+				imageMessageMap = new HashMap<File, List<String>>();
+
+			List<String> imageMessages = imageMessageMap.get(image);
+
+			if (imageMessages == null) {
+				imageMessages = new ArrayList<String>(2);
+				imageMessageMap.put(image, imageMessages);
+			}
+
+			imageMessages.add(message);
+		}
+
+		private boolean addFailed(File image) {
+			if (failedSet == null)
+				failedSet = new HashSet<File>();
+
+			return failedSet.add(image);
+		}
+	}
+
+	/**
+	 * Class used to describe a reusable query: a set of {@link Tag}s and the
+	 * {@link Format} their values are returned in.
+	 * <p/>
+	 * Creating a query encodes the arguments it is sent to ExifTool with
+	 * (e.g. "<code>-n</code>", "<code>-S</code>" and one
+	 * "<code>-TagName</code>" per tag) once, up front, so every call to
+	 * {@link ExifTool#getImageMeta(File, Query)} using it only has to append
+	 * the path of the image to a prebuilt block of bytes instead of rebuilding
+	 * the same argument list over and over again.
+	 * <p/>
+	 * Callers that repeatedly query the same tags (e.g. while processing a
+	 * large number of images) should create the query once and reuse it.
+	 * <p/>
+	 * A query also carries the timeout of the calls made with it, which
+	 * defaults to {@link ExifTool#TIMEOUT}; see {@link #withTimeout(long)}.
+	 * Queries are immutable and can be shared between threads and
+	 * {@link ExifTool} instances.
+	 * 
+	 * @since 1.2
+	 */
+	public static class Query {
+		private final Format format;
+		private final Tag[] tags;
+
+		/**
+		 * The arguments of this query, excluding the output argument, as
+		 * passed on the command line to non-daemon ExifTool processes.
+		 */
+		private final String[] args;
+
+		/**
+		 * The argument lines of this query, for compact (<code>-S</code>)
+		 * and JSON (<code>-j</code>) output respectively.
+		 */
+		private final byte[] compactArgBlock;
+		private final byte[] jsonArgBlock;
+
+		/**
+		 * The maximum number of milliseconds a call using this query may
+		 * take, or <code>0</code> for no limit.
+		 */
+		private final long timeout;
+
+		/**
+		 * Creates a query for the given tags, returning their values in
+		 * {@link Format#NUMERIC} format.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>tags</code> is <code>null</code> or empty or
+		 *             contains a <code>null</code> tag.
+		 */
+		public Query(Tag... tags) throws IllegalArgumentException {
+			this(Format.NUMERIC, tags);
+		}
+
+		/**
+		 * Creates a query for the given tags, returning their values in the
+		 * given format.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>format</code> is <code>null</code> or if
+		 *             <code>tags</code> is <code>null</code> or empty or
+		 *             contains a <code>null</code> tag.
+		 */
+		public Query(Format format, Tag... tags)
+				throws IllegalArgumentException {
+			if (format == null)
+				throw new IllegalArgumentException("format cannot be null");
+			if (tags == null || tags.length == 0)
+				throw new IllegalArgumentException(
+						"tags cannot be null and must contain 1 or more Tag to query the image for.");
+
+			this.format = format;
+			this.tags = tags.clone();
+
+			List<String> argList = new ArrayList<String>(tags.length + 1);
+
+			if (format == Format.NUMERIC)
+				argList.add("-n"); // numeric output
+
+			for (int i = 0; i < tags.length; i++) {
+				if (tags[i] == null)
+					throw new IllegalArgumentException(
+							"tags cannot contain a null tag.");
+
+				argList.add("-" + tags[i].name);
+			}
+
+			args = argList.toArray(new String[argList.size()]);
+			compactArgBlock = buildArgBlock("-S");
+			jsonArgBlock = buildArgBlock("-j");
+			timeout = TIMEOUT;
+		}
+
+		private Query(Query query, long timeout) {
+			this.format = query.format;
+			this.tags = query.tags;
+			this.args = query.args;
+			this.compactArgBlock = query.compactArgBlock;
+			this.jsonArgBlock = query.jsonArgBlock;
+			this.timeout = timeout;
+		}
+
+		/**
+		 * Used to create a copy of this query whose calls are aborted with a
+		 * {@link CommandTimeoutException} when they take longer than the
+		 * given number of milliseconds, killing the ExifTool process running
+		 * them.
+		 * 
+		 * @param timeout
+		 *            The maximum number of milliseconds a call may take, or
+		 *            <code>0</code> for no limit.
+		 * 
+		 * @return a copy of this query with the given timeout.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>timeout</code> is negative.
+		 */
+		public Query withTimeout(long timeout) throws IllegalArgumentException {
+			if (timeout < 0)
+				throw new IllegalArgumentException("timeout [" + timeout
+						+ "] must be >= 0.");
+
+			return new Query(this, timeout);
+		}
+
+		/**
+		 * @return the format the tag values are returned in.
+		 */
+		public Format getFormat() {
+			return format;
+		}
+
+		/**
+		 * @return a copy of the tags queried.
+		 */
+		public Tag[] getTags() {
+			return tags.clone();
+		}
+
+		/**
+		 * @return the maximum number of milliseconds a call using this query
+		 *         may take, or <code>0</code> for no limit.
+		 */
+		public long getTimeout() {
+			return timeout;
+		}
+
+		@Override
+		public String toString() {
+			return "Query [format=" + format + ", tags="
+					+ Arrays.asList(tags) + ", timeout=" + timeout + "]";
+		}
+
+		private byte[] buildArgBlock(String outputArg) {
+			StringBuilder block = new StringBuilder(32 + args.length * 24);
+
+			block.append(outputArg).append('\n');
+
+			for (int i = 0; i < args.length; i++)
+				block.append(args[i]).append('\n');
+
+			return encodeArgs(block.toString());
+		}
+	}
+
+	/**
+	 * Class used to cache the tag values read from images, so repeated
+	 * queries of images that have not changed can be answered without a round
+	 * trip to ExifTool.
+	 * <p/>
+	 * A cache is enabled on an {@link ExifTool} instance using
+	 * {@link ExifTool#setMetadataCache(MetadataCache)} and is then consulted by
+	 * the synchronous <code>getImageMeta</code> methods. A single cache can be
+	 * shared by multiple instances.
+	 * <h3>Cache Keys</h3>
+	 * By default images are identified by their canonical path and cached
+	 * values are discarded as soon as the length or last-modified time of the
+	 * image no longer matches the one it had when the values were read. Note
+	 * that changes that preserve both (e.g. a rewrite within the resolution of
+	 * the file system's timestamps) are not detected.
+	 * <p/>
+	 * Alternatively, images can be identified by a SHA-1 hash of their
+	 * contents, which detects every change and lets identical copies of an
+	 * image share cached values, at the cost of reading the entire image on
+	 * every lookup.
+	 * <h3>Granularity</h3>
+	 * Values are cached per tag and {@link Format}, including the fact that a
+	 * tag was queried but had no value. When only some of the tags of a query
+	 * are cached, only the remaining ones are queried from ExifTool, so a
+	 * query can reuse the values cached by a narrower query before it.
+	 * <h3>Eviction</h3>
+	 * The cache holds the values of at most the given number of images,
+	 * evicting the least-recently used image when it is full.
+	 * <p/>
+	 * Calls to <code>setImageMeta</code> on an instance using the cache
+	 * automatically invalidate the values cached for the written image; images
+	 * modified by other means are detected using the cache key described
+	 * above, or can be invalidated explicitly using {@link #invalidate(File)}.
+	 * <h3>Persistence</h3>
+	 * A cache can optionally be backed by a store on disk (see
+	 * {@link #MetadataCache(int, boolean, File)}) that every cached value is
+	 * also written to. Images that are not held in memory are looked up in the
+	 * store, so values cached before a restart of the JVM are returned without
+	 * starting ExifTool at all. The store is opened in constant time no matter
+	 * how many images it holds and is not bounded by the maximum number of
+	 * images held in memory; it grows with the number of images it holds until
+	 * it is cleared using {@link #clear()}, the space taken by values that were
+	 * replaced or invalidated is reclaimed automatically. A cache with a store must be closed using
+	 * {@link #close()} when no longer needed.
+	 * <p/>
+	 * This class is thread-safe.
+	 * 
+	 * @since 1.2
+	 */
+	public static class MetadataCache {
+		private static final Tag[] NO_TAGS = new Tag[0];
+		private static final int FORMAT_COUNT = Format.values().length;
+		private static final int TAG_COUNT = Tag.values().length;
+
+		private final boolean hashContents;
+		private final LinkedHashMap<String, CacheEntry> entryMap;
+		private final MetadataStore store;
+
+		private long hitCount;
+		private long missCount;
+
+		/**
+		 * Creates a cache, keyed by the path, length and last-modified time
+		 * of images, holding the values of at most the given number of
+		 * images.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>maxEntries</code> is less than 1.
+		 */
+		public MetadataCache(int maxEntries) throws IllegalArgumentException {
+			this(maxEntries, false);
+		}
+
+		/**
+		 * Creates a cache holding the values of at most the given number of
+		 * images.
+		 * 
+		 * @param maxEntries
+		 *            The maximum number of images values are cached for.
+		 * @param hashContents
+		 *            <code>true</code> to key images by a hash of their
+		 *            contents, <code>false</code> to key them by their path,
+		 *            length and last-modified time.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>maxEntries</code> is less than 1.
+		 */
+		public MetadataCache(int maxEntries, boolean hashContents)
+				throws IllegalArgumentException {
+			this(maxEntries, hashContents, (MetadataStore) null);
+		}
+
+		/**
+		 * Creates a cache holding the values of at most the given number of
+		 * images in memory, backed by the given store on disk.
+		 * <p/>
+		 * The store is created if it does not exist yet; otherwise the values
+		 * it holds are made available to the cache. The store uses the given
+		 * file and a second file with the same name and an
+		 * "<code>.index</code>" suffix.
+		 * 
+		 * @param maxEntries
+		 *            The maximum number of images values are cached for in
+		 *            memory.
+		 * @param hashContents
+		 *            <code>true</code> to key images by a hash of their
+		 *            contents, <code>false</code> to key them by their path,
+		 *            length and last-modified time.
+		 * @param storeFile
+		 *            The file holding the store.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>maxEntries</code> is less than 1 or if
+		 *             <code>storeFile</code> is <code>null</code>.
+		 * @throws IOException
+		 *             if the store cannot be opened or created, is not a valid
+		 *             store or is already in use.
+		 */
+		public MetadataCache(int maxEntries, boolean hashContents,
+				File storeFile) throws IllegalArgumentException, IOException {
+			this(maxEntries, hashContents, openStore(storeFile));
+		}
+
+		private MetadataCache(final int maxEntries, boolean hashContents,
+				MetadataStore store)
+				throws IllegalArgumentException {
+			if (maxEntries < 1)
+				throw new IllegalArgumentException("maxEntries ["
+						+ maxEntries + "] must be >= 1");
+
+			this.hashContents = hashContents;
+			this.store = store;
+
+			// Access-ordered so the eldest entry is the least-recently used.
+			entryMap = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, CacheEntry> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+
+		/**
+		 * @return the number of times the values of an image were looked up
+		 *         and all the queried tags were cached.
+		 */
+		public synchronized long getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return the number of times the values of an image were looked up
+		 *         and one or more of the queried tags had to be queried from
+		 *         ExifTool.
+		 */
+		public synchronized long getMissCount() {
+			return missCount;
+		}
+
+		/**
+		 * @return the number of images values are currently cached for.
+		 */
+		public synchronized int size() {
+			return entryMap.size();
+		}
+
+		/**
+		 * Used to discard all the cached values, including the values held in
+		 * the store backing this cache, if any.
+		 */
+		public synchronized void clear() {
+			entryMap.clear();
+
+			if (store != null) {
+				try {
+					store.clear();
+				} catch (IOException e) {
+					log("\tUnable to clear metadata store: %s", e);
+				}
+			}
+		}
+
+		/**
+		 * Used to close the store backing this cache, if any, making sure all
+		 * the values written to it are saved to disk. Once closed, the cache
+		 * must not be used anymore.
+		 * 
+		 * @throws IOException
+		 *             if an error occurs closing the store.
+		 */
+		public synchronized void close() throws IOException {
+			entryMap.clear();
+
+			if (store != null)
+				store.close();
+		}
+
+		/**
+		 * Used to discard the values cached for the given image.
+		 * <p/>
+		 * When images are keyed by a hash of their contents, modifying an
+		 * image already changes its key, so there is nothing to discard.
+		 * 
+		 * @param image
+		 *            The image to discard the cached values of.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             if <code>image</code> is <code>null</code>.
+		 */
+		public void invalidate(File image) throws IllegalArgumentException {
+			if (image == null)
+				throw new IllegalArgumentException("image cannot be null");
+
+			if (!hashContents) {
+				String path = getCanonicalPath(image);
+
+				synchronized (this) {
+					entryMap.remove(path);
+
+					if (store != null) {
+						try {
+							store.remove(path);
+						} catch (IOException e) {
+							log("\tUnable to remove [%s] from metadata store: %s",
+									path, e);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Used to create the key the values of the given image are cached
+		 * under, based on its current state.
+		 * 
+		 * @throws IOException
+		 *             if an error occurs reading the image to hash it.
+		 */
+		CacheKey createKey(File image) throws IOException {
+			if (hashContents)
+				return new CacheKey(hash(image), 0, 0);
+
+			// Stat the file before ExifTool reads it, in case it changes.
+			long length = image.length();
+			long lastModified = image.lastModified();
+
+			return new CacheKey(getCanonicalPath(image), length, lastModified);
+		}
+
+		/**
+		 * Used to copy the cached values of the given tags into the given
+		 * result map.
+		 * 
+		 * @return the tags that are not cached and need to be queried from
+		 *         ExifTool, or an empty array if all of them are cached.
+		 */
+		synchronized Tag[] get(CacheKey key, Format format, Tag[] tags,
+				Map<Tag, String> resultMap) {
+			CacheEntry entry = getEntry(key);
+			int formatIndex = format.ordinal();
+			boolean[] queried = (entry == null ? null
+					: entry.queried[formatIndex]);
+			List<Tag> missingList = null;
+
+			for (int i = 0; i < tags.length; i++) {
+				Tag tag = tags[i];
+
+				if (queried != null && queried[tag.ordinal()]) {
+					String value = entry.values[formatIndex].get(tag);
+
+					if (value != null)
+						resultMap.put(tag, value);
+				} else {
+					if (missingList == null)
+						missingList = new ArrayList<Tag>(tags.length);
+
+					missingList.add(tag);
+				}
+			}
+
+			if (missingList == null) {
+				hitCount++;
+				return NO_TAGS;
+			}
+
+			missCount++;
+			return missingList.toArray(new Tag[missingList.size()]);
+		}
+
+		/**
+		 * Used to cache the values of the given tags, as returned by ExifTool.
+		 * Tags without a value in the given map are cached as not being
+		 * present in the image.
+		 */
+		synchronized void put(CacheKey key, Format format, Tag[] tags,
+				Map<Tag, String> values) {
+			CacheEntry entry = getEntry(key);
+
+			if (entry == null) {
+				entry = new CacheEntry(key.length, key.lastModified);
+				entryMap.put(key.name, entry);
+			}
+
+			for (int i = 0; i < tags.length; i++)
+				entry.store(format, tags[i], values.get(tags[i]));
+
+			if (store != null) {
+				try {
+					store.write(key.name, entry);
+				} catch (IOException e) {
+					log("\tUnable to write [%s] to metadata store: %s",
+							key.name, e);
+				}
+			}
+		}
+
+		/**
+		 * @return the entry for the given key, or <code>null</code> if there
+		 *         is none or the image changed since it was created.
+		 */
+		private CacheEntry getEntry(CacheKey key) {
+			CacheEntry entry = entryMap.get(key.name);
+
+			if (entry != null
+					&& (entry.length != key.length || entry.lastModified != key.lastModified)) {
+				entryMap.remove(key.name);
+				entry = null;
+			}
+
+			if (entry == null && store != null) {
+				try {
+					entry = store.read(key);
+				} catch (IOException e) {
+					log("\tUnable to read [%s] from metadata store: %s",
+							key.name, e);
+				}
+
+				if (entry != null)
+					entryMap.put(key.name, entry);
+			}
+
+			return entry;
+		}
+
+		private static MetadataStore openStore(File storeFile)
+				throws IllegalArgumentException, IOException {
+			if (storeFile == null)
+				throw new IllegalArgumentException("storeFile cannot be null");
+
+			return new MetadataStore(storeFile);
+		}
+
+		private static String getCanonicalPath(File image) {
+			try {
+				return image.getCanonicalPath();
+			} catch (IOException e) {
+				return image.getAbsolutePath();
+			}
+		}
+
+		private static String hash(File image) throws IOException {
+			MessageDigest digest;
+
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to support SHA-1.
+				throw new RuntimeException(e);
+			}
+
+			InputStream in = new FileInputStream(image);
+
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+
+				while ((read = in.read(buffer)) != -1)
+					digest.update(buffer, 0, read);
+			} finally {
+				in.close();
+			}
+
+			byte[] hash = digest.digest();
+			StringBuilder name = new StringBuilder(hash.length * 2);
+
+			for (int i = 0; i < hash.length; i++)
+				name.append(Character.forDigit((hash[i] >> 4) & 0xF, 16))
+						.append(Character.forDigit(hash[i] & 0xF, 16));
+
+			return name.toString();
+		}
+
+		/**
+		 * The key an image is cached under along with the state of the image
+		 * the cached values are only valid for.
+		 */
+		private static class CacheKey {
+			final String name;
+			final long length;
+			final long lastModified;
+
+			public CacheKey(String name, long length, long lastModified) {
+				this.name = name;
+				this.length = length;
+				this.lastModified = lastModified;
+			}
+		}
+
+		/**
+		 * The values cached for a single image, per {@link Format}.
+		 */
+		private static class CacheEntry {
+			final long length;
+			final long lastModified;
+			final boolean[][] queried = new boolean[FORMAT_COUNT][];
+			final TagValueMap[] values = new TagValueMap[FORMAT_COUNT];
+
+			public CacheEntry(long length, long lastModified) {
+				this.length = length;
+				this.lastModified = lastModified;
+			}
+
+			/**
+			 * Used to store the queried value of the given tag, a
+			 * <code>null</code> value means the tag is not present in the
+			 * image.
+			 */
+			public void store(Format format, Tag tag, String value) {
+				int formatIndex = format.ordinal();
+
+				if (queried[formatIndex] == null) {
+					queried[formatIndex] = new boolean[TAG_COUNT];
+					values[formatIndex] = new TagValueMap();
+				}
+
+				queried[formatIndex][tag.ordinal()] = true;
+
+				if (value == null)
+					values[formatIndex].remove(tag);
+				else
+					values[formatIndex].put(tag, value);
+			}
+		}
+	}
+
+	/**
+	 * Class used to persist the entries of a {@link MetadataCache} to disk so
+	 * they survive restarts of the JVM.
+	 * <p/>
+	 * Entries are stored in 2 files:
+	 * <ul>
+	 * <li>An append-only log of records, each holding the complete entry of a
+	 * single image (its key, length, last-modified time and the cached values
+	 * of every {@link Format}) protected by a CRC-32 checksum. Updating an
+	 * entry appends a new record; the record it replaces is left in place
+	 * until the log is compacted.</li>
+	 * <li>A memory-mapped, open-addressing hash index (in a file named after the
+	 * log with an "<code>.index</code>" suffix) mapping a 64-bit hash of the
+	 * key of every image to the offset of its latest record in the log.</li>
+	 * </ul>
+	 * Opening a store only maps the index, so it takes the same time no matter
+	 * how many entries it holds; entries are only read from the log when they
+	 * are looked up. The index is rebuilt by scanning the log if it is missing
+	 * or damaged, and records that were only partially written (e.g. because
+	 * the JVM crashed) are detected by their checksum and ignored.
+	 * <p/>
+	 * Once more than half of a log of at least
+	 * {@link #COMPACT_MIN_LENGTH} bytes is taken up by records that were
+	 * replaced or removed, checked when the store is opened and whenever a
+	 * record is written or removed, the live records are copied into a new log
+	 * that is then renamed over the old one. The index is marked invalid while
+	 * the logs are swapped, so a crash at any point leaves a log the index is
+	 * rebuilt from. Where the open log cannot be replaced (e.g. on Windows)
+	 * the log is left as it is.
+	 * <p/>
+	 * A store can only be opened by a single cache at a time; the log is
+	 * locked while it is open. This class is not thread-safe, it is only used
+	 * while holding the lock of the owning {@link MetadataCache}.
+	 * 
+	 * @since 1.2
+	 */
+	private static class MetadataStore {
+		private static final long LOG_MAGIC = 0x4558494654303031L; // EXIFT001
+		private static final long INDEX_MAGIC = 0x4558494649303032L; // EXIFI002
+		private static final int LOG_HEADER_SIZE = 8;
+		private static final int RECORD_HEADER_SIZE = 8;
+
+		// magic (8) + capacity (4) + used slots (4) + log length (8)
+		// + dead length (8)
+		private static final int INDEX_HEADER_SIZE = 32;
+
+		// key hash (8) + record offset (8)
+		private static final int SLOT_SIZE = 16;
+		private static final int INITIAL_CAPACITY = 1024;
+
+		/**
+		 * Record offset of a slot whose key was removed; the slot is kept so
+		 * probing for keys placed after it keeps working.
+		 */
+		private static final long REMOVED_OFFSET = -1;
+
+		/**
+		 * Logs shorter than this are never compacted, the few bytes it would
+		 * save are not worth rewriting them.
+		 */
+		private static final long COMPACT_MIN_LENGTH = 64 * 1024;
+
+		private final File file;
+		private final RandomAccessFile indexFile;
+		private final FileChannel indexChannel;
+
+		// Replaced by the new log when the log is compacted.
+		private RandomAccessFile logFile;
+		private FileChannel logChannel;
+		private FileLock lock;
+
+		private MappedByteBuffer index;
+		private int capacity;
+		private int usedSlots;
+		private long logLength;
+
+		/**
+		 * The number of bytes of the log taken up by records that were
+		 * replaced or removed.
+		 */
+		private long deadLength;
+
+		/**
+		 * Cleared when compacting the log failed, so it is not attempted
+		 * again on every write until the store is reopened.
+		 */
+		private boolean compactable = true;
+
+		public MetadataStore(File file) throws IOException {
+			this.file = file;
+			logFile = new RandomAccessFile(file, "rw");
+			indexFile = new RandomAccessFile(file.getPath() + ".index", "rw");
+			logChannel = logFile.getChannel();
+			indexChannel = indexFile.getChannel();
+
+			FileLock fileLock = null;
+
+			try {
+				try {
+					fileLock = logChannel.tryLock();
+				} catch (OverlappingFileLockException e) {
+					// no-op, already locked by this JVM.
+				}
+
+				if (fileLock == null)
+					throw new IOException("Metadata store [" + file
+							+ "] is already in use.");
+
+				if (logChannel.size() < LOG_HEADER_SIZE) {
+					// A new (or empty) store.
+					ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+					header.putLong(LOG_MAGIC).flip();
+					writeFully(logChannel, header, 0);
+					createIndex(INITIAL_CAPACITY);
+				} else {
+					ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+
+					if (!readFully(header, 0) || header.getLong(0) != LOG_MAGIC)
+						throw new IOException("File [" + file
+								+ "] is not a metadata store.");
+
+					if (!openIndex()) {
+						log("\tRebuilding index of metadata store: %s", file);
+						rebuildIndex();
+					}
+				}
+			} catch (IOException e) {
+				if (fileLock != null)
+					fileLock.release();
+
+				logFile.close();
+				indexFile.close();
+				throw e;
+			}
+
+			lock = fileLock;
+			compactIfNeeded();
+		}
+
+		/**
+		 * Used to read the latest entry stored for the given key.
+		 * 
+		 * @return the entry or <code>null</code> if there is none or it was
+		 *         stored for a different state (length or last-modified time)
+		 *         of the image.
+		 */
+		public MetadataCache.CacheEntry read(MetadataCache.CacheKey key)
+				throws IOException {
+			byte[] payload = null;
+			long hash = hash(key.name);
+			int mask = capacity - 1;
+
+			for (int slot = firstSlot(hash);; slot = (slot + 1) & mask) {
+				int position = slotPosition(slot);
+				long slotHash = index.getLong(position);
+
+				if (slotHash == 0)
+					return null;
+
+				if (slotHash == hash) {
+					long offset = index.getLong(position + 8);
+
+					if (offset == REMOVED_OFFSET)
+						return null;
+
+					payload = readRecord(offset);
+
+					// Guard against 2 keys with the same 64-bit hash.
+					if (payload == null || key.name.equals(parseName(payload)))
+						break;
+				}
+			}
+
+			MetadataCache.CacheEntry entry = parseEntry(payload);
+
+			if (entry == null || entry.length != key.length
+					|| entry.lastModified != key.lastModified)
+				return null;
+
+			return entry;
+		}
+
+		/**
+		 * Used to append the given entry to the log, replacing any entry
+		 * previously stored for the given key.
+		 */
+		public void write(String name, MetadataCache.CacheEntry entry)
+				throws IOException {
+			long offset = appendRecord(formatEntry(name, entry));
+
+			deadLength += recordLength(putSlot(name, hash(name), offset));
+			index.putLong(16, logLength);
+			index.putLong(24, deadLength);
+			compactIfNeeded();
+		}
+
+		/**
+		 * Used to remove the entry stored for the given key, if any.
+		 */
+		public void remove(String name) throws IOException {
+			int slot = findSlot(name, hash(name));
+
+			if (slot != -1) {
+				int position = slotPosition(slot) + 8;
+
+				deadLength += recordLength(index.getLong(position));
+				index.putLong(position, REMOVED_OFFSET);
+				index.putLong(24, deadLength);
+				compactIfNeeded();
+			}
+		}
+
+		/**
+		 * Used to remove all stored entries, truncating the log.
+		 */
+		public void clear() throws IOException {
+			logChannel.truncate(LOG_HEADER_SIZE);
+			logLength = LOG_HEADER_SIZE;
+			deadLength = 0;
+			createIndex(INITIAL_CAPACITY);
+		}
+
+		public void close() throws IOException {
+			try {
+				index.force();
+				logChannel.force(false);
+				lock.release();
+			} finally {
+				logFile.close();
+				indexFile.close();
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if an intact index, consistent with the
+		 *         log, was mapped.
+		 */
+		private boolean openIndex() throws IOException {
+			long size = indexChannel.size();
+
+			if (size < INDEX_HEADER_SIZE)
+				return false;
+
+			ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+			indexChannel.read(header, 0);
+
+			int indexCapacity = header.getInt(8);
+			long indexLogLength = header.getLong(16);
+			long indexDeadLength = header.getLong(24);
+
+			if (header.getLong(0) != INDEX_MAGIC
+					|| indexCapacity < INITIAL_CAPACITY
+					|| Integer.bitCount(indexCapacity) != 1
+					|| size < INDEX_HEADER_SIZE + (long) indexCapacity
+							* SLOT_SIZE
+					|| indexLogLength > logChannel.size()
+					|| indexDeadLength < 0 || indexDeadLength > indexLogLength)
+				return false;
+
+			capacity = indexCapacity;
+			usedSlots = header.getInt(12);
+			logLength = indexLogLength;
+			deadLength = indexDeadLength;
+			index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE);
+			return true;
+		}
+
+		/**
+		 * Used to map a new, empty, index with the given capacity.
+		 */
+		private void createIndex(int newCapacity) throws IOException {
+			index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					INDEX_HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+
+			// The file may still contain the slots of a previous index.
+			for (int i = INDEX_HEADER_SIZE, end = index.capacity(); i < end; i += 8)
+				index.putLong(i, 0);
+
+			capacity = newCapacity;
+			usedSlots = 0;
+
+			if (logLength < LOG_HEADER_SIZE)
+				logLength = LOG_HEADER_SIZE;
+
+			index.putLong(0, INDEX_MAGIC);
+			index.putInt(8, capacity);
+			index.putInt(12, usedSlots);
+			index.putLong(16, logLength);
+			index.putLong(24, deadLength);
+		}
+
+		/**
+		 * Used to rebuild the index by scanning the log from the start,
+		 * stopping at the first damaged record.
+		 */
+		private void rebuildIndex() throws IOException {
+			logLength = LOG_HEADER_SIZE;
+			deadLength = 0;
+			createIndex(INITIAL_CAPACITY);
+
+			long end = logChannel.size();
+			long offset = LOG_HEADER_SIZE;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+			while (offset + RECORD_HEADER_SIZE <= end) {
+				header.clear();
+
+				if (!readFully(header, offset))
+					break;
+
+				int length = header.getInt(0);
+
+				if (length < 0 || offset + RECORD_HEADER_SIZE + length > end)
+					break;
+
+				logLength = offset + RECORD_HEADER_SIZE + length;
+				byte[] payload = readRecord(offset);
+
+				if (payload == null) {
+					logLength = offset;
+					break;
+				}
+
+				String name = new DataInputStream(new ByteArrayInputStream(
+						payload)).readUTF();
+				deadLength += recordLength(putSlot(name, hash(name), offset));
+				offset = logLength;
+			}
+
+			index.putLong(16, logLength);
+			index.putLong(24, deadLength);
+		}
+
+		private void compactIfNeeded() {
+			if (!compactable || logLength < COMPACT_MIN_LENGTH
+					|| deadLength * 2 <= logLength - LOG_HEADER_SIZE)
+				return;
+
+			try {
+				compact();
+			} catch (IOException e) {
+				compactable = false;
+				log("\tUnable to compact metadata store [%s]: %s", file, e);
+			}
+		}
+
+		/**
+		 * Used to copy the live records into a new log, in index order, and
+		 * rename it over the current log. Damaged records are dropped.
+		 */
+		private void compact() throws IOException {
+			long startTime = System.currentTimeMillis();
+			long oldLength = logLength;
+			File compactFile = new File(file.getPath() + ".compact");
+			RandomAccessFile newLogFile = new RandomAccessFile(compactFile,
+					"rw");
+			FileChannel newLogChannel = newLogFile.getChannel();
+			FileLock newLock = null;
+			long[] hashes = new long[usedSlots];
+			long[] offsets = new long[usedSlots];
+			int count = 0;
+			long newLength = LOG_HEADER_SIZE;
+
+			try {
+				// The new log must be locked before it becomes the store.
+				newLock = newLogChannel.tryLock();
+
+				if (newLock == null)
+					throw new IOException("File [" + compactFile
+							+ "] is already in use.");
+
+				newLogChannel.truncate(0);
+
+				ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+				header.putLong(LOG_MAGIC).flip();
+				writeFully(newLogChannel, header, 0);
+
+				for (int slot = 0; slot < capacity; slot++) {
+					int position = slotPosition(slot);
+					long hash = index.getLong(position);
+					long offset = index.getLong(position + 8);
+
+					if (hash == 0 || offset == REMOVED_OFFSET)
+						continue;
+
+					byte[] payload = readRecord(offset);
+
+					if (payload == null)
+						continue;
+
+					ByteBuffer record = createRecord(payload);
+
+					hashes[count] = hash;
+					offsets[count++] = newLength;
+					writeFully(newLogChannel, record, newLength);
+					newLength += record.capacity();
+				}
+
+				newLogChannel.force(false);
+
+				// Rebuilt from the new log if we crash before it is indexed.
+				index.putLong(0, 0);
+				index.force();
+
+				if (!compactFile.renameTo(file))
+					throw new IOException("Unable to rename [" + compactFile
+							+ "] to [" + file + "].");
+			} catch (IOException e) {
+				// The current log and its index are still intact.
+				index.putLong(0, INDEX_MAGIC);
+
+				if (newLock != null)
+					newLock.release();
+
+				newLogFile.close();
+				compactFile.delete();
+				throw e;
+			}
+
+			try {
+				lock.release();
+				logFile.close();
+			} finally {
+				logFile = newLogFile;
+				logChannel = newLogChannel;
+				lock = newLock;
+			}
+
+			logLength = newLength;
+			deadLength = 0;
+			createIndex(capacity);
+			putSlots(hashes, offsets, count);
+			index.force();
+
+			if (DEBUG)
+				log("\tCompacted metadata store [%s] from %d to %d bytes in %d ms",
+						file, oldLength, newLength,
+						(System.currentTimeMillis() - startTime));
+		}
+
+		/**
+		 * @return the slot holding the given key or <code>-1</code> if there
+		 *         is none.
+		 */
+		private int findSlot(String name, long hash) throws IOException {
+			int mask = capacity - 1;
+
+			for (int slot = firstSlot(hash);; slot = (slot + 1) & mask) {
+				int position = slotPosition(slot);
+				long slotHash = index.getLong(position);
+
+				if (slotHash == 0)
+					return -1;
+
+				if (slotHash == hash) {
+					long offset = index.getLong(position + 8);
+
+					if (offset == REMOVED_OFFSET)
+						return slot;
+
+					byte[] payload = readRecord(offset);
+
+					/*
+					 * Guard against 2 keys with the same 64-bit hash. A damaged
+					 * record is taken to be the key's, like read() does, so a
+					 * new record replaces it instead of being shadowed by it.
+					 */
+					if (payload == null || name.equals(parseName(payload)))
+						return slot;
+				}
+			}
+		}
+
+		/**
+		 * @return the offset of the record the given key was mapped to before
+		 *         or {@link #REMOVED_OFFSET} if there was none.
+		 */
+		private long putSlot(String name, long hash, long offset)
+				throws IOException {
+			int slot = findSlot(name, hash);
+			long previous = REMOVED_OFFSET;
+
+			if (slot != -1)
+				previous = index.getLong(slotPosition(slot) + 8);
+			else {
+				// Keep the index at most half full.
+				if ((usedSlots + 1) * 2 > capacity)
+					growIndex();
+
+				int mask = capacity - 1;
+				slot = firstSlot(hash);
+
+				while (index.getLong(slotPosition(slot)) != 0)
+					slot = (slot + 1) & mask;
+
+				index.putLong(slotPosition(slot), hash);
+				index.putInt(12, ++usedSlots);
+			}
+
+			index.putLong(slotPosition(slot) + 8, offset);
+			return previous;
+		}
+
+		/**
+		 * Used to double the capacity of the index, dropping removed keys.
+		 */
+		private void growIndex() throws IOException {
+			long[] hashes = new long[usedSlots];
+			long[] offsets = new long[usedSlots];
+			int count = 0;
+
+			for (int slot = 0; slot < capacity; slot++) {
+				int position = slotPosition(slot);
+				long hash = index.getLong(position);
+				long offset = index.getLong(position + 8);
+
+				if (hash != 0 && offset != REMOVED_OFFSET) {
+					hashes[count] = hash;
+					offsets[count++] = offset;
+				}
+			}
+
+			createIndex(capacity * 2);
+			putSlots(hashes, offsets, count);
+		}
+
+		/**
+		 * Used to fill a new, empty, index in with the given keys, which are
+		 * known to be distinct.
+		 */
+		private void putSlots(long[] hashes, long[] offsets, int count) {
+			int mask = capacity - 1;
+
+			for (int i = 0; i < count; i++) {
+				int slot = firstSlot(hashes[i]);
+
+				while (index.getLong(slotPosition(slot)) != 0)
+					slot = (slot + 1) & mask;
+
+				index.putLong(slotPosition(slot), hashes[i]);
+				index.putLong(slotPosition(slot) + 8, offsets[i]);
+			}
+
+			usedSlots = count;
+			index.putInt(12, usedSlots);
+		}
+
+		private int firstSlot(long hash) {
+			return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+		}
+
+		private static int slotPosition(int slot) {
+			return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+		}
+
+		/**
+		 * @return the offset the record was appended at.
+		 */
+		private long appendRecord(byte[] payload) throws IOException {
+			ByteBuffer record = createRecord(payload);
+			long offset = logLength;
+
+			writeFully(logChannel, record, offset);
+			logLength += record.capacity();
+			return offset;
+		}
+
+		/**
+		 * @return the record holding the given payload, ready to be written.
+		 */
+		private static ByteBuffer createRecord(byte[] payload) {
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE
+					+ payload.length);
+			record.putInt(payload.length).putInt((int) crc.getValue())
+					.put(payload).flip();
+			return record;
+		}
+
+		/**
+		 * @return the number of bytes taken up by the record at the given
+		 *         offset, or <code>0</code> if there is no record there.
+		 */
+		private long recordLength(long offset) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+			if (offset < LOG_HEADER_SIZE || !readFully(header, offset))
+				return 0;
+
+			int length = header.getInt(0);
+
+			if (length < 0 || offset + RECORD_HEADER_SIZE + length > logLength)
+				return 0;
+
+			return RECORD_HEADER_SIZE + length;
+		}
+
+		/**
+		 * @return the payload of the record at the given offset or
+		 *         <code>null</code> if it is damaged.
+		 */
+		private byte[] readRecord(long offset) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+			if (offset < LOG_HEADER_SIZE || !readFully(header, offset))
+				return null;
+
+			int length = header.getInt(0);
+
+			if (length < 0 || offset + RECORD_HEADER_SIZE + length > logLength)
+				return null;
+
+			ByteBuffer payload = ByteBuffer.allocate(length);
+
+			if (!readFully(payload, offset + RECORD_HEADER_SIZE))
+				return null;
+
+			CRC32 crc = new CRC32();
+			crc.update(payload.array());
+
+			return ((int) crc.getValue() == header.getInt(4) ? payload.array()
+					: null);
+		}
+
+		private boolean readFully(ByteBuffer buffer, long position)
+				throws IOException {
+			while (buffer.hasRemaining()) {
+				int read = logChannel.read(buffer, position);
+
+				if (read == -1)
+					return false;
+
+				position += read;
+			}
+
+			buffer.flip();
+			return true;
+		}
+
+		private static void writeFully(FileChannel channel, ByteBuffer buffer,
+				long position) throws IOException {
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		}
+
+		private static byte[] formatEntry(String name,
+				MetadataCache.CacheEntry entry) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+			DataOutputStream out = new DataOutputStream(bytes);
+			Format[] formats = Format.values();
+			Tag[] tags = Tag.values();
+
+			out.writeUTF(name);
+			out.writeLong(entry.length);
+			out.writeLong(entry.lastModified);
+
+			for (int i = 0; i < formats.length; i++) {
+				boolean[] queried = entry.queried[i];
+
+				if (queried == null)
+					continue;
+
+				int count = 0;
+
+				for (int j = 0; j < queried.length; j++) {
+					if (queried[j])
+						count++;
+				}
+
+				// Names are stored so new tags do not invalidate the store.
+				out.writeUTF(formats[i].name());
+				out.writeInt(count);
+
+				for (int j = 0; j < queried.length; j++) {
+					if (!queried[j])
+						continue;
+
+					String value = entry.values[i].get(tags[j]);
+
+					out.writeUTF(tags[j].name());
+
+					if (value == null)
+						out.writeInt(-1);
+					else {
+						byte[] valueBytes = value.getBytes(OUTPUT_CHARSET);
+						out.writeInt(valueBytes.length);
+						out.write(valueBytes);
+					}
+				}
+			}
+
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		private static MetadataCache.CacheEntry parseEntry(byte[] payload)
+				throws IOException {
+			if (payload == null)
+				return null;
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					payload));
+
+			in.readUTF(); // key name
+			MetadataCache.CacheEntry entry = new MetadataCache.CacheEntry(
+					in.readLong(), in.readLong());
+
+			while (in.available() > 0) {
+				Format format = valueOf(Format.class, in.readUTF());
+				int count = in.readInt();
+
+				for (int i = 0; i < count; i++) {
+					Tag tag = valueOf(Tag.class, in.readUTF());
+					int length = in.readInt();
+					String value = null;
+
+					if (length >= 0) {
+						byte[] valueBytes = new byte[length];
+						in.readFully(valueBytes);
+						value = new String(valueBytes, OUTPUT_CHARSET);
+					}
+
+					// Skip values of formats or tags that no longer exist.
+					if (format != null && tag != null)
+						entry.store(format, tag, value);
+				}
+			}
+
+			return entry;
+		}
+
+		private static String parseName(byte[] payload) throws IOException {
+			return (payload == null ? null : new DataInputStream(
+					new ByteArrayInputStream(payload)).readUTF());
+		}
+
+		private static <E extends Enum<E>> E valueOf(Class<E> type, String name) {
+			try {
+				return Enum.valueOf(type, name);
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return the 64-bit FNV-1a hash of the given key, never
+		 *         <code>0</code> as that marks empty slots.
+		 */
+		private static long hash(String name) {
+			long hash = 0xCBF29CE484222325L;
+
+			for (int i = 0, length = name.length(); i < length; i++) {
+				hash ^= name.charAt(i);
+				hash *= 0x100000001B3L;
+			}
+
+			return (hash == 0 ? 1 : hash);
+		}
+	}
+
+	private DaemonPool pool;
+
+	private Set<Feature> featureSet;
+
+	private volatile MetadataCache metadataCache;
+
+	private volatile MetricsListener metricsListener;
+
+	private volatile WriteMode writeMode = WriteMode.BACKUP;
+
+	public ExifTool() {
+		this((Feature[]) null);
+	}
+
+	public ExifTool(Feature... features) throws UnsupportedFeatureException {
+		this(0, 1, features);
+	}
+
+	/**
+	 * Used to create an instance of this class that, when
+	 * {@link Feature#STAY_OPEN} is enabled, services calls using a pool of up
+	 * to <code>maxPoolSize</code> daemon ExifTool processes in parallel.
+	 * <p/>
+	 * Pool sizes have no effect when {@link Feature#STAY_OPEN} is not enabled,
+	 * as every call launches (and waits on) its own ExifTool process.
+	 *
+	 * @param minPoolSize
+	 *            The number of idle daemon processes the automatic cleanup
+	 *            thread leaves running after a period of inactivity; with
+	 *            {@link #PREWARM} enabled, the number of processes (at least
+	 *            1) started when this instance is created and kept running.
+	 * @param maxPoolSize
+	 *            The maximum number of daemon processes that will ever be
+	 *            running at the same time for this instance.
+	 * @param features
+	 *            The {@link Feature}s to enable on this instance.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if <code>minPoolSize</code> &lt; 0, if
+	 *             <code>maxPoolSize</code> &lt; 1 or if
+	 *             <code>minPoolSize</code> &gt; <code>maxPoolSize</code>.
+	 * @throws UnsupportedFeatureException
+	 *             if any of the given <code>features</code> is not supported
+	 *             by the native ExifTool install.
+	 */
+	public ExifTool(int minPoolSize, int maxPoolSize, Feature... features)
+			throws IllegalArgumentException, UnsupportedFeatureException {
+		if (minPoolSize < 0)
+			throw new IllegalArgumentException("minPoolSize [" + minPoolSize
+					+ "] must be >= 0");
+		if (maxPoolSize < 1)
+			throw new IllegalArgumentException("maxPoolSize [" + maxPoolSize
+					+ "] must be >= 1");
+		if (minPoolSize > maxPoolSize)
+			throw new IllegalArgumentException("minPoolSize [" + minPoolSize
+					+ "] must be <= maxPoolSize [" + maxPoolSize + "]");
+
+		featureSet = new HashSet<ExifTool.Feature>();
+
+		if (features != null && features.length > 0) {
+			/*
+			 * Process all features to ensure we checked them for support in the
+			 * installed version of ExifTool. If the feature has already been
+			 * checked before, this method will return immediately.
+			 */
+			checkFeatureSupport(features);
+
+			/*
+			 * Now we need to verify that all the features requested for this
+			 * instance of ExifTool to use WERE supported after all.
+			 */
+			for (int i = 0; i < features.length; i++) {
+				Feature f = features[i];
+
+				/*
+				 * If the Feature was supported, record it in the local
+				 * featureSet so this instance knows what features are being
+				 * turned on by the caller.
+				 * 
+				 * If the Feature was not supported, throw an exception
+				 * reporting it to the caller so they know it cannot be used.
+				 */
+				if (FEATURE_SUPPORT_MAP.get(f).booleanValue())
+					featureSet.add(f);
+				else
+					throw new UnsupportedFeatureException(f);
+			}
+		}
+
+		/*
+		 * Now that initialization is done, create the process pool and have
+		 * the cleanup thread watch it if we are using STAY_OPEN and the delay
+		 * time set is non-zero.
+		 */
+		if (isFeatureEnabled(Feature.STAY_OPEN)) {
+			pool = new DaemonPool(minPoolSize, maxPoolSize, PIPELINE_DEPTH,
+					PREWARM);
+
+			if (PROCESS_CLEANUP_DELAY > 0)
+				CleanupTask.register(pool);
+
+			if (PREWARM)
+				pool.warmUp();
+		}
+	}
+
+	/**
+	 * Used to shutdown the external ExifTool processes and close the
+	 * read/write streams used to communicate with them when
+	 * {@link Feature#STAY_OPEN} is enabled.
+	 * <p/>
+	 * Idle processes are shut down immediately; processes currently servicing
+	 * a call on another thread are shut down as soon as that call completes.
+	 * <p/>
+	 * <strong>NOTE</strong>: Calling this method does not preclude this
+	 * instance of {@link ExifTool} from being re-used, it merely disposes of
+	 * the native and internal resources until the next call to
+	 * <code>getImageMeta</code> causes them to be re-instantiated.
+	 * <p/>
+	 * The cleanup thread will automatically shut down all but the minimum
+	 * number of idle processes after an interval of inactivity defined by
+	 * {@link #PROCESS_CLEANUP_DELAY}.
+	 * <p/>
+	 * Calling this method on an instance of this class without
+	 * {@link Feature#STAY_OPEN} support enabled has no effect.
+	 */
+	public void close() {
+		/*
+		 * no-op if stayOpen was never used in the first place in which case
+		 * nothing is open right now anyway.
+		 */
+		if (pool == null)
+			return;
+
+		pool.close();
+	}
+
+	/**
+	 * For {@link ExifTool} instances with {@link Feature#STAY_OPEN} support
+	 * enabled, this method is used to determine if there is currently a running
+	 * ExifTool process associated with this class.
+	 * <p/>
+	 * Any dependent processes and streams can be shutdown using
+	 * {@link #close()} and this class will automatically re-create them on the
+	 * next call to <code>getImageMeta</code> if necessary.
+	 * 
+	 * @return <code>true</code> if there is an external ExifTool process in
+	 *         daemon mode associated with this class utilizing the
+	 *         {@link Feature#STAY_OPEN} feature, otherwise returns
+	 *         <code>false</code>.
+	 */
+	public boolean isRunning() {
+		return (pool != null && pool.isRunning());
+	}
+
+	/**
+	 * For {@link ExifTool} instances with {@link Feature#STAY_OPEN} support
+	 * enabled, this method is used to get the number of daemon ExifTool
+	 * processes that died unexpectedly (e.g. were killed or crashed) since
+	 * this instance was created.
+	 * <p/>
+	 * Dead processes are replaced automatically and the calls they were
+	 * running are retried up to {@link #MAX_RETRIES} times.
+	 * 
+	 * @return the number of daemon processes that died, always
+	 *         <code>0</code> without {@link Feature#STAY_OPEN}.
+	 */
+	public int getProcessFailureCount() {
+		return (pool == null ? 0 : pool.getFailureCount());
+	}
+
+	/**
+	 * Used to determine if the given {@link Feature} has been enabled for this
+	 * particular instance of {@link ExifTool}.
+	 * <p/>
+	 * This method is different from {@link #isFeatureSupported(Feature)}, which
+	 * checks if the given feature is supported by the underlying ExifTool
+	 * install where as this method tells the caller if the given feature has
+	 * been enabled for use in this particular instance.
+	 * 
+	 * @param feature
+	 *            The feature to check if it has been enabled for us or not on
+	 *            this instance.
+	 * 
+	 * @return <code>true</code> if the given {@link Feature} is currently
+	 *         enabled on this instance of {@link ExifTool}, otherwise returns
+	 *         <code>false</code>.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>feature</code> is <code>null</code>.
+	 */
+	public boolean isFeatureEnabled(Feature feature)
+			throws IllegalArgumentException {
+		if (feature == null)
+			throw new IllegalArgumentException("feature cannot be null");
+
+		return featureSet.contains(feature);
+	}
+
+	/**
+	 * Used to get the cache the synchronous <code>getImageMeta</code> methods
+	 * of this instance consult before querying ExifTool.
+	 * 
+	 * @return the cache used by this instance or <code>null</code> if values
+	 *         are not cached.
+	 */
+	public MetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	/**
+	 * Used to set the cache the synchronous <code>getImageMeta</code> methods
+	 * of this instance consult before querying ExifTool; values read by
+	 * ExifTool are stored in it and the values of images written using
+	 * <code>setImageMeta</code> are invalidated in it.
+	 * <p/>
+	 * Asynchronous queries always query ExifTool and do not populate the
+	 * cache.
+	 * 
+	 * @param metadataCache
+	 *            The cache to use or <code>null</code> to stop caching
+	 *            values.
+	 */
+	public void setMetadataCache(MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
+	/**
+	 * @return the listener receiving the metrics of this instance or
+	 *         <code>null</code> if metrics are not recorded.
+	 */
+	public MetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+
+	/**
+	 * Used to set the listener that receives the timings of every call made
+	 * by this instance and the processes it starts and reaps.
+	 * <p/>
+	 * No timings are recorded while no listener is set.
+	 * 
+	 * @param metricsListener
+	 *            The listener to notify or <code>null</code> to stop
+	 *            recording metrics.
+	 */
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+
+		if (pool != null)
+			pool.metricsListener = metricsListener;
+	}
+
+	/**
+	 * @return how images written by the <code>setImageMeta</code> methods of
+	 *         this instance replace the original image.
+	 */
+	public WriteMode getWriteMode() {
+		return writeMode;
+	}
+
+	/**
+	 * Used to set how images written by the <code>setImageMeta</code> methods
+	 * of this instance replace the original image; defaults to
+	 * {@link WriteMode#BACKUP}, ExifTool's own default.
+	 * <p/>
+	 * The mode applies to all writes started after it is set, so instances
+	 * writing to different storage (e.g. a local disk and a network share)
+	 * can each use the cheapest mode for it.
+	 * 
+	 * @param writeMode
+	 *            The write mode to use.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>writeMode</code> is <code>null</code>.
+	 */
+	public void setWriteMode(WriteMode writeMode)
+			throws IllegalArgumentException {
+		if (writeMode == null)
+			throw new IllegalArgumentException("writeMode cannot be null");
+
+		this.writeMode = writeMode;
+	}
+
+	public Map<Tag, String> getImageMeta(File image, Tag... tags)
+			throws IllegalArgumentException, SecurityException, IOException {
+		return getImageMeta(image, Format.NUMERIC, tags);
+	}
+
+	public Map<Tag, String> getImageMeta(File image, Format format, Tag... tags)
+			throws IllegalArgumentException, SecurityException, IOException {
+		return getImageMeta(image, new Query(format, tags));
+	}
+
+	/**
+	 * Used to run the given, precompiled, query against a single image.
+	 * <p/>
+	 * This is the same as {@link #getImageMeta(File, Format, Tag...)}, except
+	 * that the arguments sent to ExifTool were already built and encoded when
+	 * the {@link Query} was created, so they are not rebuilt on every call.
+	 * 
+	 * @param image
+	 *            The image to query.
+	 * @param query
+	 *            The query to run.
+	 * 
+	 * @return a map containing the value of every queried tag found in the
+	 *         image.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>image</code> or <code>query</code> is
+	 *             <code>null</code>.
+	 * @throws SecurityException
+	 *             if the given image cannot be read.
+	 * @throws CommandTimeoutException
+	 *             if the call did not complete within the timeout of the
+	 *             query.
+	 * @throws IOException
+	 *             if an error occurs communicating with the ExifTool process.
+	 */
+	public TagValueMap getImageMeta(File image, Query query)
+			throws IllegalArgumentException, SecurityException, IOException {
+		checkQueryArgs(image, query);
+
+		MetadataCache cache = metadataCache;
+
+		if (cache == null)
+			return queryImageMeta(image, query);
+
+		MetadataCache.CacheKey key = cache.createKey(image);
+		TagValueMap resultMap = new TagValueMap();
+		Tag[] missingTags = cache.get(key, query.format, query.tags,
+				resultMap);
+
+		if (missingTags.length == 0) {
+			if (DEBUG)
+				log("Returning %d cached values of %d tags from image: %s",
+						resultMap.size(), query.tags.length,
+						image.getAbsolutePath());
+		} else {
+			// Only query the tags that are not cached yet.
+			TagValueMap valueMap = queryImageMeta(image,
+					missingTags.length == query.tags.length ? query
+							: new Query(query.format, missingTags)
+									.withTimeout(query.timeout));
+
+			cache.put(key, query.format, missingTags, valueMap);
+			resultMap.putAll(valueMap);
+			resultMap.addMessages(valueMap);
+		}
+
+		return resultMap;
+	}
+
+	/**
+	 * Used to run the given query against a single image using ExifTool.
+	 */
+	private TagValueMap queryImageMeta(File image, Query query)
+			throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		TagValueMap resultMap = new TagValueMap();
+
+		if (DEBUG)
+			log("Querying %d tags from image: %s", query.tags.length,
+					image.getAbsolutePath());
+
+		long exifToolCallElapsedTime = 0;
+
+		/*
+		 * Using ExifTool in daemon mode (-stay_open True) executes different
+		 * code paths below. So establish the flag for this once and it is
+		 * reused a multitude of times later in this method to figure out where
+		 * to branch to.
+		 */
+		boolean stayOpen = featureSet.contains(Feature.STAY_OPEN);
+		RequestMetrics metrics = createMetrics(false, 1, query.tags.length,
+				Collections.singleton(resultMap));
+
+		if (stayOpen) {
+			log("\tUsing ExifTool in daemon mode (-stay_open True)...");
+
+			log("\tExecuting ExifTool...");
+
+			// Begin tracking the duration ExifTool takes to respond.
+			exifToolCallElapsedTime = System.currentTimeMillis();
+
+			/*
+			 * Run ExifTool on our file with all the given arguments using the
+			 * next available daemon process; it is started for us if there
+			 * were no processes available.
+			 */
+			pool.execute(new DaemonCommand(getArgBlock(query),
+					encodeArgs(image.getAbsolutePath() + '\n'),
+					createResponseHandler(image, resultMap), metrics),
+					query.timeout);
+		} else {
+			log("\tUsing ExifTool in non-daemon mode (-stay_open False)...");
+
+			/*
+			 * Since we are not using a stayOpen process, we need to setup the
+			 * execution arguments completely each time.
+			 */
+			List<String> args = new ArrayList<String>(query.args.length + 3);
+
+			args.add(EXIF_TOOL_PATH);
+			args.add(getOutputArg());
+			args.addAll(Arrays.asList(query.args));
+			args.add(image.getAbsolutePath());
+
+			boolean failed = true;
+
+			try {
+				// Run the ExifTool with our args.
+				IOStream streams = startProcess(args, metrics);
+				ProcessWatchdog watchdog = ProcessWatchdog.start(streams,
+						query.timeout);
+
+				// Begin tracking the duration ExifTool takes to respond.
+				exifToolCallElapsedTime = System.currentTimeMillis();
+
+				/*
+				 * The process exits after running the command above, so once
+				 * we are done reading we need to clean our streams up since it
+				 * no longer exists.
+				 */
+				try {
+					readResponse(streams, createResponseHandler(image,
+							resultMap), metrics, query.timeout);
+				} finally {
+					streams.close();
+
+					// Report a killed process as a timeout, not a failure.
+					if (watchdog != null)
+						watchdog.stop();
+				}
+
+				failed = false;
+			} finally {
+				if (metrics != null)
+					metrics.completed(failed);
+			}
+		}
+
+		// Print out how long the call to external ExifTool process took.
+		log("\tFinished reading ExifTool response in %d ms.",
+				(System.currentTimeMillis() - exifToolCallElapsedTime));
+
+		if (DEBUG)
+			log("\tImage Meta Processed in %d ms [queried %d tags and found %d values]",
+					(System.currentTimeMillis() - startTime), query.tags.length,
+					resultMap.size());
+
+		return resultMap;
+	}
+
+	public Map<File, TagValueMap> getImageMeta(Collection<File> images,
+			Tag... tags) throws IllegalArgumentException, SecurityException,
+			IOException {
+		return getImageMeta(images, Format.NUMERIC, tags);
+	}
+
+	/**
+	 * Used to query the same set of tags from many images with a single
+	 * ExifTool command instead of one command per image.
+	 * <p/>
+	 * When {@link Feature#STAY_OPEN} is enabled, all the image paths are sent
+	 * to a single daemon process in one <code>-execute</code> round trip;
+	 * otherwise a single ExifTool process is launched for all of them (with
+	 * the arguments streamed to it using <code>-@ -</code> so the number of
+	 * images is not limited by the host OS command line length).
+	 * <p/>
+	 * ExifTool separates the output for each image with a
+	 * "<code>======== path</code>" header line which is used to split the
+	 * response back into per-image results.
+	 * 
+	 * @param images
+	 *            The images to query.
+	 * @param format
+	 *            The output format the tag values are returned in.
+	 * @param tags
+	 *            The tags to query from every image.
+	 * 
+	 * @return a map, in the iteration order of <code>images</code>, containing
+	 *         a result map for every image. The result map of an image that
+	 *         ExifTool could not process or that had none of the given tags is
+	 *         empty.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>images</code> is <code>null</code>, empty or
+	 *             contains a <code>null</code> element, if
+	 *             <code>format</code> is <code>null</code> or if
+	 *             <code>tags</code> is <code>null</code> or empty.
+	 * @throws SecurityException
+	 *             if any of the given images cannot be read.
+	 * @throws IOException
+	 *             if an error occurs communicating with the ExifTool process.
+	 */
+	public Map<File, TagValueMap> getImageMeta(Collection<File> images,
+			Format format, Tag... tags) throws IllegalArgumentException,
+			SecurityException, IOException {
+		return getImageMeta(images, new Query(format, tags));
+	}
+
+	/**
+	 * Used to run the given, precompiled, query against many images with a
+	 * single ExifTool command; see
+	 * {@link #getImageMeta(Collection, Format, Tag...)}.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>images</code> is <code>null</code>, empty or
+	 *             contains a <code>null</code> element or if
+	 *             <code>query</code> is <code>null</code>.
+	 * @throws SecurityException
+	 *             if any of the given images cannot be read.
+	 * @throws CommandTimeoutException
+	 *             if the call did not complete within the timeout of the
+	 *             query.
+	 * @throws IOException
+	 *             if an error occurs communicating with the ExifTool process.
+	 */
+	public Map<File, TagValueMap> getImageMeta(Collection<File> images,
+			Query query) throws IllegalArgumentException, SecurityException,
+			IOException {
+		if (images == null || images.isEmpty())
+			throw new IllegalArgumentException(
+					"images cannot be null and must contain 1 or more images to query.");
+		if (query == null)
+			throw new IllegalArgumentException("query cannot be null");
+
+		/*
+		 * Create the result map for every image up front, keyed by the same
+		 * path we hand to ExifTool so the "======== path" headers in the
+		 * response can be mapped back to the image they belong to.
+		 */
+		Map<File, TagValueMap> fileResultMap = new LinkedHashMap<File, TagValueMap>(
+				images.size() * 2);
+		Map<String, TagValueMap> pathResultMap = new LinkedHashMap<String, TagValueMap>(
+				images.size() * 2);
+
+		for (File image : images) {
+			if (image == null)
+				throw new IllegalArgumentException(
+						"images cannot contain a null image.");
+			if (!image.canRead())
+				throw new SecurityException(
+						"Unable to read the given image ["
+								+ image.getAbsolutePath()
+								+ "], ensure that the image exists at the given path and that the executing Java process has permissions to read it.");
+
+			String path = image.getAbsolutePath();
+			TagValueMap resultMap = pathResultMap.get(path);
+
+			if (resultMap == null) {
+				resultMap = new TagValueMap();
+				pathResultMap.put(path, resultMap);
+			}
+
+			fileResultMap.put(image, resultMap);
+		}
+
+		MetadataCache cache = metadataCache;
+
+		if (cache == null) {
+			queryImageMeta(pathResultMap, query);
+			return fileResultMap;
+		}
+
+		/*
+		 * Fill the result maps in with all the cached values, only querying
+		 * the images (and the tags) that are not cached yet.
+		 */
+		Map<String, MetadataCache.CacheKey> keyMap = new HashMap<String, MetadataCache.CacheKey>();
+		Map<String, TagValueMap> missingResultMap = new LinkedHashMap<String, TagValueMap>();
+		Set<Tag> missingTagSet = EnumSet.noneOf(Tag.class);
+
+		for (Entry<String, TagValueMap> entry : pathResultMap.entrySet()) {
+			String path = entry.getKey();
+			MetadataCache.CacheKey key = cache.createKey(new File(path));
+			Tag[] missingTags = cache.get(key, query.format, query.tags,
+					entry.getValue());
+
+			if (missingTags.length > 0) {
+				keyMap.put(path, key);
+				missingResultMap.put(path, new TagValueMap());
+				missingTagSet.addAll(Arrays.asList(missingTags));
+			}
+		}
+
+		if (missingResultMap.isEmpty()) {
+			if (DEBUG)
+				log("Returning cached values of %d tags from %d images",
+						query.tags.length, pathResultMap.size());
+		} else {
+			Tag[] missingTags = missingTagSet.toArray(new Tag[missingTagSet
+					.size()]);
+
+			queryImageMeta(missingResultMap,
+					missingTags.length == query.tags.length ? query
+							: new Query(query.format, missingTags)
+									.withTimeout(query.timeout));
+
+			for (Entry<String, TagValueMap> entry : missingResultMap
+					.entrySet()) {
+				String path = entry.getKey();
+
+				cache.put(keyMap.get(path), query.format, missingTags,
+						entry.getValue());
+				TagValueMap resultMap = pathResultMap.get(path);
+
+				resultMap.putAll(entry.getValue());
+				resultMap.addMessages(entry.getValue());
+			}
+		}
+
+		return fileResultMap;
+	}
+
+	/**
+	 * Used to run the given query against many images using a single
+	 * ExifTool command, storing the values of every image in its result map.
+	 */
+	private void queryImageMeta(Map<String, TagValueMap> pathResultMap,
+			Query query) throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		if (DEBUG)
+			log("Querying %d tags from %d images", query.tags.length,
+					pathResultMap.size());
+
+		long exifToolCallElapsedTime = 0;
+		boolean stayOpen = featureSet.contains(Feature.STAY_OPEN);
+		RequestMetrics metrics = createMetrics(false, pathResultMap.size(),
+				query.tags.length * pathResultMap.size(),
+				pathResultMap.values());
+
+		if (stayOpen) {
+			log("\tUsing ExifTool in daemon mode (-stay_open True)...");
+
+			log("\tExecuting ExifTool...");
+
+			// Begin tracking the duration ExifTool takes to respond.
+			exifToolCallElapsedTime = System.currentTimeMillis();
+
+			// Run ExifTool on all our files with all the given arguments.
+			pool.execute(new DaemonCommand(getArgBlock(query),
+					buildPathArgs(pathResultMap.keySet()),
+					createBatchResponseHandler(pathResultMap), metrics),
+					query.timeout);
+		} else {
+			log("\tUsing ExifTool in non-daemon mode (-stay_open False)...");
+
+			/*
+			 * Launch a single process that reads its arguments from stdin, we
+			 * stream all of them and then close stdin so ExifTool starts
+			 * processing.
+			 */
+			List<String> args = new ArrayList<String>(3);
+
+			args.add(EXIF_TOOL_PATH);
+			args.add("-@");
+			args.add("-");
+
+			boolean failed = true;
+
+			try {
+				IOStream streams = startProcess(args, null);
+				ProcessWatchdog watchdog = ProcessWatchdog.start(streams,
+						query.timeout);
+
+				try {
+					log("\tStreaming arguments to ExifTool process...");
+					streams.writer.write(getArgBlock(query));
+					streams.writer.write(buildPathArgs(pathResultMap.keySet()));
+					streams.writer.close();
+
+					if (metrics != null)
+						metrics.writeEndTime = System.nanoTime();
+
+					// Begin tracking the duration ExifTool takes to respond.
+					exifToolCallElapsedTime = System.currentTimeMillis();
+
+					readResponse(streams,
+							createBatchResponseHandler(pathResultMap), metrics,
+							query.timeout);
+				} finally {
+					streams.close();
+
+					// Report a killed process as a timeout, not a failure.
+					if (watchdog != null)
+						watchdog.stop();
+				}
+
+				failed = false;
+			} finally {
+				if (metrics != null)
+					metrics.completed(failed);
+			}
+		}
+
+		// Print out how long the call to external ExifTool process took.
+		log("\tFinished reading ExifTool response in %d ms.",
+				(System.currentTimeMillis() - exifToolCallElapsedTime));
+
+		if (DEBUG)
+			log("\tImage Meta Processed in %d ms [queried %d tags from %d images]",
+					(System.currentTimeMillis() - startTime), query.tags.length,
+					pathResultMap.size());
+
+	}
+
+	/**
+	 * Used to run the given query against every image in the given directory
+	 * and all of its subdirectories, streaming the results back as ExifTool
+	 * finds them.
+	 * <p/>
+	 * Rather than walking the tree in Java and querying every image
+	 * separately, the directory is handed to a single ExifTool process using
+	 * <code>-r</code> (optionally limited to the given file extensions with
+	 * <code>-ext</code>) and the results are read one image at a time from
+	 * the returned {@link ScanIterator} while ExifTool is still walking the
+	 * tree. Results are not buffered; ExifTool is simply blocked while the
+	 * caller is not reading, so scanning a tree of millions of images uses no
+	 * more memory than scanning a handful.
+	 * <p/>
+	 * A dedicated ExifTool process is started for every scan, whether or not
+	 * {@link Feature#STAY_OPEN} is enabled, so a long scan never holds on to
+	 * a daemon process other calls are waiting for. The timeout of the query
+	 * does not apply to scans, which take as long as the tree takes to walk;
+	 * it only limits how long the end of a scan waits for ExifTool to exit
+	 * and print its last messages. The {@link MetadataCache} is neither read
+	 * nor filled by scans.
+	 * <p/>
+	 * The returned iterator must be closed (see {@link ScanIterator#close()})
+	 * if it is not read to the end.
+	 * 
+	 * @param root
+	 *            The directory to scan.
+	 * @param query
+	 *            The query to run against every image.
+	 * @param extensions
+	 *            The extensions (e.g. "<code>JPG</code>", matched without
+	 *            regard to case) of the files to scan; if none are given
+	 *            ExifTool scans every file type it supports.
+	 * 
+	 * @return an iterator over every image found, mapped to the values of the
+	 *         queried tags it contains, in the order ExifTool found them.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>root</code> is <code>null</code> or not a
+	 *             directory, if <code>query</code> is <code>null</code> or if
+	 *             <code>extensions</code> is <code>null</code> or contains a
+	 *             <code>null</code> or empty extension.
+	 * @throws SecurityException
+	 *             if the given directory cannot be read.
+	 * @throws RuntimeException
+	 *             if the ExifTool process could not be started.
+	 */
+	public ScanIterator scan(File root, Query query, String... extensions)
+			throws IllegalArgumentException, SecurityException,
+			RuntimeException {
+		checkScanArgs(root, query, extensions);
+
+		List<String> args = new ArrayList<String>(query.args.length
+				+ extensions.length * 2 + 4);
+
+		args.add(EXIF_TOOL_PATH);
+		args.add(getOutputArg());
+		args.addAll(Arrays.asList(query.args));
+		args.add("-r");
+
+		for (String extension : extensions) {
+			args.add("-ext");
+			args.add(extension);
+		}
+
+		args.add(root.getAbsolutePath());
+
+		if (DEBUG)
+			log("Scanning %s for %d tags", root.getAbsolutePath(),
+					query.tags.length);
+
+		return new ProcessScanIterator(startProcess(args, null),
+				featureSet.contains(Feature.JSON), query.timeout);
+	}
+
+	/**
+	 * Used to run the given query against every image in the given directory
+	 * and all of its subdirectories, in parallel on the daemon ExifTool
+	 * processes of this instance.
+	 * <p/>
+	 * A single ExifTool process scanning a tree (see
+	 * {@link #scan(File, Query, String...)}) only ever uses a single core.
+	 * Instead, this method walks the tree in Java and splits the images it
+	 * finds into batches of <code>batchSize</code> images, which are run
+	 * just like {@link #getImageMeta(Collection, Query)} calls on as many
+	 * daemon processes as the pool of this instance may start (see
+	 * {@link #ExifTool(int, int, Feature...)}). Whichever process finishes a
+	 * batch first is handed the next one, so the load stays balanced when
+	 * some batches take longer than others.
+	 * <p/>
+	 * The tree is walked, depth first and in name order, only as fast as the
+	 * results are read: just enough batches are kept in flight to keep every
+	 * process busy, so the memory used stays the same no matter how large the
+	 * tree is. Hidden files and directories are skipped, as are files
+	 * without one of the given extensions, if any are given.
+	 * <p/>
+	 * The timeout of the query applies to every batch separately. A batch
+	 * that fails is run again one image at a time, so only the images that
+	 * really fail are returned without values, with the failure in their
+	 * {@link TagValueMap#getMessages()}. The {@link MetadataCache} is neither
+	 * read nor filled by scans.
+	 * <p/>
+	 * The returned iterator must be closed (see {@link ScanIterator#close()})
+	 * if it is not read to the end.
+	 * 
+	 * @param root
+	 *            The directory to scan.
+	 * @param query
+	 *            The query to run against every image.
+	 * @param batchSize
+	 *            The maximum number of images queried by a single ExifTool
+	 *            command. Larger batches save round trips, smaller ones
+	 *            spread the load more evenly; a few dozen images is a good
+	 *            start.
+	 * @param ordered
+	 *            <code>true</code> to return the images in the order the tree
+	 *            was walked in, <code>false</code> to return every batch as
+	 *            soon as it completes, so one slow batch does not hold up the
+	 *            results of the others.
+	 * @param extensions
+	 *            The extensions (e.g. "<code>JPG</code>", matched without
+	 *            regard to case) of the files to scan; if none are given
+	 *            every file is scanned, and files ExifTool does not support
+	 *            are returned without values.
+	 * 
+	 * @return an iterator over every image found, mapped to the values of the
+	 *         queried tags it contains.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>root</code> is <code>null</code> or not a
+	 *             directory, if <code>query</code> is <code>null</code>, if
+	 *             <code>batchSize</code> is less than 1 or if
+	 *             <code>extensions</code> is <code>null</code> or contains a
+	 *             <code>null</code> or empty extension.
+	 * @throws SecurityException
+	 *             if the given directory cannot be read.
+	 * @throws IllegalStateException
+	 *             if {@link Feature#STAY_OPEN} is not enabled on this instance.
+	 */
+	public ScanIterator scanParallel(File root, Query query, int batchSize,
+			boolean ordered, String... extensions)
+			throws IllegalArgumentException, SecurityException,
+			IllegalStateException {
+		checkScanArgs(root, query, extensions);
+		checkAsyncSupported();
+
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize [" + batchSize
+					+ "] must be >= 1");
+
+		if (DEBUG)
+			log("Scanning %s in parallel for %d tags in batches of %d images",
+					root.getAbsolutePath(), query.tags.length, batchSize);
+
+		return new ParallelScanIterator(this, root, query, batchSize, ordered,
+				extensions);
+	}
+
+	public WriteResult setImageMeta(File image, Map<Tag, String> tags)
+			throws IllegalArgumentException, SecurityException, IOException {
+		return setImageMeta(image, Format.NUMERIC, tags);
+	}
+
+	/**
+	 * Used to write the given tag values to the given image.
+	 * <p/>
+	 * ExifTool reporting that it could not write the image (e.g. because it
+	 * is not a valid image) does not make this method throw an exception;
+	 * check {@link WriteResult#isSuccess()} and the messages of the returned
+	 * result instead. There is no need to read the image back to verify the
+	 * write.
+	 * 
+	 * @param image
+	 *            The image to write the tags to.
+	 * @param format
+	 *            The format the given tag values are in.
+	 * @param tags
+	 *            The tag values to write to the image.
+	 * 
+	 * @return whether ExifTool updated the image, left it unchanged or failed
+	 *         to write it, and the warning and error messages it printed.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>image</code> or <code>format</code> is
+	 *             <code>null</code>, if <code>tags</code> is
+	 *             <code>null</code> or empty or if a tag value or the path
+	 *             of the image contains a line break.
+	 * @throws SecurityException
+	 *             if the given image cannot be written.
+	 * @throws CommandTimeoutException
+	 *             if the write did not complete within
+	 *             {@link ExifTool#TIMEOUT}.
+	 * @throws IOException
+	 *             if an error occurs communicating with the ExifTool process.
+	 */
+	public WriteResult setImageMeta(File image, Format format,
+			Map<Tag, String> tags) throws IllegalArgumentException,
+			SecurityException, IOException {
+		checkWriteArgs(image, format, tags);
+
+		try {
+			return writeImageMeta(image, null, format, tags);
+		} finally {
+			// The image may have changed even if the write failed.
+			invalidateCachedImageMeta(image);
+		}
+	}
+
+	public WriteResult setImageMeta(File image, File destination,
+			Map<Tag, String> tags) throws IllegalArgumentException,
+			SecurityException, IOException {
+		return setImageMeta(image, destination, Format.NUMERIC, tags);
+	}
+
+	/**
+	 * Used to write a copy of the given image with the given tag values to the
+	 * given destination (<code>-o</code>), leaving the image itself
+	 * untouched.
+	 * <p/>
+	 * The image is only read, so it can be on read-only storage, and no
+	 * backup or temporary copy of it is made; the {@link WriteMode} of this
+	 * instance does not apply. ExifTool refuses to overwrite an existing
+	 * destination.
+	 * <p/>
+	 * The returned result reports the write (and any messages) against the
+	 * given image, not the destination, see
+	 * {@link #setImageMeta(File, Format, Map)}.
+	 * 
+	 * @param image
+	 *            The image to copy.
+	 * @param destination
+	 *            The file to write the copy of the image to.
+	 * @param format
+	 *            The format the given tag values are in.
+	 * @param tags
+	 *            The tag values to write to the copy.
+	 * 
+	 * @return whether ExifTool wrote the copy or failed to write it, and the
+	 *         warning and error messages it printed.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>image</code>, <code>destination</code> or
+	 *             <code>format</code> is <code>null</code>, if
+	 *             <code>tags</code> is <code>null</code> or empty, if
+	 *             <code>destination</code> already exists or if a tag value
+	 *             or either path contains a line break.
+	 * @throws SecurityException
+	 *             if the given image cannot be read.
+	 * @throws CommandTimeoutException
+	 *             if the write did not complete within
+	 *             {@link ExifTool#TIMEOUT}.
+	 * @throws IOException
+	 *             if an error occurs communicating with the ExifTool process.
+	 */
+	public WriteResult setImageMeta(File image, File destination,
+			Format format, Map<Tag, String> tags)
+			throws IllegalArgumentException, SecurityException, IOException {
+		checkCopyArgs(image, destination, format, tags);
+
+		try {
+			return writeImageMeta(image, destination, format, tags);
+		} finally {
+			// The destination may have been written even if the write failed.
+			invalidateCachedImageMeta(destination);
+		}
+	}
+
+	/**
+	 * Used to write the given tag values to a single image using ExifTool,
+	 * or to a copy of it if <code>destination</code> is not
+	 * <code>null</code>.
+	 */
+	private WriteResult writeImageMeta(File image, File destination,
+			Format format, Map<Tag, String> tags) throws IOException {
+		long startTime = System.currentTimeMillis();
+
+		if (DEBUG)
+			log("Writing %d tags to image: %s", tags.size(),
+					image.getAbsolutePath());
+
+		List<String> outputArgs = getWriteOutputArgs(destination);
+
+		long exifToolCallElapsedTime = 0;
+
+		/*
+		 * Using ExifTool in daemon mode (-stay_open True) executes different
+		 * code paths below. So establish the flag for this once and it is
+		 * reused a multitude of times later in this method to figure out where
+		 * to branch to.
+		 */
+		boolean stayOpen = featureSet.contains(Feature.STAY_OPEN);
+		RequestMetrics metrics = createMetrics(true, 1, tags.size(), null);
+		WriteResult result = new WriteResult();
+		WriteResponseHandler handler = new WriteResponseHandler(result,
+				Collections.singletonMap(image.getAbsolutePath(), image));
+
+		if (stayOpen) {
+			log("\tUsing ExifTool in daemon mode (-stay_open True)...");
+
+			log("\tExecuting ExifTool...");
+
+			// Begin tracking the duration ExifTool takes to respond.
+			exifToolCallElapsedTime = System.currentTimeMillis();
+
+			// Run ExifTool on our file with all the given arguments.
+			pool.execute(new DaemonCommand(null, encodeArgs(buildWriteArgs(
+					image, format, tags, outputArgs)), handler, metrics),
+					TIMEOUT);
+		} else {
+			log("\tUsing ExifTool in non-daemon mode (-stay_open False)...");
+
+			/*
+			 * Since we are not using a stayOpen process, we need to setup the
+			 * execution arguments completely each time.
+			 */
+			List<String> args = new ArrayList<String>(tags.size()
+					+ outputArgs.size() + 4);
+
+			args.add(EXIF_TOOL_PATH);
+
+			if (format == Format.NUMERIC)
+				args.add("-n"); // numeric output
+
+			args.add("-S"); // compact output
+			args.addAll(outputArgs);
+
+			for (Entry<Tag, String> entry : tags.entrySet())
+				args.add("-" + entry.getKey().name + "=" + entry.getValue());
+
+			args.add(image.getAbsolutePath());
+
+			boolean failed = true;
+
+			try {
+				// Run the ExifTool with our args.
+				IOStream streams = startProcess(args, metrics);
+				ProcessWatchdog watchdog = ProcessWatchdog.start(streams,
+						TIMEOUT);
+
+				// Begin tracking the duration ExifTool takes to respond.
+				exifToolCallElapsedTime = System.currentTimeMillis();
+
+				try {
+					readResponse(streams, handler, metrics, TIMEOUT);
+				} finally {
+					streams.close();
+
+					// Report a killed process as a timeout, not a failure.
+					if (watchdog != null)
+						watchdog.stop();
+				}
+
+				failed = false;
+			} finally {
+				if (metrics != null)
+					metrics.completed(failed);
+			}
+		}
+
+		// Print out how long the call to external ExifTool process took.
+		log("\tFinished reading ExifTool response in %d ms.",
+				(System.currentTimeMillis() - exifToolCallElapsedTime));
+
+		if (DEBUG)
+			log("\tImage Meta Processed in %d ms [write %d tags, %s]",
+					(System.currentTimeMillis() - startTime), tags.size(),
+					result);
+
+		return result;
+	}
+
+	public WriteResult setImageMeta(Collection<File> images,
+			Map<Tag, String> tags) throws IllegalArgumentException,
+			SecurityException, IOException {
+		return setImageMeta(images, Format.NUMERIC, tags);
+	}
+
+	/**
+	 * Used to write the same tag values (e.g. a copyright notice) to many
+	 * images; see {@link #setImageMeta(Map, Format)}.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>images</code> is <code>null</code>, empty or
+	 *             contains a <code>null</code> element, if
+	 *             <code>format</code> is <code>null</code>, if
+	 *             <code>tags</code> is <code>null</code> or empty or if a tag
+	 *             value or the path of an image contains a line break.
+	 * @throws SecurityException
+	 *             if any of the given images cannot be written.
+	 * @throws IOException
+	 *             if an error occurs communicating with ExifTool that is not
+	 *             specific to a batch of images.
+	 */
+	public WriteResult setImageMeta(Collection<File> images, Format format,
+			Map<Tag, String> tags) throws IllegalArgumentException,
+			SecurityException, IOException {
+		if (images == null || images.isEmpty())
+			throw new IllegalArgumentException(
+					"images cannot be null and must contain 1 or more images to write to.");
+
+		Map<File, Map<Tag, String>> imageTags = new LinkedHashMap<File, Map<Tag, String>>(
+				images.size() * 2);
+
+		for (File image : images)
+			imageTags.put(image, tags);
+
+		return setImageMeta(imageTags, format);
+	}
+
+	public WriteResult setImageMeta(
+			Map<File, ? extends Map<Tag, String>> imageTags)
+			throws IllegalArgumentException, SecurityException, IOException {
+		return setImageMeta(imageTags, Format.NUMERIC);
+	}
+
+	/**
+	 * Used to write tag values to many images using as few ExifTool commands
+	 * as possible.
+	 * <p/>
+	 * Images that are given identical tag values are grouped together and
+	 * written with a single command (of up to 100 images), instead of one
+	 * command, and one round trip, per image. When
+	 * {@link Feature#STAY_OPEN} is enabled the commands are run in parallel on
+	 * the daemon processes of this instance.
+	 * <p/>
+	 * A batch that fails (e.g. because it timed out, see
+	 * {@link ExifTool#TIMEOUT}) does not fail the call; its images are
+	 * reported as failed in the returned result, along with the images
+	 * ExifTool printed an error about.
+	 * 
+	 * @param imageTags
+	 *            The tag values to write to every image.
+	 * @param format
+	 *            The format the given tag values are in.
+	 * 
+	 * @return the combined outcome of the writes, including which images
+	 *         failed to be written.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>imageTags</code> is <code>null</code> or empty,
+	 *             contains a <code>null</code> image or a <code>null</code>
+	 *             or empty map of tag values, if <code>format</code> is
+	 *             <code>null</code> or if a tag value or the path of an image
+	 *             contains a line break.
+	 * @throws SecurityException
+	 *             if any of the given images cannot be written.
+	 * @throws InterruptedIOException
+	 *             if the calling thread was interrupted while waiting for the
+	 *             writes to complete; writes that were already running still
+	 *             complete.
+	 * @throws IOException
+	 *             if an error occurs communicating with ExifTool that is not
+	 *             specific to a batch of images.
+	 */
+	public WriteResult setImageMeta(
+			Map<File, ? extends Map<Tag, String>> imageTags, Format format)
+			throws IllegalArgumentException, SecurityException, IOException {
+		if (imageTags == null || imageTags.isEmpty())
+			throw new IllegalArgumentException(
+					"imageTags cannot be null and must contain 1 or more images to write to.");
+
+		/*
+		 * Group the images by their tag values, each group is written using
+		 * the same arguments followed by the paths of all its images.
+		 */
+		Map<Map<Tag, String>, List<File>> groupMap = new LinkedHashMap<Map<Tag, String>, List<File>>();
+
+		for (Entry<File, ? extends Map<Tag, String>> entry : imageTags
+				.entrySet()) {
+			checkWriteArgs(entry.getKey(), format, entry.getValue());
+
+			List<File> imageList = groupMap.get(entry.getValue());
+
+			if (imageList == null) {
+				imageList = new ArrayList<File>();
+				groupMap.put(new HashMap<Tag, String>(entry.getValue()),
+						imageList);
+			}
+
+			imageList.add(entry.getKey());
+		}
+
+		if (DEBUG)
+			log("Writing tags to %d images in %d groups", imageTags.size(),
+					groupMap.size());
+
+		long startTime = System.currentTimeMillis();
+		WriteResult result = new WriteResult();
+
+		if (pool != null)
+			writeImageMetaAsync(groupMap, format, result);
+		else
+			writeImageMeta(groupMap, format, result);
+
+		if (DEBUG)
+			log("\tImage Meta Processed in %d ms [wrote %d images in %d groups, %s]",
+					(System.currentTimeMillis() - startTime),
+					imageTags.size(), groupMap.size(), result);
+
+		return result;
+	}
+
+	/**
+	 * Used to split the given groups of images into the batches of images
+	 * written by a single command each.
+	 * 
+	 * @return the images of every batch, keyed by their absolute paths.
+	 */
+	private static List<Map<String, File>> splitWriteBatches(
+			List<File> imageList) {
+		List<Map<String, File>> batchList = new ArrayList<Map<String, File>>();
+		Map<String, File> pathImageMap = null;
+
+		for (int i = 0, size = imageList.size(); i < size; i++) {
+			if (pathImageMap == null
+					|| pathImageMap.size() == MAX_WRITE_BATCH_SIZE) {
+				pathImageMap = new LinkedHashMap<String, File>();
+				batchList.add(pathImageMap);
+			}
+
+			File image = imageList.get(i);
+			pathImageMap.put(image.getAbsolutePath(), image);
+		}
+
+		return batchList;
+	}
+
+	/**
+	 * Used to write the given groups of images on the daemon processes of
+	 * this instance, submitting all batches up front and then waiting for
+	 * them in turn.
+	 */
+	private void writeImageMetaAsync(
+			Map<Map<Tag, String>, List<File>> groupMap, Format format,
+			WriteResult result) throws IOException {
+		List<FutureCommand<WriteResponseHandler>> commandList = new ArrayList<FutureCommand<WriteResponseHandler>>();
+		List<Map<String, File>> pathImageMapList = new ArrayList<Map<String, File>>();
+		List<String> outputArgs = getWriteOutputArgs(null);
+
+		for (Entry<Map<Tag, String>, List<File>> entry : groupMap.entrySet()) {
+			Map<Tag, String> tags = entry.getKey();
+			List<Map<String, File>> batchList = splitWriteBatches(entry
+					.getValue());
+
+			for (int i = 0, size = batchList.size(); i < size; i++) {
+				final Map<String, File> pathImageMap = batchList.get(i);
+				WriteResponseHandler handler = new WriteResponseHandler();
+				FutureCommand<WriteResponseHandler> command = new FutureCommand<WriteResponseHandler>(
+						pool, null, encodeArgs(buildWriteArgs(
+								pathImageMap.keySet(), format, tags,
+								outputArgs)),
+						handler, createMetrics(true, pathImageMap.size(),
+								tags.size() * pathImageMap.size(), null),
+						handler, null) {
+					@Override
+					protected void completing(IOException failure) {
+						// Before the writing thread can read the images again.
+						for (File image : pathImageMap.values())
+							invalidateCachedImageMeta(image);
+					}
+				};
+
+				pool.submitAsync(command, TIMEOUT);
+				commandList.add(command);
+				pathImageMapList.add(pathImageMap);
+			}
+		}
+
+		for (int i = 0, size = commandList.size(); i < size; i++) {
+			try {
+				result.add(commandList.get(i).get(), pathImageMapList.get(i));
+			} catch (ExecutionException e) {
+				result.fail(pathImageMapList.get(i), e.getCause());
+			} catch (InterruptedException e) {
+				// Don't start the writes that are still queued.
+				for (int j = i; j < size; j++)
+					commandList.get(j).cancel(false);
+
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for the writes to complete.");
+			}
+		}
+	}
+
+	/**
+	 * Used to write the given groups of images using a non-daemon ExifTool
+	 * process per batch, with the arguments streamed to it using
+	 * <code>-@ -</code>.
+	 */
+	private void writeImageMeta(Map<Map<Tag, String>, List<File>> groupMap,
+			Format format, WriteResult result) throws RuntimeException {
+		List<String> args = new ArrayList<String>(3);
+
+		args.add(EXIF_TOOL_PATH);
+		args.add("-@");
+		args.add("-");
+
+		List<String> outputArgs = getWriteOutputArgs(null);
+
+		for (Entry<Map<Tag, String>, List<File>> entry : groupMap.entrySet()) {
+			Map<Tag, String> tags = entry.getKey();
+			List<Map<String, File>> batchList = splitWriteBatches(entry
+					.getValue());
+
+			for (int i = 0, size = batchList.size(); i < size; i++) {
+				Map<String, File> pathImageMap = batchList.get(i);
+				WriteResponseHandler handler = new WriteResponseHandler();
+				RequestMetrics metrics = createMetrics(true,
+						pathImageMap.size(), tags.size() * pathImageMap.size(),
+						null);
+				boolean failed = true;
+
+				try {
+					IOStream streams = startProcess(args, null);
+					ProcessWatchdog watchdog = ProcessWatchdog.start(streams,
+							TIMEOUT);
+
+					try {
+						streams.writer.write(encodeArgs(buildWriteArgs(
+								pathImageMap.keySet(), format, tags,
+								outputArgs)));
+						streams.writer.close();
+
+						if (metrics != null)
+							metrics.writeEndTime = System.nanoTime();
+
+						readResponse(streams, handler, metrics, TIMEOUT);
+					} finally {
+						streams.close();
+
+						// Report a killed process as a timeout, not a failure.
+						if (watchdog != null)
+							watchdog.stop();
+					}
+
+					result.add(handler, pathImageMap);
+					failed = false;
+				} catch (IOException e) {
+					result.fail(pathImageMap, e);
+				} finally {
+					if (metrics != null)
+						metrics.completed(failed);
+
+					// The images may have changed even if the write failed.
+					for (File image : pathImageMap.values())
+						invalidateCachedImageMeta(image);
+				}
+			}
+		}
+	}
+
+	public Future<TagValueMap> getImageMetaAsync(File image, Tag... tags)
+			throws IllegalArgumentException, SecurityException,
+			IllegalStateException {
+		return getImageMetaAsync(image, Format.NUMERIC, null, tags);
+	}
+
+	public Future<TagValueMap> getImageMetaAsync(File image,
+			Format format, Tag... tags) throws IllegalArgumentException,
+			SecurityException, IllegalStateException {
+		return getImageMetaAsync(image, format, null, tags);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getImageMeta(File, Format, Tag...)} that
+	 * queues the query onto the daemon ExifTool processes of this instance and
+	 * returns immediately.
+	 * <p/>
+	 * The query is written to a daemon process as soon as one has a free
+	 * pipeline slot (see {@link #PIPELINE_DEPTH}) and its response is parsed by
+	 * the process's reader thread, so any number of queries can be
+	 * outstanding without tying up a thread per query. If a new process needs
+	 * to be started to run the query, it is started on a background thread.
+	 * <p/>
+	 * There is no bound on the number of queued queries and
+	 * {@link #POOL_CHECKOUT_TIMEOUT} does not apply to them; callers that need
+	 * back pressure should limit the number of outstanding calls themselves.
+	 * <p/>
+	 * The returned {@link Future} can only be cancelled while the query is
+	 * still waiting for a daemon process.
+	 * 
+	 * @param image
+	 *            The image to query.
+	 * @param format
+	 *            The output format the tag values are returned in.
+	 * @param callback
+	 *            The optional callback notified when the query completes, or
+	 *            <code>null</code>.
+	 * @param tags
+	 *            The tags to query from the image.
+	 * 
+	 * @return a {@link Future} for the result map of the query.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>image</code> or <code>format</code> is
+	 *             <code>null</code> or if <code>tags</code> is
+	 *             <code>null</code> or empty.
+	 * @throws SecurityException
+	 *             if the given image cannot be read.
+	 * @throws IllegalStateException
+	 *             if {@link Feature#STAY_OPEN} is not enabled on this instance.
+	 */
+	public Future<TagValueMap> getImageMetaAsync(File image,
+			Format format, ResultCallback<? super TagValueMap> callback,
+			Tag... tags) throws IllegalArgumentException, SecurityException,
+			IllegalStateException {
+		return getImageMetaAsync(image, new Query(format, tags), callback);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getImageMeta(File, Query)}; see
+	 * {@link #getImageMetaAsync(File, Format, ResultCallback, Tag...)}.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>image</code> or <code>query</code> is
+	 *             <code>null</code>.
+	 * @throws SecurityException
+	 *             if the given image cannot be read.
+	 * @throws IllegalStateException
+	 *             if {@link Feature#STAY_OPEN} is not enabled on this instance.
+	 */
+	public Future<TagValueMap> getImageMetaAsync(File image, Query query,
+			ResultCallback<? super TagValueMap> callback)
+			throws IllegalArgumentException, SecurityException,
+			IllegalStateException {
+		checkQueryArgs(image, query);
+		checkAsyncSupported();
+
+		if (DEBUG)
+			log("Queuing query of %d tags from image: %s", query.tags.length,
+					image.getAbsolutePath());
+
+		TagValueMap resultMap = new TagValueMap();
+		FutureCommand<TagValueMap> command = new FutureCommand<TagValueMap>(
+				pool, getArgBlock(query), encodeArgs(image.getAbsolutePath()
+						+ '\n'), createResponseHandler(image, resultMap),
+				createMetrics(false, 1, query.tags.length,
+						Collections.singleton(resultMap)), resultMap, callback);
+
+		pool.submitAsync(command, query.timeout);
+		return command;
+	}
+
+	public Future<WriteResult> setImageMetaAsync(File image,
+			Map<Tag, String> tags) throws IllegalArgumentException,
+			SecurityException, IllegalStateException {
+		return setImageMetaAsync(image, Format.NUMERIC, null, tags);
+	}
+
+	/**
+	 * Asynchronous version of {@link #setImageMeta(File, Format, Map)} that
+	 * queues the write onto the daemon ExifTool processes of this instance and
+	 * returns immediately.
+	 * <p/>
+	 * See {@link #getImageMetaAsync(File, Format, ResultCallback, Tag...)} for
+	 * details on how asynchronous calls are run.
+	 * 
+	 * @param image
+	 *            The image to write the tags to.
+	 * @param format
+	 *            The format the given tag values are in.
+	 * @param callback
+	 *            The optional callback notified when the write completes, or
+	 *            <code>null</code>.
+	 * @param tags
+	 *            The tag values to write to the image.
+	 * 
+	 * @return a {@link Future} for the outcome of the write, see
+	 *         {@link #setImageMeta(File, Format, Map)}.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>image</code> or <code>format</code> is
+	 *             <code>null</code>, if <code>tags</code> is
+	 *             <code>null</code> or empty or if a tag value or the path
+	 *             of the image contains a line break.
+	 * @throws SecurityException
+	 *             if the given image cannot be written.
+	 * @throws IllegalStateException
+	 *             if {@link Feature#STAY_OPEN} is not enabled on this instance.
+	 */
+	public Future<WriteResult> setImageMetaAsync(File image, Format format,
+			ResultCallback<? super WriteResult> callback, Map<Tag, String> tags)
+			throws IllegalArgumentException, SecurityException,
+			IllegalStateException {
+		checkWriteArgs(image, format, tags);
+		checkAsyncSupported();
+
+		if (DEBUG)
+			log("Queuing write of %d tags to image: %s", tags.size(),
+					image.getAbsolutePath());
+
+		final File writtenImage = image;
+		WriteResult result = new WriteResult();
+		FutureCommand<WriteResult> command = new FutureCommand<WriteResult>(
+				pool, null, encodeArgs(buildWriteArgs(image, format, tags,
+						getWriteOutputArgs(null))),
+				new WriteResponseHandler(result, Collections.singletonMap(
+						image.getAbsolutePath(), image)), createMetrics(true,
+						1, tags.size(), null), result, callback) {
+			@Override
+			protected void completing(IOException failure) {
+				// Invalidate before the caller can read the image again.
+				invalidateCachedImageMeta(writtenImage);
+			}
+		};
+
+		pool.submitAsync(command, TIMEOUT);
+		return command;
+	}
+
+	/**
+	 * Used to discard the values of the given image from the cache used by
+	 * this instance, if any.
+	 */
+	private void invalidateCachedImageMeta(File image) {
+		MetadataCache cache = metadataCache;
+
+		if (cache != null)
+			cache.invalidate(image);
+	}
+
+	private void checkAsyncSupported() throws IllegalStateException {
+		if (pool == null)
+			throw new IllegalStateException(
+					"Asynchronous calls are only supported by ExifTool instances created with Feature.STAY_OPEN enabled.");
+	}
+
+	private static void checkScanArgs(File root, Query query,
+			String[] extensions) throws IllegalArgumentException,
+			SecurityException {
+		if (root == null || !root.isDirectory())
+			throw new IllegalArgumentException(
+					"root cannot be null and must be a directory.");
+		if (query == null)
+			throw new IllegalArgumentException("query cannot be null");
+		if (extensions == null)
+			throw new IllegalArgumentException("extensions cannot be null");
+
+		for (String extension : extensions) {
+			if (extension == null || extension.length() == 0)
+				throw new IllegalArgumentException(
+						"extensions cannot contain a null or empty extension.");
+		}
+
+		if (!root.canRead())
+			throw new SecurityException(
+					"Unable to read the given directory ["
+							+ root.getAbsolutePath()
+							+ "], ensure that the directory exists at the given path and that the executing Java process has permissions to read it.");
+	}
+
+	private static void checkQueryArgs(File image, Query query)
+			throws IllegalArgumentException, SecurityException {
+		if (image == null)
+			throw new IllegalArgumentException(
+					"image cannot be null and must be a valid stream of image data.");
+		if (query == null)
+			throw new IllegalArgumentException("query cannot be null");
+		if (!image.canRead())
+			throw new SecurityException(
+					"Unable to read the given image ["
+							+ image.getAbsolutePath()
+							+ "], ensure that the image exists at the given path and that the executing Java process has permissions to read it.");
+	}
+
+	private static void checkCopyArgs(File image, File destination,
+			Format format, Map<Tag, String> tags)
+			throws IllegalArgumentException, SecurityException {
+		if (image == null)
+			throw new IllegalArgumentException(
+					"image cannot be null and must be a valid stream of image data.");
+		if (destination == null)
+			throw new IllegalArgumentException("destination cannot be null");
+		if (format == null)
+			throw new IllegalArgumentException("format cannot be null");
+		if (tags == null || tags.size() == 0)
+			throw new IllegalArgumentException(
+					"tags cannot be null and must contain 1 or more Tag to query the image for.");
+		if (destination.exists())
+			throw new IllegalArgumentException("destination ["
+					+ destination.getAbsolutePath()
+					+ "] already exists, ExifTool never overwrites an existing file when writing a copy of an image.");
+
+		checkArgLines(tags, image, destination);
+
+		if (!image.canRead())
+			throw new SecurityException(
+					"Unable to read the given image ["
+							+ image.getAbsolutePath()
+							+ "], ensure that the image exists at the given path and that the executing Java process has permissions to read it.");
+	}
+
+	private static void checkWriteArgs(File image, Format format,
+			Map<Tag, String> tags) throws IllegalArgumentException,
+			SecurityException {
+		if (image == null)
+			throw new IllegalArgumentException(
+					"image cannot be null and must be a valid stream of image data.");
+		if (format == null)
+			throw new IllegalArgumentException("format cannot be null");
+		if (tags == null || tags.size() == 0)
+			throw new IllegalArgumentException(
+					"tags cannot be null and must contain 1 or more Tag to query the image for.");
+
+		checkArgLines(tags, image);
+
+		if (!image.canWrite())
+			throw new SecurityException(
+					"Unable to read the given image ["
+							+ image.getAbsolutePath()
+							+ "], ensure that the image exists at the given path and that the executing Java process has permissions to read it.");
+	}
+
+	/**
+	 * Used to check that none of the given tag values and file paths contain
+	 * a line break. Write arguments are sent to ExifTool one per line
+	 * (<code>-@</code>), so a line break would end the argument early and
+	 * turn the rest of it into another argument.
+	 */
+	private static void checkArgLines(Map<Tag, String> tags, File... files)
+			throws IllegalArgumentException {
+		for (Entry<Tag, String> entry : tags.entrySet()) {
+			if (hasLineBreak(entry.getValue()))
+				throw new IllegalArgumentException("value of tag ["
+						+ entry.getKey()
+						+ "] cannot contain a line break ('\\r' or '\\n').");
+		}
+
+		for (File file : files) {
+			if (hasLineBreak(file.getAbsolutePath()))
+				throw new IllegalArgumentException("path ["
+						+ file.getAbsolutePath()
+						+ "] cannot contain a line break ('\\r' or '\\n').");
+		}
+	}
+
+	private static boolean hasLineBreak(String value) {
+		return (value != null && (value.indexOf('\n') != -1 || value
+				.indexOf('\r') != -1));
+	}
+
+	/**
+	 * @return the metrics to record for a new call or <code>null</code> if
+	 *         no {@link MetricsListener} is set.
+	 */
+	private RequestMetrics createMetrics(boolean write, int imageCount,
+			int tagsRequested, Collection<? extends Map<Tag, String>> results) {
+		MetricsListener listener = metricsListener;
 
-			T result = null;
+		if (listener == null)
+			return null;
 
-			// Check that there is work to do first.
-			if (value != null) {
-				Class<?> type = tag.type;
+		return new RequestMetrics(listener, pool != null, write, imageCount,
+				tagsRequested, results);
+	}
 
-				if (Boolean.class.isAssignableFrom(type))
-					result = (T) Boolean.valueOf(value);
-				else if (Byte.class.isAssignableFrom(type))
-					result = (T) Byte.valueOf(Byte.parseByte(value));
-				else if (Integer.class.isAssignableFrom(type))
-					result = (T) Integer.valueOf(Integer.parseInt(value));
-				else if (Short.class.isAssignableFrom(type))
-					result = (T) Short.valueOf(Short.parseShort(value));
-				else if (Long.class.isAssignableFrom(type))
-					result = (T) Long.valueOf(Long.parseLong(value));
-				else if (Float.class.isAssignableFrom(type))
-					result = (T) Float.valueOf(Float.parseFloat(value));
-				else if (Double.class.isAssignableFrom(type))
-					result = (T) Double.valueOf(Double.parseDouble(value));
-				else if (Character.class.isAssignableFrom(type))
-					result = (T) Character.valueOf(value.charAt(0));
-				else if (String.class.isAssignableFrom(type))
-					result = (T) value;
-			}
+	/**
+	 * Used to start an ExifTool process that runs a single call, reporting it
+	 * to the {@link MetricsListener} if there is one.
+	 * 
+	 * @param metrics
+	 *            The metrics of the call, whose write phase ends once the
+	 *            process has been started, or <code>null</code> if the
+	 *            arguments are still to be written (or no metrics are
+	 *            recorded).
+	 */
+	private IOStream startProcess(List<String> args, RequestMetrics metrics)
+			throws RuntimeException {
+		IOStream streams = startExifToolProcess(args);
+		MetricsListener listener = metricsListener;
 
-			return result;
-		}
+		if (metrics != null)
+			metrics.writeEndTime = System.nanoTime();
 
-		/**
-		 * Used to get the name of the tag (e.g. "Orientation", "ISO", etc.).
-		 * 
-		 * @return the name of the tag (e.g. "Orientation", "ISO", etc.).
-		 */
-		public String getName() {
-			return name;
+		if (listener != null) {
+			try {
+				listener.processStarted(false);
+			} catch (RuntimeException e) {
+				log("\tMetricsListener %s threw an exception: %s", listener, e);
+			}
 		}
 
-		/**
-		 * Used to get a hint for the native type of this tag's value as
-		 * specified by Phil Harvey's <a href=
-		 * "http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/index.html"
-		 * >ExifTool Tag Guide</a>.
-		 * 
-		 * @return a hint for the native type of this tag's value.
-		 */
-		public Class<?> getType() {
-			return type;
-		}
+		return streams;
+	}
 
-		private String name;
-		private Class<?> type;
+	/**
+	 * @return the argument selecting the output format ExifTool returns tag
+	 *         values in: "<code>-j</code>" (JSON) if {@link Feature#JSON} is
+	 *         enabled, otherwise "<code>-S</code>" (compact).
+	 */
+	private String getOutputArg() {
+		return (featureSet.contains(Feature.JSON) ? "-j" : "-S");
+	}
 
-		private Tag(String name, Class<?> type) {
-			this.name = name;
-			this.type = type;
-		}
+	/**
+	 * @return the prebuilt argument lines of the given query, using the output
+	 *         format used by this instance.
+	 */
+	private byte[] getArgBlock(Query query) {
+		return (featureSet.contains(Feature.JSON) ? query.jsonArgBlock
+				: query.compactArgBlock);
 	}
 
-	private Timer cleanupTimer;
-	private TimerTask currentCleanupTask;
+	/**
+	 * @return the handler used to parse the response to a query of the given
+	 *         image in the output format used by this instance.
+	 */
+	private ResponseHandler createResponseHandler(File image,
+			Map<Tag, String> resultMap) {
+		if (featureSet.contains(Feature.JSON))
+			return new JsonTagValueHandler(Collections.singletonMap(
+					image.getAbsolutePath(), resultMap));
 
-	private IOStream streams;
-	private List<String> args;
+		return new TagValueHandler(resultMap);
+	}
 
-	private Set<Feature> featureSet;
+	/**
+	 * @return the handler used to parse the response to a query of multiple
+	 *         images in the output format used by this instance.
+	 */
+	private ResponseHandler createBatchResponseHandler(
+			Map<String, ? extends Map<Tag, String>> pathResultMap) {
+		if (featureSet.contains(Feature.JSON))
+			return new JsonTagValueHandler(pathResultMap);
 
-	public ExifTool() {
-		this((Feature[]) null);
+		return new BatchTagValueHandler(pathResultMap);
 	}
 
-	public ExifTool(Feature... features) throws UnsupportedFeatureException {
-		featureSet = new HashSet<ExifTool.Feature>();
+	/**
+	 * @return the arguments selecting where ExifTool writes new tag values
+	 *         to: the given destination (<code>-o</code>) or, if it is
+	 *         <code>null</code>, the original image replaced as set by
+	 *         {@link #setWriteMode(WriteMode)}.
+	 */
+	private List<String> getWriteOutputArgs(File destination) {
+		if (destination != null)
+			return Arrays.asList("-o", destination.getAbsolutePath());
 
-		if (features != null && features.length > 0) {
-			/*
-			 * Process all features to ensure we checked them for support in the
-			 * installed version of ExifTool. If the feature has already been
-			 * checked before, this method will return immediately.
-			 */
-			checkFeatureSupport(features);
+		WriteMode mode = writeMode;
 
-			/*
-			 * Now we need to verify that all the features requested for this
-			 * instance of ExifTool to use WERE supported after all.
-			 */
-			for (int i = 0; i < features.length; i++) {
-				Feature f = features[i];
+		if (mode.arg == null)
+			return Collections.emptyList();
 
-				/*
-				 * If the Feature was supported, record it in the local
-				 * featureSet so this instance knows what features are being
-				 * turned on by the caller.
-				 * 
-				 * If the Feature was not supported, throw an exception
-				 * reporting it to the caller so they know it cannot be used.
-				 */
-				if (FEATURE_SUPPORT_MAP.get(f).booleanValue())
-					featureSet.add(f);
-				else
-					throw new UnsupportedFeatureException(f);
-			}
+		return Collections.singletonList(mode.arg);
+	}
+
+	/**
+	 * Used to build the arguments for writing the given tag values to a
+	 * single image, one per line, as expected by ExifTool's <code>-@</code>
+	 * argument file support.
+	 */
+	private static String buildWriteArgs(File image, Format format,
+			Map<Tag, String> tags, List<String> outputArgs) {
+		return buildWriteArgs(Collections.singleton(image.getAbsolutePath()),
+				format, tags, outputArgs);
+	}
+
+	/**
+	 * Used to build the arguments for writing the same tag values to all the
+	 * given images with a single command.
+	 */
+	private static String buildWriteArgs(Collection<String> paths,
+			Format format, Map<Tag, String> tags, List<String> outputArgs) {
+		StringBuilder args = new StringBuilder(256 + paths.size() * 64);
+
+		if (format == Format.NUMERIC)
+			args.append("-n\n"); // numeric output
+
+		args.append("-S\n"); // compact output
+
+		for (String arg : outputArgs)
+			args.append(arg).append('\n');
+
+		/*
+		 * Every line is one argument, taken as is: quotes would end up in the
+		 * written value.
+		 */
+		for (Entry<Tag, String> entry : tags.entrySet())
+			args.append('-').append(entry.getKey().name).append('=')
+					.append(entry.getValue()).append('\n');
+
+		for (String path : paths)
+			args.append(path).append('\n');
+
+		return args.toString();
+	}
+
+	/**
+	 * Used to read the complete output of a non-daemon ExifTool process, until
+	 * the process exits, handing every line to the given handler.
+	 * 
+	 * @param streams
+	 *            The streams of the ExifTool process to read from.
+	 * @param handler
+	 *            The handler every line of output is handed to or
+	 *            <code>null</code> to discard the output.
+	 * @param metrics
+	 *            The metrics of the call the lines read are recorded in or
+	 *            <code>null</code>.
+	 * @param timeout
+	 *            The timeout of the call, which also limits the time spent
+	 *            waiting for the process to exit once its output ended, or
+	 *            <code>0</code> for no limit.
+	 * 
+	 * @throws IOException
+	 *             if an error occurs reading from the process.
+	 */
+	private static void readResponse(IOStream streams,
+			ResponseHandler handler, RequestMetrics metrics, long timeout)
+			throws IOException {
+		log("\tReading response back from ExifTool...");
+
+		LineReader reader = streams.reader;
+
+		while (reader.nextLine()) {
+			if (metrics != null)
+				metrics.lineRead(reader.lineBytes());
+
+			if (handler != null)
+				handler.handleLine(reader.buffer, reader.lineStart,
+						reader.lineEnd);
 		}
 
-		args = new ArrayList<String>(64);
+		// The process is exiting, so it has printed all of its messages.
+		handleMessages(handler,
+				streams.errors.awaitMessages(streams.process, timeout));
+	}
+
+	/**
+	 * @return the value mapped to the image with the given path, as reported
+	 *         by ExifTool, or <code>null</code> if it is not one of the given
+	 *         images.
+	 */
+	private static <T> T lookupPath(Map<String, ? extends T> pathMap,
+			String path) {
+		T value = pathMap.get(path);
 
 		/*
-		 * Now that initialization is done, init the cleanup timer if we are
-		 * using STAY_OPEN and the delay time set is non-zero.
+		 * On Windows ExifTool may report the path using '/' as the separator
+		 * even if it was given using '\'.
 		 */
-		if (isFeatureEnabled(Feature.STAY_OPEN) && PROCESS_CLEANUP_DELAY > 0) {
-			this.cleanupTimer = new Timer(CLEANUP_THREAD_NAME, true);
+		if (value == null && File.separatorChar != '/')
+			value = pathMap.get(path.replace('/', File.separatorChar));
+
+		return value;
+	}
+
+	/**
+	 * Used to hand the given messages (<code>null</code> if there are none)
+	 * to the given handler, or to log them if there is no handler.
+	 */
+	private static void handleMessages(ResponseHandler handler,
+			List<String> messages) {
+		if (handler != null)
+			handler.handleMessages(messages == null ? Collections
+					.<String> emptyList() : messages);
+		else if (DEBUG && messages != null)
+			log("\tExifTool printed messages: %s", messages);
+	}
+
+	/**
+	 * Used to add each of the given messages to the result map of the image
+	 * it is about, which ExifTool appends to the message as
+	 * "<code> - path</code>". Messages that are not about one of the given
+	 * images (e.g. a warning about an argument) are added to all of them.
+	 */
+	private static void addMessages(List<String> messages,
+			Map<String, ? extends Map<Tag, String>> pathResultMap) {
+		for (int i = 0, size = messages.size(); i < size; i++) {
+			String message = messages.get(i);
+			Map<Tag, String> resultMap = null;
+
+			if (pathResultMap.size() == 1)
+				resultMap = pathResultMap.values().iterator().next();
+			else {
+				int index = message.lastIndexOf(" - ");
+
+				if (index != -1)
+					resultMap = lookupPath(pathResultMap,
+							message.substring(index + 3));
+			}
 
-			// Start the first cleanup task counting down.
-			resetCleanupTask();
+			if (resultMap != null)
+				addMessage(resultMap, message);
+			else {
+				for (Map<Tag, String> map : pathResultMap.values())
+					addMessage(map, message);
+			}
 		}
 	}
 
 	/**
-	 * Used to shutdown the external ExifTool process and close the read/write
-	 * streams used to communicate with it when {@link Feature#STAY_OPEN} is
-	 * enabled.
-	 * <p/>
-	 * <strong>NOTE</strong>: Calling this method does not preclude this
-	 * instance of {@link ExifTool} from being re-used, it merely disposes of
-	 * the native and internal resources until the next call to
-	 * <code>getImageMeta</code> causes them to be re-instantiated.
+	 * Used to add the given message to the given result map, if it is a
+	 * {@link TagValueMap}; other maps have nowhere to keep it.
+	 */
+	private static void addMessage(Map<Tag, String> resultMap, String message) {
+		if (resultMap instanceof TagValueMap)
+			((TagValueMap) resultMap).addMessage(message);
+	}
+
+	/**
+	 * Used to parse previously captured output of a multi-image query, the
+	 * same way the response of a running ExifTool process is parsed.
 	 * <p/>
-	 * The cleanup thread will automatically call this after an interval of
-	 * inactivity defined by {@link #PROCESS_CLEANUP_DELAY}.
+	 * This exists so the cost of parsing can be measured (e.g. by the
+	 * benchmarks) without an ExifTool install.
+	 * 
+	 * @param in
+	 *            The captured output to parse.
+	 * @param json
+	 *            <code>true</code> if the output is JSON (<code>-j</code>),
+	 *            <code>false</code> if it is compact (<code>-S</code>).
+	 * @param pathResultMap
+	 *            The result maps the parsed values are stored in, keyed by
+	 *            the path of their image.
+	 * 
+	 * @throws IOException
+	 *             if an error occurs reading the output.
+	 */
+	static void parseImageMeta(InputStream in, boolean json,
+			Map<String, ? extends Map<Tag, String>> pathResultMap)
+			throws IOException {
+		LineReader reader = new LineReader(in);
+		ResponseHandler handler = (json ? new JsonTagValueHandler(
+				pathResultMap) : new BatchTagValueHandler(pathResultMap));
+
+		while (reader.nextLine())
+			handler.handleLine(reader.buffer, reader.lineStart,
+					reader.lineEnd);
+	}
+
+	/**
+	 * Used to parse a single "<code>name: value</code>" line of compact
+	 * (<code>-S</code>) ExifTool output into the given result map.
 	 * <p/>
-	 * Calling this method on an instance of this class without
-	 * {@link Feature#STAY_OPEN} support enabled has no effect.
+	 * The line is split at the first "<code>: </code>", tag names never
+	 * contain one, so values that do (e.g. a time of "<code>12: 30</code>")
+	 * are kept intact. The name is matched in place and only the value of a
+	 * recognized tag is decoded into a {@link String}.
+	 * 
+	 * @param buffer
+	 *            The buffer holding the line of output to parse.
+	 * @param start
+	 *            The index of the first byte of the line.
+	 * @param end
+	 *            The index after the last byte of the line.
+	 * @param resultMap
+	 *            The map the parsed tag value is stored in.
 	 */
-	public void close() {
-		/*
-		 * no-op if the underlying process and streams have already been closed
-		 * OR if stayOpen was never used in the first place in which case
-		 * nothing is open right now anyway.
-		 */
-		if (streams == null)
+	private static void parseTagValue(byte[] buffer, int start, int end,
+			Map<Tag, String> resultMap) {
+		int separator = start;
+
+		while (separator < end - 1
+				&& (buffer[separator] != ':' || buffer[separator + 1] != ' '))
+			separator++;
+
+		if (separator >= end - 1)
 			return;
 
+		// Determine the tag represented by this value.
+		Tag tag = Tag.forName(buffer, start, separator);
+
 		/*
-		 * If ExifTool was used in stayOpen mode but getImageMeta was never
-		 * called then the streams were never initialized and there is nothing
-		 * to shut down or destroy, otherwise we need to close down all the
-		 * resources in use.
+		 * Store the tag and the associated value in the result map only if we
+		 * were able to map the name back to a Tag instance. If not, then this
+		 * is an unknown/unexpected tag return value and we skip it since we
+		 * cannot translate it back to one of our supported tags.
 		 */
-		if (streams == null) {
-			log("\tThis ExifTool instance was never used so no external process or streams were ever created (nothing to clean up, we will just exit).");
-		} else {
-			try {
-				log("\tAttempting to close ExifTool daemon process, issuing '-stay_open\\nFalse\\n' command...");
+		if (tag != null) {
+			String value = decode(buffer, separator + 2, end);
+			resultMap.put(tag, value);
 
-				// Tell the ExifTool process to exit.
-				streams.writer.write("-stay_open\nFalse\n");
-				streams.writer.flush();
+			if (DEBUG)
+				log("\t\tRead Tag [name=%s, value=%s]", tag.name, value);
+		}
+	}
 
-				log("\t\tSuccessful");
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
-				streams.close();
-			}
+	/**
+	 * @return <code>true</code> if the given region of bytes starts with the
+	 *         given (ASCII) prefix.
+	 */
+	private static boolean startsWith(byte[] buffer, int start, int end,
+			String prefix) {
+		int length = prefix.length();
+
+		if (end - start < length)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (buffer[start + i] != prefix.charAt(i))
+				return false;
 		}
 
-		streams = null;
-		log("\tExifTool daemon process successfully terminated.");
+		return true;
 	}
 
 	/**
-	 * For {@link ExifTool} instances with {@link Feature#STAY_OPEN} support
-	 * enabled, this method is used to determine if there is currently a running
-	 * ExifTool process associated with this class.
+	 * @return the number of the given "<code>{readyNNN}</code>" line or
+	 *         <code>-1</code> if it does not have one.
+	 */
+	private static int parseReadyNumber(byte[] buffer, int start, int end) {
+		int number = 0;
+		int i = start + READY_PREFIX.length();
+
+		if (i >= end || buffer[i] == '}')
+			return -1;
+
+		for (; i < end && buffer[i] != '}'; i++) {
+			if (buffer[i] < '0' || buffer[i] > '9')
+				return -1;
+
+			number = number * 10 + (buffer[i] - '0');
+		}
+
+		return number;
+	}
+
+	/**
+	 * Used to decode the given region of ExifTool output into a
+	 * {@link String}.
+	 */
+	private static String decode(byte[] buffer, int start, int end) {
+		try {
+			return new String(buffer, start, end - start, OUTPUT_CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			// Every Java platform is required to support UTF-8.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Used to build the encoded path arguments of a multi-image query, one
+	 * per line, as expected by ExifTool's <code>-@</code> argument file
+	 * support.
+	 */
+	private static byte[] buildPathArgs(Collection<String> paths) {
+		StringBuilder args = new StringBuilder(paths.size() * 64);
+
+		for (String path : paths)
+			args.append(path).append('\n');
+
+		return encodeArgs(args.toString());
+	}
+
+	/**
+	 * Used to encode argument lines the way they are written to ExifTool.
 	 * <p/>
-	 * Any dependent processes and streams can be shutdown using
-	 * {@link #close()} and this class will automatically re-create them on the
-	 * next call to <code>getImageMeta</code> if necessary.
-	 * 
-	 * @return <code>true</code> if there is an external ExifTool process in
-	 *         daemon mode associated with this class utilizing the
-	 *         {@link Feature#STAY_OPEN} feature, otherwise returns
-	 *         <code>false</code>.
+	 * Arguments (including image paths) are encoded using the default
+	 * character set of the platform, which is also the one the JVM uses to
+	 * encode the arguments of the processes it starts.
 	 */
-	public boolean isRunning() {
-		return (streams != null);
+	private static byte[] encodeArgs(String args) {
+		return args.getBytes();
 	}
 
 	/**
-	 * Used to determine if the given {@link Feature} has been enabled for this
-	 * particular instance of {@link ExifTool}.
+	 * Class used to represent the task run by the single cleanup thread shared
+	 * by all instances of this class, which shuts down idle daemon processes
+	 * (all but the minimum pool size) after {@link #PROCESS_CLEANUP_DELAY}
+	 * milliseconds of inactivity.
 	 * <p/>
-	 * This method is different from {@link #isFeatureSupported(Feature)}, which
-	 * checks if the given feature is supported by the underlying ExifTool
-	 * install where as this method tells the caller if the given feature has
-	 * been enabled for use in this particular instance.
-	 * 
-	 * @param feature
-	 *            The feature to check if it has been enabled for us or not on
-	 *            this instance.
-	 * 
-	 * @return <code>true</code> if the given {@link Feature} is currently
-	 *         enabled on this instance of {@link ExifTool}, otherwise returns
-	 *         <code>false</code>.
+	 * Calls never schedule anything themselves, the pools only record the time
+	 * they were last used and this task periodically checks every registered
+	 * pool against it. Pools are only referenced weakly so an unused
+	 * {@link ExifTool} instance (whose processes have all exited) can still be
+	 * garbage collected.
 	 * 
-	 * @throws IllegalArgumentException
-	 *             if <code>feature</code> is <code>null</code>.
+	 * @author Riyad Kalla (software@thebuzzmedia.com)
+	 * @since 1.1
 	 */
-	public boolean isFeatureEnabled(Feature feature)
-			throws IllegalArgumentException {
-		if (feature == null)
-			throw new IllegalArgumentException("feature cannot be null");
+	private static class CleanupTask implements Runnable {
+		// Guarded by itself.
+		private static final List<WeakReference<DaemonPool>> POOL_LIST = new ArrayList<WeakReference<DaemonPool>>();
+
+		private static ScheduledExecutorService executor;
+		private static boolean scheduled;
+
+		/**
+		 * Used to have the cleanup thread watch the given pool, starting the
+		 * thread if this is the first pool registered.
+		 */
+		static void register(DaemonPool pool) {
+			synchronized (POOL_LIST) {
+				POOL_LIST.add(new WeakReference<DaemonPool>(pool));
+
+				if (!scheduled) {
+					long period = Math.max(1, PROCESS_CLEANUP_DELAY / 4);
+					getExecutor().scheduleWithFixedDelay(new CleanupTask(),
+							period, period, TimeUnit.MILLISECONDS);
+					scheduled = true;
+				}
+			}
+		}
+
+		/**
+		 * @return the executor running the cleanup thread, starting it if
+		 *         necessary. It is also used to time out calls, which only
+		 *         ever takes a moment.
+		 */
+		static synchronized ScheduledExecutorService getExecutor() {
+			if (executor == null)
+				executor = Executors
+						.newSingleThreadScheduledExecutor(new ThreadFactory() {
+							public Thread newThread(Runnable runnable) {
+								Thread thread = new Thread(runnable,
+										CLEANUP_THREAD_NAME);
+
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+
+			return executor;
+		}
+
+		public void run() {
+			long now = System.currentTimeMillis();
+			List<DaemonPool> idleList = null;
+
+			synchronized (POOL_LIST) {
+				for (Iterator<WeakReference<DaemonPool>> i = POOL_LIST
+						.iterator(); i.hasNext();) {
+					DaemonPool pool = i.next().get();
+
+					if (pool == null)
+						i.remove();
+					else if (now - pool.lastUsedTime >= PROCESS_CLEANUP_DELAY) {
+						if (idleList == null)
+							idleList = new ArrayList<DaemonPool>();
+
+						idleList.add(pool);
+					}
+				}
+			}
+
+			if (idleList == null)
+				return;
+
+			log("\tAuto cleanup task running...");
 
-		return featureSet.contains(feature);
+			for (int i = 0, size = idleList.size(); i < size; i++) {
+				try {
+					idleList.get(i).trim();
+				} catch (RuntimeException e) {
+					// Never let one pool stop the cleanup of the others.
+					log("\tUnable to clean up idle ExifTool daemon processes: %s",
+							e);
+				}
+			}
+		}
 	}
 
-	public Map<Tag, String> getImageMeta(File image, Tag... tags)
-			throws IllegalArgumentException, SecurityException, IOException {
-		return getImageMeta(image, Format.NUMERIC, tags);
-	}
+	/**
+	 * Class used to iterate over the results of a scan of a directory tree
+	 * (see {@link ExifTool#scan(File, Query, String...)} and
+	 * {@link ExifTool#scanParallel(File, Query, int, boolean, String...)}),
+	 * one image at a time, while the tree is still being walked.
+	 * <p/>
+	 * Results are only produced as fast as they are read: when the caller
+	 * stops reading, the scan stops too, so the memory used by a scan stays
+	 * the same no matter how large the tree is.
+	 * <p/>
+	 * The warning and error messages ExifTool prints about an image are
+	 * added to its {@link TagValueMap#getMessages()}.
+	 * <p/>
+	 * A scan that is abandoned before the last result has been read must be
+	 * closed using {@link #close()} to stop it; reaching the end of the
+	 * results closes it automatically. A failure of the scan is thrown from
+	 * {@link #hasNext()} or {@link #next()} as a {@link RuntimeException}
+	 * wrapping the {@link IOException}, as the {@link Iterator} methods
+	 * cannot throw checked exceptions.
+	 * <p/>
+	 * This class is not thread-safe; a scan must be read by a single thread
+	 * at a time.
+	 * 
+	 * @since 1.2
+	 */
+	public static abstract class ScanIterator implements
+			Iterator<Entry<File, TagValueMap>>, Closeable {
+		/**
+		 * The next result, set by {@link #hasNext()} once it is available.
+		 */
+		Entry<File, TagValueMap> next;
 
-	public Map<Tag, String> getImageMeta(File image, Format format, Tag... tags)
-			throws IllegalArgumentException, SecurityException, IOException {
-		if (image == null)
-			throw new IllegalArgumentException(
-					"image cannot be null and must be a valid stream of image data.");
-		if (format == null)
-			throw new IllegalArgumentException("format cannot be null");
-		if (tags == null || tags.length == 0)
-			throw new IllegalArgumentException(
-					"tags cannot be null and must contain 1 or more Tag to query the image for.");
-		if (!image.canRead())
-			throw new SecurityException(
-					"Unable to read the given image ["
-							+ image.getAbsolutePath()
-							+ "], ensure that the image exists at the given path and that the executing Java process has permissions to read it.");
+		ScanIterator() {
+			// Only created by ExifTool.
+		}
 
-		long startTime = System.currentTimeMillis();
+		/**
+		 * @throws RuntimeException
+		 *             if the scan failed.
+		 */
+		public abstract boolean hasNext() throws RuntimeException;
 
-		/*
-		 * Create a result map big enough to hold results for each of the tags
-		 * and avoid collisions while inserting.
+		/**
+		 * @return the next image found, mapped to the values of the queried
+		 *         tags it contains.
+		 * 
+		 * @throws NoSuchElementException
+		 *             if all the images found have been returned.
+		 * @throws RuntimeException
+		 *             if the scan failed.
 		 */
-		Map<Tag, String> resultMap = new HashMap<ExifTool.Tag, String>(
-				tags.length * 3);
+		public Entry<File, TagValueMap> next() throws NoSuchElementException,
+				RuntimeException {
+			if (!hasNext())
+				throw new NoSuchElementException();
 
-		if (DEBUG)
-			log("Querying %d tags from image: %s", tags.length,
-					image.getAbsolutePath());
+			Entry<File, TagValueMap> result = next;
+			next = null;
+			return result;
+		}
 
-		long exifToolCallElapsedTime = 0;
+		/**
+		 * @throws UnsupportedOperationException
+		 *             always, the results of a scan cannot be removed.
+		 */
+		public void remove() throws UnsupportedOperationException {
+			throw new UnsupportedOperationException();
+		}
 
-		/*
-		 * Using ExifTool in daemon mode (-stay_open True) executes different
-		 * code paths below. So establish the flag for this once and it is
-		 * reused a multitude of times later in this method to figure out where
-		 * to branch to.
+		/**
+		 * Used to stop the scan and release the ExifTool processes (or the
+		 * daemon processes) running it. Results that have already been read
+		 * remain valid. Calling this method more than once has no effect.
 		 */
-		boolean stayOpen = featureSet.contains(Feature.STAY_OPEN);
+		public abstract void close();
 
-		// Clear process args
-		args.clear();
+		static class ScanResult implements Entry<File, TagValueMap> {
+			private final File image;
+			private final TagValueMap resultMap;
 
-		if (stayOpen) {
-			log("\tUsing ExifTool in daemon mode (-stay_open True)...");
+			public ScanResult(File image, TagValueMap resultMap) {
+				this.image = image;
+				this.resultMap = resultMap;
+			}
 
-			// Always reset the cleanup task.
-			resetCleanupTask();
+			public File getKey() {
+				return image;
+			}
 
-			/*
-			 * If this is our first time calling getImageMeta with a stayOpen
-			 * connection, set up the persistent process and run it so it is
-			 * ready to receive commands from us.
-			 */
-			if (streams == null) {
-				log("\tStarting daemon ExifTool process and creating read/write streams (this only happens once)...");
+			public TagValueMap getValue() {
+				return resultMap;
+			}
 
-				args.add(EXIF_TOOL_PATH);
-				args.add("-stay_open");
-				args.add("True");
-				args.add("-@");
-				args.add("-");
+			public TagValueMap setValue(TagValueMap value) {
+				throw new UnsupportedOperationException();
+			}
 
-				// Begin the persistent ExifTool process.
-				streams = startExifToolProcess(args);
+			@Override
+			public String toString() {
+				return image + "=" + resultMap;
 			}
+		}
+	}
 
-			log("\tStreaming arguments to ExifTool process...");
+	/**
+	 * {@link ScanIterator} reading the results of a recursive
+	 * (<code>-r</code>) scan run by a single, dedicated ExifTool process.
+	 * <p/>
+	 * There is no buffering thread: {@link #hasNext()} reads the output of
+	 * the process directly until the next image is complete. When the caller
+	 * stops reading, ExifTool blocks as soon as the (OS) pipe it prints to is
+	 * full, and the first results are returned as soon as ExifTool prints
+	 * them.
+	 * 
+	 * @since 1.2
+	 */
+	private static class ProcessScanIterator extends ScanIterator {
+		private final IOStream streams;
+		private final ResponseHandler handler;
 
-			if (format == Format.NUMERIC)
-				streams.writer.write("-n\n"); // numeric output
+		// Milliseconds to wait for ExifTool to exit at the end, 0 for none.
+		private final long exitTimeout;
 
-			streams.writer.write("-S\n"); // compact output
+		/**
+		 * Messages not yet added to the result map of the image they are
+		 * about. ExifTool does not buffer its standard error stream like it
+		 * does its output, so messages about an image are usually read
+		 * before the image itself.
+		 */
+		private final LinkedList<String> messageList = new LinkedList<String>();
+
+		// The image whose values are currently being read.
+		private String path;
+		private TagValueMap resultMap;
+
+		private boolean closed;
+
+		public ProcessScanIterator(IOStream streams, boolean json,
+				long exitTimeout) {
+			this.streams = streams;
+			this.exitTimeout = exitTimeout;
+
+			Map<String, TagValueMap> noImages = Collections.emptyMap();
+
+			if (json)
+				handler = new JsonTagValueHandler(noImages) {
+					@Override
+					Map<Tag, String> getResultMap(String path) {
+						return startImage(path);
+					}
+				};
+			else
+				handler = new BatchTagValueHandler(noImages) {
+					@Override
+					Map<Tag, String> getResultMap(String path) {
+						return startImage(path);
+					}
+				};
+		}
 
-			for (int i = 0; i < tags.length; i++) {
-				streams.writer.write('-');
-				streams.writer.write(tags[i].name);
-				streams.writer.write("\n");
-			}
+		@Override
+		public boolean hasNext() throws RuntimeException {
+			if (next != null)
+				return true;
+			if (closed)
+				return false;
 
-			streams.writer.write(image.getAbsolutePath());
-			streams.writer.write("\n");
+			try {
+				LineReader reader = streams.reader;
 
-			log("\tExecuting ExifTool...");
+				while (next == null && reader.nextLine())
+					handler.handleLine(reader.buffer, reader.lineStart,
+							reader.lineEnd);
 
-			// Begin tracking the duration ExifTool takes to respond.
-			exifToolCallElapsedTime = System.currentTimeMillis();
+				if (next == null) {
+					// ExifTool is done and has printed all of its messages.
+					addMessages(streams.errors.awaitMessages(
+							streams.process, exitTimeout));
 
-			// Run ExifTool on our file with all the given arguments.
-			streams.writer.write("-execute\n");
-			streams.writer.flush();
-		} else {
-			log("\tUsing ExifTool in non-daemon mode (-stay_open False)...");
+					if (path != null)
+						completeImage();
 
-			/*
-			 * Since we are not using a stayOpen process, we need to setup the
-			 * execution arguments completely each time.
-			 */
-			args.add(EXIF_TOOL_PATH);
+					if (!messageList.isEmpty())
+						log("\tDropping %d ExifTool messages about images that were not scanned: %s",
+								messageList.size(), messageList);
 
-			if (format == Format.NUMERIC)
-				args.add("-n"); // numeric output
+					close();
+				}
+			} catch (IOException e) {
+				close();
+				throw new RuntimeException(
+						"Unable to read the results of the scan from ExifTool.",
+						e);
+			}
 
-			args.add("-S"); // compact output
+			return (next != null);
+		}
 
-			for (int i = 0; i < tags.length; i++)
-				args.add("-" + tags[i].name);
+		@Override
+		public void close() {
+			if (closed)
+				return;
 
-			args.add(image.getAbsolutePath());
+			closed = true;
 
-			// Run the ExifTool with our args.
-			streams = startExifToolProcess(args);
+			log("\tClosing ExifTool scan...");
 
-			// Begin tracking the duration ExifTool takes to respond.
-			exifToolCallElapsedTime = System.currentTimeMillis();
+			// A no-op if the process has already exited.
+			streams.process.destroy();
+			streams.close();
 		}
 
-		log("\tReading response back from ExifTool...");
+		/**
+		 * Called by the handler when ExifTool starts printing the values of
+		 * the next image, which means the previous one is complete.
+		 */
+		private Map<Tag, String> startImage(String newPath) {
+			if (path != null) {
+				addMessages(streams.errors.takeMessages());
+				completeImage();
+			}
 
-		String line = null;
+			path = newPath;
+			resultMap = new TagValueMap();
+			return resultMap;
+		}
 
-		while ((line = streams.reader.readLine()) != null) {
-			String[] pair = TAG_VALUE_PATTERN.split(line);
+		/**
+		 * Used to hand the image currently being read out as the next result,
+		 * together with the messages about it.
+		 */
+		private void completeImage() {
+			String suffix = " - " + path;
 
-			if (pair != null && pair.length == 2) {
-				// Determine the tag represented by this value.
-				Tag tag = Tag.forName(pair[0]);
+			for (Iterator<String> iterator = messageList.iterator(); iterator
+					.hasNext();) {
+				String message = iterator.next();
 
 				/*
-				 * Store the tag and the associated value in the result map only
-				 * if we were able to map the name back to a Tag instance. If
-				 * not, then this is an unknown/unexpected tag return value and
-				 * we skip it since we cannot translate it back to one of our
-				 * supported tags.
+				 * Messages that do not name an image (e.g. about an argument)
+				 * are added to the image being read when they are read.
 				 */
-				if (tag != null) {
-					resultMap.put(tag, pair[1]);
-					log("\t\tRead Tag [name=%s, value=%s]", tag.name, pair[1]);
+				if (message.endsWith(suffix)
+						|| message.lastIndexOf(" - ") == -1) {
+					resultMap.addMessage(message);
+					iterator.remove();
 				}
 			}
 
-			/*
-			 * When using a persistent ExifTool process, it terminates its
-			 * output to us with a "{ready}" clause on a new line, we need to
-			 * look for it and break from this loop when we see it otherwise
-			 * this process will hang indefinitely blocking on the input stream
-			 * with no data to read.
-			 */
-			if (stayOpen && line.equals("{ready}"))
-				break;
+			next = new ScanResult(new File(path), resultMap);
+			path = null;
+			resultMap = null;
 		}
 
-		// Print out how long the call to external ExifTool process took.
-		log("\tFinished reading ExifTool response in %d ms.",
-				(System.currentTimeMillis() - exifToolCallElapsedTime));
+		private void addMessages(List<String> messages) {
+			if (messages == null)
+				return;
 
-		/*
-		 * If we are not using a persistent ExifTool process, then after running
-		 * the command above, the process exited in which case we need to clean
-		 * our streams up since it no longer exists. If we were using a
-		 * persistent ExifTool process, leave the streams open for future calls.
-		 */
-		if (!stayOpen)
-			streams.close();
+			messageList.addAll(messages);
 
-		if (DEBUG)
-			log("\tImage Meta Processed in %d ms [queried %d tags and found %d values]",
-					(System.currentTimeMillis() - startTime), tags.length,
-					resultMap.size());
+			// Never let messages about images that never show up pile up.
+			while (messageList.size() > MAX_MESSAGES)
+				messageList.removeFirst();
+		}
 
-		return resultMap;
-	}
-        
-        public void setImageMeta(File image, Map<Tag, String> tags) 
-                        throws IllegalArgumentException, SecurityException, IOException {
-		setImageMeta(image, Format.NUMERIC, tags);
+		@Override
+		public String toString() {
+			return "ProcessScanIterator [closed=" + closed + ", path=" + path
+					+ "]";
+		}
 	}
-        
-        public void setImageMeta(File image, Format format, Map<Tag, String> tags )
-			throws IllegalArgumentException, SecurityException, IOException {
-		if (image == null)
-			throw new IllegalArgumentException(
-					"image cannot be null and must be a valid stream of image data.");
-		if (format == null)
-			throw new IllegalArgumentException("format cannot be null");
-		if (tags == null || tags.size() == 0)
-			throw new IllegalArgumentException(
-					"tags cannot be null and must contain 1 or more Tag to query the image for.");
-		if (!image.canWrite())
-			throw new SecurityException(
-					"Unable to read the given image ["
-							+ image.getAbsolutePath()
-							+ "], ensure that the image exists at the given path and that the executing Java process has permissions to read it.");
 
-		long startTime = System.currentTimeMillis();
+	/**
+	 * {@link ScanIterator} walking a directory tree in Java and running the
+	 * query against batches of the images found on the daemon processes of a
+	 * {@link DaemonPool}, in parallel.
+	 * <p/>
+	 * The tree is walked lazily on the thread reading the results, keeping
+	 * just enough batches submitted to keep every process of the pool busy
+	 * (including its pipeline, see {@link ExifTool#PIPELINE_DEPTH}). Batches
+	 * wait in the queue of the pool, which hands the next one to whichever
+	 * process completes a batch first, so a process that is slowed down by a
+	 * few large files never holds up the others.
+	 * <p/>
+	 * A batch that fails (e.g. because a file crashed ExifTool more than
+	 * {@link ExifTool#MAX_RETRIES} times or the batch timed out) is split up
+	 * and each of its images is queried again on its own, so only the images
+	 * that really fail end up without values, with the failure added to
+	 * their messages.
+	 * 
+	 * @since 1.2
+	 */
+	private static class ParallelScanIterator extends ScanIterator {
+		private final ExifTool exifTool;
+		private final Query query;
+		private final int batchSize;
+		private final boolean ordered;
+		private final Set<String> extensionSet;
+		private final int maxInFlight;
 
-		if (DEBUG)
-			log("Writing %d tags to image: %s", tags.size(),
-					image.getAbsolutePath());
+		/**
+		 * Directories still to be listed, the next one first.
+		 */
+		private final LinkedList<File> directoryList = new LinkedList<File>();
 
-		long exifToolCallElapsedTime = 0;
+		/**
+		 * Canonical paths of the directories listed so far, so a symbolic
+		 * link pointing back up the tree is never followed around in circles.
+		 */
+		private final Set<String> visitedSet = new HashSet<String>();
 
-		/*
-		 * Using ExifTool in daemon mode (-stay_open True) executes different
-		 * code paths below. So establish the flag for this once and it is
-		 * reused a multitude of times later in this method to figure out where
-		 * to branch to.
+		/**
+		 * Files of the directories listed so far that have not been submitted
+		 * yet.
 		 */
-		boolean stayOpen = featureSet.contains(Feature.STAY_OPEN);
+		private final LinkedList<File> fileList = new LinkedList<File>();
 
-		// Clear process args
-		args.clear();
+		/**
+		 * Batches submitted to the pool that have not been read yet, in the
+		 * order they were submitted.
+		 */
+		private final LinkedList<FutureCommand<Map<String, TagValueMap>>> inFlightList = new LinkedList<FutureCommand<Map<String, TagValueMap>>>();
 
-		if (stayOpen) {
-			log("\tUsing ExifTool in daemon mode (-stay_open True)...");
+		/**
+		 * Batches that have completed, in the order they completed; only used
+		 * for unordered scans.
+		 */
+		private final BlockingQueue<FutureCommand<Map<String, TagValueMap>>> completedQueue = new LinkedBlockingQueue<FutureCommand<Map<String, TagValueMap>>>();
 
-			// Always reset the cleanup task.
-			resetCleanupTask();
+		private Iterator<Entry<String, TagValueMap>> batchIterator;
+		private boolean closed;
 
-			/*
-			 * If this is our first time calling getImageMeta with a stayOpen
-			 * connection, set up the persistent process and run it so it is
-			 * ready to receive commands from us.
-			 */
-			if (streams == null) {
-				log("\tStarting daemon ExifTool process and creating read/write streams (this only happens once)...");
+		public ParallelScanIterator(ExifTool exifTool, File root, Query query,
+				int batchSize, boolean ordered, String... extensions) {
+			this.exifTool = exifTool;
+			this.query = query;
+			this.batchSize = batchSize;
+			this.ordered = ordered;
+			this.extensionSet = new HashSet<String>(extensions.length * 2);
 
-				args.add(EXIF_TOOL_PATH);
-				args.add("-stay_open");
-				args.add("True");
-				args.add("-@");
-				args.add("-");
+			for (String extension : extensions)
+				extensionSet.add(extension.toLowerCase());
 
-				// Begin the persistent ExifTool process.
-				streams = startExifToolProcess(args);
-			}
+			DaemonPool pool = exifTool.pool;
 
-			log("\tStreaming arguments to ExifTool process...");
+			// Enough batches to have one executing and one written ahead on
+			// every process, waiting in its pipeline or the pool's queue.
+			maxInFlight = pool.maxSize * (pool.pipelineDepth + 1);
 
-			if (format == Format.NUMERIC)
-				streams.writer.write("-n\n"); // numeric output
+			directoryList.add(root.getAbsoluteFile());
+		}
+
+		@Override
+		public boolean hasNext() throws RuntimeException {
+			if (next != null)
+				return true;
+			if (closed)
+				return false;
+
+			try {
+				while (batchIterator == null || !batchIterator.hasNext()) {
+					fill();
 
-			streams.writer.write("-S\n"); // compact output
+					if (inFlightList.isEmpty()) {
+						close();
+						return false;
+					}
 
-                        for ( Entry<Tag,String> entry :tags.entrySet() ) {
-				streams.writer.write('-');
-				streams.writer.write(entry.getKey().name);
-				streams.writer.write("='");
-				streams.writer.write(entry.getValue());
-				streams.writer.write("'\n");
+					batchIterator = takeBatch().entrySet().iterator();
+				}
+			} catch (RuntimeException e) {
+				close();
+				throw e;
 			}
 
-			streams.writer.write(image.getAbsolutePath());
-			streams.writer.write("\n");
+			Entry<String, TagValueMap> entry = batchIterator.next();
+			next = new ScanResult(new File(entry.getKey()), entry.getValue());
+			return true;
+		}
 
-			log("\tExecuting ExifTool...");
+		@Override
+		public void close() {
+			if (closed)
+				return;
 
-			// Begin tracking the duration ExifTool takes to respond.
-			exifToolCallElapsedTime = System.currentTimeMillis();
+			closed = true;
 
-			// Run ExifTool on our file with all the given arguments.
-			streams.writer.write("-execute\n");
-			streams.writer.flush();
-		} else {
-			log("\tUsing ExifTool in non-daemon mode (-stay_open False)...");
+			log("\tClosing parallel ExifTool scan, cancelling %d queued batches...",
+					inFlightList.size());
 
-			/*
-			 * Since we are not using a stayOpen process, we need to setup the
-			 * execution arguments completely each time.
-			 */
-			args.add(EXIF_TOOL_PATH);
+			// Batches that are already running complete on their own.
+			for (int i = 0, size = inFlightList.size(); i < size; i++)
+				inFlightList.get(i).cancel(false);
 
-			if (format == Format.NUMERIC)
-				args.add("-n"); // numeric output
+			inFlightList.clear();
+			completedQueue.clear();
+			directoryList.clear();
+			fileList.clear();
+		}
 
-			args.add("-S"); // compact output
+		/**
+		 * Used to walk the tree and submit batches until
+		 * <code>maxInFlight</code> batches are in flight or the whole tree
+		 * has been submitted.
+		 */
+		private void fill() {
+			while (inFlightList.size() < maxInFlight) {
+				List<String> pathList = new ArrayList<String>(batchSize);
 
-			for ( Entry<Tag,String> entry :tags.entrySet() )
-				args.add("-" + entry.getKey().name + "='" + entry.getValue() + "'" );
+				while (pathList.size() < batchSize && nextFile())
+					pathList.add(fileList.removeFirst().getPath());
 
-			args.add(image.getAbsolutePath());
+				if (pathList.isEmpty())
+					return;
 
-			// Run the ExifTool with our args.
-			streams = startExifToolProcess(args);
+				inFlightList.addLast(submit(pathList));
+			}
+		}
 
-			// Begin tracking the duration ExifTool takes to respond.
-			exifToolCallElapsedTime = System.currentTimeMillis();
+		/**
+		 * Used to list directories, depth first and in name order, until the
+		 * next file to scan is at the front of the file list.
+		 * 
+		 * @return <code>false</code> if the whole tree has been walked.
+		 */
+		private boolean nextFile() {
+			while (fileList.isEmpty()) {
+				if (directoryList.isEmpty())
+					return false;
+
+				File directory = directoryList.removeFirst();
+
+				try {
+					if (!visitedSet.add(directory.getCanonicalPath()))
+						continue;
+				} catch (IOException e) {
+					continue;
+				}
+
+				File[] children = directory.listFiles();
+
+				// Not a directory (anymore) or not readable.
+				if (children == null)
+					continue;
+
+				Arrays.sort(children);
+
+				int index = 0;
+
+				for (File child : children) {
+					String name = child.getName();
+
+					// Skip hidden files and directories (e.g. .git).
+					if (name.startsWith("."))
+						continue;
+
+					if (child.isDirectory())
+						directoryList.add(index++, child);
+					else if (isScanned(name))
+						fileList.add(child);
+				}
+			}
+
+			return true;
 		}
 
-		log("\tReading response back from ExifTool...");
+		private boolean isScanned(String name) {
+			if (extensionSet.isEmpty())
+				return true;
 
-		String line = null;
+			int index = name.lastIndexOf('.');
 
-		while ((line = streams.reader.readLine()) != null) {
-			/*
-			 * When using a persistent ExifTool process, it terminates its
-			 * output to us with a "{ready}" clause on a new line, we need to
-			 * look for it and break from this loop when we see it otherwise
-			 * this process will hang indefinitely blocking on the input stream
-			 * with no data to read.
-			 */
-			if (stayOpen && line.equals("{ready}"))
-				break;
+			return (index != -1 && extensionSet.contains(name.substring(
+					index + 1).toLowerCase()));
 		}
 
-		// Print out how long the call to external ExifTool process took.
-		log("\tFinished reading ExifTool response in %d ms.",
-				(System.currentTimeMillis() - exifToolCallElapsedTime));
+		private FutureCommand<Map<String, TagValueMap>> submit(
+				List<String> pathList) {
+			Map<String, TagValueMap> pathResultMap = new LinkedHashMap<String, TagValueMap>(
+					pathList.size() * 2);
+
+			for (int i = 0, size = pathList.size(); i < size; i++)
+				pathResultMap.put(pathList.get(i), new TagValueMap());
+
+			FutureCommand<Map<String, TagValueMap>> command = new FutureCommand<Map<String, TagValueMap>>(
+					exifTool.pool, exifTool.getArgBlock(query),
+					buildPathArgs(pathResultMap.keySet()),
+					exifTool.createBatchResponseHandler(pathResultMap),
+					exifTool.createMetrics(false, pathResultMap.size(),
+							query.tags.length * pathResultMap.size(),
+							pathResultMap.values()), pathResultMap, null) {
+				@Override
+				protected void done(IOException failure) {
+					if (!ordered)
+						completedQueue.add(this);
+				}
+			};
 
-		/*
-		 * If we are not using a persistent ExifTool process, then after running
-		 * the command above, the process exited in which case we need to clean
-		 * our streams up since it no longer exists. If we were using a
-		 * persistent ExifTool process, leave the streams open for future calls.
+			exifTool.pool.submitAsync(command, query.timeout);
+			return command;
+		}
+
+		/**
+		 * Used to wait for the next batch, the oldest one for an ordered scan
+		 * or the first one to complete otherwise.
+		 * 
+		 * @return the result maps of the batch.
 		 */
-		if (!stayOpen)
-			streams.close();
+		private Map<String, TagValueMap> takeBatch() throws RuntimeException {
+			FutureCommand<Map<String, TagValueMap>> command = null;
 
-		if (DEBUG)
-			log("\tImage Meta Processed in %d ms [write %d tags]",
-					(System.currentTimeMillis() - startTime), tags.size());
-	}
+			try {
+				if (ordered)
+					command = inFlightList.getFirst();
+				else
+					command = completedQueue.take();
+
+				inFlightList.remove(command);
+				return command.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(
+						"Interrupted while waiting for the results of the scan.",
+						e);
+			} catch (ExecutionException e) {
+				return retry(command, e.getCause());
+			}
+		}
 
-	/**
-	 * Helper method used to make canceling the current task and scheduling a
-	 * new one easier.
-	 * <p/>
-	 * It is annoying that we cannot just reset the timer on the task, but that
-	 * isn't the way the java.util.Timer class was designed unfortunately.
-	 */
-	private void resetCleanupTask() {
-		// no-op if the timer was never created.
-		if (cleanupTimer == null)
-			return;
+		/**
+		 * Used to query the images of the given failed batch again, one image
+		 * per command, in front of the batches still in flight. An image that
+		 * fails on its own is returned without values and with the failure
+		 * added to its messages.
+		 */
+		private Map<String, TagValueMap> retry(
+				FutureCommand<Map<String, TagValueMap>> command,
+				Throwable failure) {
+			Map<String, TagValueMap> pathResultMap = command.result;
+
+			if (pathResultMap.size() == 1) {
+				TagValueMap resultMap = pathResultMap.values().iterator()
+						.next();
+
+				resultMap.clear();
+				resultMap.addMessage("Error: " + failure.getMessage());
+				return pathResultMap;
+			}
 
-		log("\tResetting cleanup task...");
+			log("\tExifTool scan batch of %d images failed, querying them one at a time: %s",
+					pathResultMap.size(), failure);
 
-		// Cancel the current cleanup task if necessary.
-		if (currentCleanupTask != null)
-			currentCleanupTask.cancel();
+			List<String> pathList = new ArrayList<String>(
+					pathResultMap.keySet());
 
-		// Schedule a new cleanup task.
-		cleanupTimer.schedule(
-				(currentCleanupTask = new CleanupTimerTask(this)),
-				PROCESS_CLEANUP_DELAY, PROCESS_CLEANUP_DELAY);
+			for (int i = pathList.size() - 1; i >= 0; i--)
+				inFlightList.addFirst(submit(Collections.singletonList(pathList
+						.get(i))));
+
+			return Collections.emptyMap();
+		}
 
-		log("\t\tSuccessful");
+		@Override
+		public String toString() {
+			return "ParallelScanIterator [closed=" + closed + ", inFlight="
+					+ inFlightList.size() + ", ordered=" + ordered + "]";
+		}
 	}
 
 	/**
-	 * Class used to represent the {@link TimerTask} used by the internal auto
-	 * cleanup {@link Timer} to call {@link ExifTool#close()} after a specified
-	 * interval of inactivity.
+	 * Class used to define an exception that occurs when a call to ExifTool
+	 * does not complete within its timeout (see {@link ExifTool#TIMEOUT} and
+	 * {@link Query#withTimeout(long)}).
+	 * <p/>
+	 * By the time this exception is thrown the ExifTool process running the
+	 * call has been killed, or, if the call was still waiting for a daemon
+	 * process, it has been removed from the queue and never runs.
 	 * 
-	 * @author Riyad Kalla (software@thebuzzmedia.com)
-	 * @since 1.1
+	 * @since 1.2
 	 */
-	private class CleanupTimerTask extends TimerTask {
-		private ExifTool owner;
+	public static class CommandTimeoutException extends InterruptedIOException {
+		private static final long serialVersionUID = 4417785390129627812L;
 
-		public CleanupTimerTask(ExifTool owner) throws IllegalArgumentException {
-			if (owner == null)
-				throw new IllegalArgumentException(
-						"owner cannot be null and must refer to the ExifTool instance creating this task.");
+		private final long timeout;
 
-			this.owner = owner;
+		public CommandTimeoutException(long timeout) {
+			super("ExifTool call timed out after " + timeout
+					+ " ms. Consider raising the timeout of the call or the 'exiftool.timeout' system property.");
+
+			this.timeout = timeout;
 		}
 
-		@Override
-		public void run() {
-			log("\tAuto cleanup task running...");
-			owner.close();
+		/**
+		 * @return the timeout, in milliseconds, that expired.
+		 */
+		public long getTimeout() {
+			return timeout;
 		}
 	}
 
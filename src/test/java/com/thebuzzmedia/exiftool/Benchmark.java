@@ -1,69 +1,436 @@
-package com.thebuzzmedia.exiftool;
-
-import java.io.File;
-import java.io.IOException;
-
-import com.thebuzzmedia.exiftool.ExifTool.Feature;
-import com.thebuzzmedia.exiftool.ExifTool.Tag;
-
-public class Benchmark {
-	public static final int ITERS = 25;
-	public static final Tag[] TAGS = Tag.values();
-	public static final File[] IMAGES = new File("src/test/resources")
-			.listFiles();
-
-	public static void main(String[] args) throws IOException,
-			InterruptedException {
-//		System.setProperty("exiftool.path", "D:\\Tools\\exiftool.exe");
-//		System.setProperty("exiftool.debug", "false");
-
-		System.out.println("Benchmark [tags=" + TAGS.length + ", images="
-				+ IMAGES.length + ", iterations=" + ITERS + "]");
-		System.out.println("\t" + (IMAGES.length * ITERS)
-				+ " ExifTool process calls, "
-				+ (TAGS.length * IMAGES.length * ITERS)
-				+ " total operations.\n");
-
-		ExifTool tool = new ExifTool();
-		ExifTool toolSO = new ExifTool(Feature.STAY_OPEN);
-
-		/*
-		 * -stay_open False
-		 */
-		System.out.println("\t[-stay_open False]");
-		long elapsedTime = 0;
-
-		for (int i = 0; i < ITERS; i++)
-			elapsedTime += run(tool, IMAGES);
-
-		System.out.println("\t\tElapsed Time: " + elapsedTime + " ms ("
-				+ ((double) elapsedTime / 1000) + " secs)");
-
-		/*
-		 * -stay_open True
-		 */
-		System.out.println("\t[-stay_open True]");
-		long elapsedTimeSO = 0;
-
-		for (int i = 0; i < ITERS; i++) {
-			elapsedTimeSO += run(toolSO, IMAGES);
-		}
-
-		System.out.println("\t\tElapsed Time: " + elapsedTimeSO + " ms ("
-				+ ((double) elapsedTimeSO / 1000) + " secs - "
-				+ ((float) elapsedTime / (float) elapsedTimeSO) + "x faster)");
-
-		// Shut down the running exiftool proc.
-		toolSO.close();
-	}
-
-	private static long run(ExifTool tool, File[] images)
-			throws IllegalArgumentException, SecurityException, IOException {
-		long startTime = System.currentTimeMillis();
-
-		for (int i = 0; i < images.length; i++)
-			tool.getImageMeta(images[i], TAGS);
-
-		return (System.currentTimeMillis() - startTime);
-	}
-}
\ No newline at end of file
+package com.thebuzzmedia.exiftool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.Format;
+import com.thebuzzmedia.exiftool.ExifTool.Query;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Benchmark suite for {@link ExifTool}.
+ * <p/>
+ * Every scenario is run in its own, freshly forked, JVM so JIT state and
+ * daemon processes from one scenario never affect another. Each scenario runs
+ * a number of warmup iterations whose results are discarded followed by a
+ * number of measured iterations; the latency of every single operation is
+ * recorded and reported as throughput and latency percentiles.
+ * <p/>
+ * Usage:
+ *
+ * <pre>
+ * java com.thebuzzmedia.exiftool.Benchmark [scenario...]
+ * </pre>
+ *
+ * Runs all scenarios when none are given. The <code>parse</code> and
+ * <code>parse-json</code> scenarios parse generated ExifTool output and do
+ * not need ExifTool to be installed. The following system properties tune a
+ * run:
+ * <ul>
+ * <li><code>benchmark.warmup</code> - warmup iterations (default 5).</li>
+ * <li><code>benchmark.iterations</code> - measured iterations (default 25).</li>
+ * <li><code>benchmark.maxThreads</code> - largest pool/thread count of the
+ * <code>pool</code> scenario (default: the number of CPUs).</li>
+ * <li><code>benchmark.fork</code> - <code>false</code> to run all scenarios
+ * in the current JVM (default <code>true</code>).</li>
+ * </ul>
+ * The usual <code>exiftool.*</code> system properties are passed on to the
+ * forked JVMs.
+ */
+public class Benchmark {
+	public static final int WARMUP_ITERS = Integer.getInteger(
+			"benchmark.warmup", 5);
+	public static final int ITERS = Integer.getInteger("benchmark.iterations",
+			25);
+	public static final int MAX_THREADS = Integer.getInteger(
+			"benchmark.maxThreads", Runtime.getRuntime().availableProcessors());
+	public static final boolean FORK = Boolean.valueOf(System.getProperty(
+			"benchmark.fork", "true"));
+
+	public static final Tag[] TAGS = Tag.values();
+	public static final File[] IMAGES = new File("src/test/resources")
+			.listFiles(new FileFilter() {
+				public boolean accept(File file) {
+					String name = file.getName().toLowerCase();
+					return file.isFile()
+							&& (name.endsWith(".jpg") || name.endsWith(".jpeg"));
+				}
+			});
+
+	public static final String[] SCENARIOS = { "parse", "parse-json",
+			"single", "single-daemon", "batch", "batch-daemon", "write-daemon",
+			"pool" };
+
+	public static void main(String[] args) throws Exception {
+//		System.setProperty("exiftool.path", "D:\\Tools\\exiftool.exe");
+//		System.setProperty("exiftool.debug", "false");
+
+		List<String> scenarios = Arrays.asList(args.length == 0 ? SCENARIOS
+				: args);
+
+		System.out.println("Benchmark [tags=" + TAGS.length + ", images="
+				+ IMAGES.length + ", warmup=" + WARMUP_ITERS
+				+ ", iterations=" + ITERS + "]");
+
+		for (String scenario : scenarios) {
+			if (FORK && args.length != 1)
+				fork(scenario);
+			else
+				run(scenario);
+		}
+	}
+
+	/**
+	 * Runs the given scenario in a new JVM, using the same class path and
+	 * benchmark/ExifTool system properties as this one.
+	 */
+	private static void fork(String scenario) throws IOException,
+			InterruptedException {
+		List<String> command = new ArrayList<String>();
+
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+
+		for (Map.Entry<Object, Object> property : System.getProperties()
+				.entrySet()) {
+			String name = property.getKey().toString();
+
+			if (name.startsWith("benchmark.") || name.startsWith("exiftool."))
+				command.add("-D" + name + "=" + property.getValue());
+		}
+
+		command.add(Benchmark.class.getName());
+		command.add(scenario);
+
+		Process process = new ProcessBuilder(command).redirectErrorStream(
+				true).start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		String line;
+
+		// Skip the header line the forked JVM prints.
+		reader.readLine();
+
+		while ((line = reader.readLine()) != null)
+			System.out.println(line);
+
+		if (process.waitFor() != 0)
+			System.out.println("\t[" + scenario + "] FAILED (exit code "
+					+ process.exitValue() + ")");
+	}
+
+	private static void run(String scenario) throws Exception {
+		if ("parse".equals(scenario))
+			runParse(scenario, false);
+		else if ("parse-json".equals(scenario))
+			runParse(scenario, true);
+		else if ("single".equals(scenario))
+			runSingle(scenario, new ExifTool());
+		else if ("single-daemon".equals(scenario))
+			runSingle(scenario, new ExifTool(Feature.STAY_OPEN));
+		else if ("batch".equals(scenario))
+			runBatch(scenario, new ExifTool());
+		else if ("batch-daemon".equals(scenario))
+			runBatch(scenario, new ExifTool(Feature.STAY_OPEN));
+		else if ("write-daemon".equals(scenario))
+			runWrite(scenario, new ExifTool(Feature.STAY_OPEN));
+		else if ("pool".equals(scenario)) {
+			for (int threads = 1; threads <= MAX_THREADS; threads *= 2)
+				runPool(scenario, threads);
+		} else
+			throw new IllegalArgumentException("Unknown scenario [" + scenario
+					+ "], must be one of: " + Arrays.asList(SCENARIOS));
+	}
+
+	/**
+	 * Parses generated output describing every image and tag, without
+	 * running ExifTool.
+	 */
+	private static void runParse(String scenario, final boolean json)
+			throws Exception {
+		final byte[] output = generateOutput(json);
+		final List<String> paths = new ArrayList<String>();
+
+		for (int i = 0; i < IMAGES.length; i++)
+			paths.add(IMAGES[i].getAbsolutePath());
+
+		measure(scenario + " [" + output.length + " bytes]", IMAGES.length,
+				new Callable<Object>() {
+					public Object call() throws Exception {
+						Map<String, TagValueMap> pathResultMap = new LinkedHashMap<String, TagValueMap>();
+
+						for (String path : paths)
+							pathResultMap.put(path, new TagValueMap());
+
+						ExifTool.parseImageMeta(new ByteArrayInputStream(
+								output), json, pathResultMap);
+						return pathResultMap;
+					}
+				});
+	}
+
+	private static void runSingle(String scenario, final ExifTool tool)
+			throws Exception {
+		final Query query = new Query(TAGS);
+
+		try {
+			measure(scenario, IMAGES.length, new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = 0; i < IMAGES.length; i++)
+						tool.getImageMeta(IMAGES[i], query);
+
+					return null;
+				}
+			});
+		} finally {
+			tool.close();
+		}
+	}
+
+	private static void runBatch(String scenario, final ExifTool tool)
+			throws Exception {
+		final Query query = new Query(TAGS);
+		final List<File> images = Arrays.asList(IMAGES);
+
+		try {
+			measure(scenario, IMAGES.length, new Callable<Object>() {
+				public Object call() throws Exception {
+					return tool.getImageMeta(images, query);
+				}
+			});
+		} finally {
+			tool.close();
+		}
+	}
+
+	/**
+	 * Writes a tag to copies of the images, so the originals are untouched.
+	 */
+	private static void runWrite(String scenario, final ExifTool tool)
+			throws Exception {
+		final File[] copies = copyImages();
+		final Map<Tag, String> tags = Collections.singletonMap(Tag.ARTIST,
+				"Benchmark");
+
+		try {
+			measure(scenario, copies.length, new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = 0; i < copies.length; i++)
+						tool.setImageMeta(copies[i], tags);
+
+					return null;
+				}
+			});
+		} finally {
+			tool.close();
+
+			// Including the backups and the values written by FakeExifTool.
+			for (int i = 0; i < copies.length; i++) {
+				copies[i].delete();
+				new File(copies[i].getPath() + "_original").delete();
+				new File(copies[i].getPath() + ".tags").delete();
+			}
+		}
+	}
+
+	/**
+	 * Queries every image from the given number of threads at the same time,
+	 * using a pool of as many daemon processes.
+	 */
+	private static void runPool(String scenario, final int threads)
+			throws Exception {
+		final ExifTool tool = new ExifTool(threads, threads,
+				Feature.STAY_OPEN);
+		final Query query = new Query(TAGS);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			measure(scenario + " [threads=" + threads + "]", threads
+					* IMAGES.length, new Callable<Object>() {
+				public Object call() throws Exception {
+					List<Future<Object>> futureList = new ArrayList<Future<Object>>();
+
+					for (int t = 0; t < threads; t++) {
+						futureList.add(executor.submit(new Callable<Object>() {
+							public Object call() throws Exception {
+								for (int i = 0; i < IMAGES.length; i++)
+									tool.getImageMeta(IMAGES[i], query);
+
+								return null;
+							}
+						}));
+					}
+
+					for (Future<Object> future : futureList)
+						future.get();
+
+					return null;
+				}
+			});
+		} finally {
+			executor.shutdown();
+			tool.close();
+		}
+	}
+
+	/**
+	 * Runs the given operation for the warmup and measured iterations and
+	 * prints the results of the measured ones.
+	 *
+	 * @param name
+	 *            The name the results are printed under.
+	 * @param imagesPerOp
+	 *            The number of images a single run of the operation
+	 *            processes, used to report the per-image throughput.
+	 * @param op
+	 *            The operation to measure.
+	 */
+	private static void measure(String name, int imagesPerOp, Callable<?> op)
+			throws Exception {
+		Object blackhole = null;
+
+		for (int i = 0; i < WARMUP_ITERS; i++)
+			blackhole = op.call();
+
+		long[] latencies = new long[ITERS];
+		long totalTime = System.nanoTime();
+
+		for (int i = 0; i < ITERS; i++) {
+			long startTime = System.nanoTime();
+			blackhole = op.call();
+			latencies[i] = System.nanoTime() - startTime;
+		}
+
+		totalTime = System.nanoTime() - totalTime;
+		Arrays.sort(latencies);
+
+		System.out.println("\t[" + name + "]");
+		System.out.printf(
+				"\t\tThroughput: %.1f ops/s (%.1f images/s)%n",
+				ITERS / (totalTime / 1e9), ITERS * imagesPerOp
+						/ (totalTime / 1e9));
+		System.out.printf(
+				"\t\tLatency (ms/op): p50=%.3f p90=%.3f p99=%.3f max=%.3f%n",
+				percentile(latencies, 50), percentile(latencies, 90),
+				percentile(latencies, 99), latencies[latencies.length - 1] / 1e6);
+
+		// Keep the results reachable so the work cannot be optimized away.
+		if (blackhole != null && blackhole.hashCode() == System.nanoTime())
+			System.out.println();
+	}
+
+	/**
+	 * @return the given percentile of the sorted latencies, in milliseconds.
+	 */
+	private static double percentile(long[] sortedLatencies, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0
+				* sortedLatencies.length) - 1;
+
+		return sortedLatencies[Math.max(0, index)] / 1e6;
+	}
+
+	/**
+	 * @return output in the format ExifTool prints for a query of all
+	 *         {@link #TAGS} from all {@link #IMAGES}.
+	 */
+	private static byte[] generateOutput(boolean json) throws IOException {
+		StringBuilder output = new StringBuilder(IMAGES.length * TAGS.length
+				* 32);
+
+		if (json)
+			output.append("[");
+
+		for (int i = 0; i < IMAGES.length; i++) {
+			String path = IMAGES[i].getAbsolutePath();
+
+			if (json)
+				output.append(i == 0 ? "{\n" : ",\n{\n")
+						.append("  \"SourceFile\": \"")
+						.append(path.replace("\\", "\\\\")).append('"');
+			else
+				output.append("======== ").append(path).append('\n');
+
+			for (int j = 0; j < TAGS.length; j++) {
+				String value = generateValue(TAGS[j], i);
+
+				if (json)
+					output.append(",\n  \"").append(TAGS[j].getName())
+							.append("\": \"").append(value).append('"');
+				else
+					output.append(TAGS[j].getName()).append(": ")
+							.append(value).append('\n');
+			}
+
+			if (json)
+				output.append("\n}");
+		}
+
+		if (json)
+			output.append("]\n");
+
+		return output.toString().getBytes("UTF-8");
+	}
+
+	private static String generateValue(Tag tag, int image) {
+		Class<?> type = tag.getType();
+
+		if (Integer.class.equals(type))
+			return Integer.toString(100 + image);
+		else if (Double.class.equals(type))
+			return Double.toString(2.8 + image / 10.0);
+		else
+			return "Value of " + tag.getName() + " in image " + image;
+	}
+
+	/**
+	 * @return copies of all the {@link #IMAGES} in a temporary directory.
+	 */
+	private static File[] copyImages() throws IOException {
+		File[] copies = new File[IMAGES.length];
+		byte[] buffer = new byte[8192];
+
+		for (int i = 0; i < IMAGES.length; i++) {
+			String name = IMAGES[i].getName();
+
+			copies[i] = File.createTempFile("benchmark-",
+					name.substring(name.lastIndexOf('.')));
+
+			InputStream in = new FileInputStream(IMAGES[i]);
+			OutputStream out = new FileOutputStream(copies[i]);
+
+			try {
+				int read;
+
+				while ((read = in.read(buffer)) != -1)
+					out.write(buffer, 0, read);
+			} finally {
+				in.close();
+				out.close();
+			}
+		}
+
+		return copies;
+	}
+}
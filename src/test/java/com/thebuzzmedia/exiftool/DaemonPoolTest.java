@@ -0,0 +1,204 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.awaitExit;
+import static com.thebuzzmedia.exiftool.TestRunner.createCrashMarker;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+import static com.thebuzzmedia.exiftool.TestRunner.createMarker;
+import static com.thebuzzmedia.exiftool.TestRunner.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Tests of the daemon process pool: matching pipelined responses and
+ * messages to their commands, retrying the commands of processes that crashed and the lifecycle
+ * of the processes and their threads. Run with
+ * <code>-Dexiftool.pipelineDepth</code> greater than 1.
+ *
+ * @since 1.2
+ */
+public class DaemonPoolTest {
+	public static void testPipelinedResponsesMatchCommands() throws Exception {
+		assertTrue("exiftool.pipelineDepth must be > 1",
+				ExifTool.PIPELINE_DEPTH > 1);
+
+		File[] images = createImages("pipelined", 200);
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		try {
+			List<Future<TagValueMap>> futureList = new ArrayList<Future<TagValueMap>>();
+
+			// One process, so every command is pipelined behind another.
+			for (File image : images)
+				futureList.add(tool.getImageMetaAsync(image, Tag.MAKE));
+
+			for (int i = 0; i < images.length; i++)
+				assertEquals("value of " + images[i].getName(), "Make of "
+						+ images[i].getName(), futureList.get(i).get()
+						.get(Tag.MAKE));
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testPipelinedMessagesMatchCommands() throws Exception {
+		File[] images = createImages("warned", 500);
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		try {
+			List<Future<TagValueMap>> futureList = new ArrayList<Future<TagValueMap>>();
+
+			// Every command prints a message while the next one is pipelined.
+			for (File image : images)
+				createMarker(image, "warn");
+
+			for (File image : images)
+				futureList.add(tool.getImageMetaAsync(image, Tag.MAKE));
+
+			for (int i = 0; i < images.length; i++) {
+				List<String> expected = Collections
+						.singletonList("Warning: Simulated warning - "
+								+ images[i].getAbsolutePath());
+				List<String> messages = futureList.get(i).get().getMessages();
+
+				/*
+				 * Without markers the messages of a command that completed
+				 * while the next one was already written are dropped, but
+				 * they must never end up with another command.
+				 */
+				if (ExifTool.isEchoSupported())
+					assertEquals("messages of " + images[i].getName(),
+							expected, messages);
+				else
+					assertTrue("messages of " + images[i].getName() + ": "
+							+ messages, expected.containsAll(messages));
+			}
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testWriterThreadsExitWhenProcessesDie()
+			throws Exception {
+		File[] images = createImages("writer", 20);
+		// Only watch the processes of this test.
+		List<Thread> otherList = getWriterThreads();
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		try {
+			Set<Thread> writerSet = new LinkedHashSet<Thread>();
+
+			/*
+			 * Whether the writer or the pool gets to the shutdown command
+			 * first is a race, so crash enough processes to lose it.
+			 */
+			for (File image : images) {
+				writerSet.addAll(getWriterThreads());
+				writerSet.removeAll(otherList);
+
+				// Crashes the process once, the retry succeeds.
+				createMarker(image, "crash");
+				assertEquals("value after retry", "Make of " + image.getName(),
+						tool.getImageMeta(image, Tag.MAKE).get(Tag.MAKE));
+			}
+
+			assertEquals("dead processes", images.length,
+					tool.getProcessFailureCount());
+
+			for (Thread writer : writerSet)
+				assertTrue(writer.getName()
+						+ " of a dead process is still running: "
+						+ Arrays.toString(writer.getStackTrace()),
+						awaitExit(writer, 5000));
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testCommandsRetriedAfterCrash() throws Exception {
+		assertEquals("exiftool.maxRetries", 1, ExifTool.MAX_RETRIES);
+
+		File[] images = createImages("retried", 40);
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		try {
+			List<Future<TagValueMap>> futureList = new ArrayList<Future<TagValueMap>>();
+
+			// Crashes on its first run and its retry.
+			createCrashMarker(images[10], 2);
+			// Crashes on its first run only.
+			createCrashMarker(images[20], 1);
+
+			for (File image : images)
+				futureList.add(tool.getImageMetaAsync(image, Tag.MAKE));
+
+			for (int i = 0; i < images.length; i++) {
+				if (i == 10) {
+					try {
+						futureList.get(i).get();
+						fail("call that crashed every retry succeeded");
+					} catch (ExecutionException e) {
+						assertTrue("failure of call that crashed every retry",
+								e.getCause() instanceof IOException);
+					}
+				} else
+					/*
+					 * Including the calls that were pipelined behind the
+					 * crashed ones, which never ran and are retried without
+					 * counting against them.
+					 */
+					assertEquals("value of " + images[i].getName(), "Make of "
+							+ images[i].getName(), futureList.get(i).get()
+							.get(Tag.MAKE));
+			}
+
+			assertEquals("dead processes", 3, tool.getProcessFailureCount());
+
+			// A call that crashes every time fails synchronous calls too.
+			createCrashMarker(images[0], 2);
+
+			try {
+				tool.getImageMeta(images[0], Tag.MAKE);
+				fail("call that crashed every retry succeeded");
+			} catch (IOException e) {
+				// expected
+			}
+
+			assertEquals("value after failure", "Make of "
+					+ images[1].getName(),
+					tool.getImageMeta(images[1], Tag.MAKE).get(Tag.MAKE));
+		} finally {
+			tool.close();
+		}
+	}
+
+	/**
+	 * @return the writer threads of all running daemon processes.
+	 */
+	static List<Thread> getWriterThreads() {
+		List<Thread> writerList = new ArrayList<Thread>();
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive()
+					&& thread.getName().startsWith(
+							ExifTool.DAEMON_THREAD_NAME + " Writer"))
+				writerList.add(thread);
+		}
+
+		return writerList;
+	}
+}
@@ -0,0 +1,635 @@
+package com.thebuzzmedia.exiftool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+
+/**
+ * Stand-in for the <code>exiftool</code> executable, used to test and
+ * benchmark {@link ExifTool} reproducibly without Perl or ExifTool installed
+ * and without their startup and processing times skewing the results.
+ * <p/>
+ * The fake speaks the parts of the ExifTool command line protocol
+ * {@link ExifTool} uses: <code>-ver</code>, arguments read from stdin with
+ * <code>-@ -</code>, <code>-stay_open True</code> with numbered
+ * <code>-executeNNN</code>/<code>{readyNNN}</code> markers,
+ * <code>-echo2</code>, recursive scans (<code>-r</code>, <code>-ext</code>),
+ * compact (<code>-S</code>) and JSON (<code>-j</code>) output of the
+ * requested tags and writes of <code>-TAG=VALUE</code>
+ * arguments, optionally to a copy of the image (<code>-o</code>).
+ * <p/>
+ * Images are never modified: the values written to an image are stored in
+ * <code>&lt;image&gt;.tags</code> next to it, in compact output format, and
+ * take precedence over the other values of the image when it is read. Writes
+ * without <code>-overwrite_original</code> or
+ * <code>-overwrite_original_in_place</code> leave an empty
+ * <code>&lt;image&gt;_original</code> backup; writes with one of them record
+ * it in <code>&lt;image&gt;.overwrite</code>.
+ * <p/>
+ * The output replayed for an image is read from
+ * <code>$FAKE_EXIFTOOL_OUTPUT/&lt;image name&gt;.txt</code> when that file
+ * exists, e.g. the captured output of a real <code>exiftool -S image</code>
+ * run, and otherwise generated deterministically from the image name for
+ * every {@link Tag}. Missing images are reported on stderr like ExifTool
+ * does.
+ * <p/>
+ * Failures are simulated with marker files next to an image: when
+ * <code>&lt;image&gt;.crash</code> exists, the fake exits without responding
+ * as soon as it reaches the image, as many times as the number the marker
+ * contains (once if it is empty) after which it deletes the marker, and when
+ * <code>&lt;image&gt;.hang</code> exists, it blocks until it is killed. When
+ * <code>&lt;image&gt;.warn</code> exists, it prints a warning about the
+ * image to stderr. When <code>&lt;image&gt;.linger</code> exists, the fake
+ * closes its output once it is done but keeps running until it is killed.
+ * When <code>&lt;image&gt;.missing</code> exists, the image is reported as
+ * not found when it is read, as if it was deleted after it was handed to
+ * ExifTool. When <code>&lt;image&gt;.json</code> exists, its contents are
+ * printed verbatim as the members of the image's object in JSON output,
+ * instead of the requested tags, to replay values as ExifTool escapes them.
+ * <p/>
+ * <code>src/test/bin/exiftool</code> launches this class, set the
+ * <code>exiftool.path</code> system property to it to use the fake (the
+ * <code>benchmark-fake</code> Ant target does exactly that). The fake is
+ * configured with the following environment variables, which are inherited
+ * from the JVM running {@link ExifTool}:
+ * <ul>
+ * <li><code>FAKE_EXIFTOOL_VERSION</code> - the version printed for
+ * <code>-ver</code> (default 9.02).</li>
+ * <li><code>FAKE_EXIFTOOL_STARTUP_DELAY</code> - milliseconds to sleep on
+ * startup, to emulate loading Perl and ExifTool (default 0).</li>
+ * <li><code>FAKE_EXIFTOOL_LATENCY</code> - milliseconds to sleep for every
+ * command executed (default 0).</li>
+ * <li><code>FAKE_EXIFTOOL_FILE_LATENCY</code> - milliseconds to sleep for
+ * every file a command reads or writes (default 0).</li>
+ * <li><code>FAKE_EXIFTOOL_OUTPUT</code> - the directory of canned output
+ * files (default none).</li>
+ * </ul>
+ *
+ * @since 1.2
+ */
+public class FakeExifTool {
+	public static final String VERSION = getEnv("FAKE_EXIFTOOL_VERSION",
+			"9.02");
+	public static final long STARTUP_DELAY = getEnv(
+			"FAKE_EXIFTOOL_STARTUP_DELAY", 0);
+	public static final long LATENCY = getEnv("FAKE_EXIFTOOL_LATENCY", 0);
+	public static final long FILE_LATENCY = getEnv(
+			"FAKE_EXIFTOOL_FILE_LATENCY", 0);
+	public static final String OUTPUT_DIR = getEnv("FAKE_EXIFTOOL_OUTPUT",
+			null);
+
+	private static final Map<String, Map<String, String>> IMAGE_TAGS_CACHE = new HashMap<String, Map<String, String>>();
+
+	// Set when an image has a .linger marker.
+	private static boolean lingering;
+
+	public static void main(String[] args) throws Exception {
+		sleep(STARTUP_DELAY);
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(System.out, "UTF-8")));
+		List<String> argList = new ArrayList<String>();
+		boolean stayOpen = false;
+		boolean readStdin = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if ("-stay_open".equals(args[i]) && i + 1 < args.length)
+				stayOpen = isTrue(args[++i]);
+			else if ("-@".equals(args[i]) && i + 1 < args.length
+					&& "-".equals(args[++i]))
+				readStdin = true;
+			else
+				argList.add(args[i]);
+		}
+
+		if (readStdin) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					System.in, "UTF-8"));
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				if (stayOpen && line.startsWith("-execute")) {
+					execute(argList, out);
+					argList.clear();
+
+					out.print("{ready" + line.substring(8) + "}\n");
+					out.flush();
+				} else if (stayOpen && "-stay_open".equals(line)) {
+					line = in.readLine();
+
+					if (line == null || !isTrue(line))
+						break;
+				} else
+					argList.add(line);
+			}
+
+			// Without -stay_open the arguments are only run at EOF.
+			if (!stayOpen)
+				execute(argList, out);
+		} else
+			execute(argList, out);
+
+		out.flush();
+
+		if (lingering) {
+			out.close();
+
+			while (true)
+				sleep(1000);
+		}
+	}
+
+	/**
+	 * Runs a single command, writing its output to the given writer.
+	 */
+	private static void execute(List<String> args, PrintWriter out)
+			throws IOException {
+		List<String> tagNames = new ArrayList<String>();
+		List<String> paths = new ArrayList<String>();
+		List<String> extensions = new ArrayList<String>();
+		Map<String, String> writeTags = new LinkedHashMap<String, String>();
+		String destination = null;
+		String overwrite = null;
+		boolean json = false;
+		boolean recursive = false;
+
+		for (int i = 0, size = args.size(); i < size; i++) {
+			String arg = args.get(i);
+
+			if ("-ver".equals(arg)) {
+				out.print(VERSION + "\n");
+				return;
+			} else if ("-echo2".equals(arg) && i + 1 < size)
+				System.err.println(args.get(++i));
+			else if ("-j".equals(arg))
+				json = true;
+			else if ("-r".equals(arg))
+				recursive = true;
+			else if ("-ext".equals(arg) && i + 1 < size)
+				extensions.add(args.get(++i).toLowerCase());
+			else if ("-o".equals(arg) && i + 1 < size)
+				destination = args.get(++i);
+			else if ("-overwrite_original".equals(arg)
+					|| "-overwrite_original_in_place".equals(arg))
+				overwrite = arg;
+			else if (arg.startsWith("-") && arg.indexOf('=') != -1)
+				writeTags.put(arg.substring(1, arg.indexOf('=')),
+						arg.substring(arg.indexOf('=') + 1));
+			else if (arg.startsWith("-") && arg.length() > 1)
+				tagNames.add(arg.substring(1));
+			else if (arg.length() > 0)
+				paths.add(arg);
+		}
+
+		sleep(LATENCY);
+
+		if (recursive)
+			paths = listFiles(paths, extensions);
+
+		if (!writeTags.isEmpty())
+			executeWrite(paths, writeTags, destination, overwrite, out);
+		else if (json)
+			executeJsonRead(paths, tagNames, out);
+		else
+			executeRead(paths, tagNames, out);
+	}
+
+	private static void executeRead(List<String> paths, List<String> tagNames,
+			PrintWriter out) throws IOException {
+		for (String path : paths) {
+			Map<String, String> imageTags = getImageTags(path);
+
+			if (imageTags == null)
+				continue;
+
+			if (paths.size() > 1)
+				out.print("======== " + path + "\n");
+
+			for (Entry<String, String> entry : selectTags(imageTags, tagNames)
+					.entrySet())
+				out.print(entry.getKey() + ": " + entry.getValue() + "\n");
+		}
+	}
+
+	private static void executeJsonRead(List<String> paths,
+			List<String> tagNames, PrintWriter out) throws IOException {
+		boolean first = true;
+
+		for (String path : paths) {
+			Map<String, String> imageTags = getImageTags(path);
+
+			if (imageTags == null)
+				continue;
+
+			out.print(first ? "[{\n" : ",\n{\n");
+			out.print("  \"SourceFile\": " + quote(path));
+			first = false;
+
+			File members = new File(path + ".json");
+
+			if (members.isFile()) {
+				out.print(",\n" + readFile(members).trim());
+				out.print("\n}");
+				continue;
+			}
+
+			for (Entry<String, String> entry : selectTags(imageTags, tagNames)
+					.entrySet()) {
+				String value = entry.getValue();
+
+				out.print(",\n  \"" + entry.getKey() + "\": "
+						+ (isNumber(value) ? value : quote(value)));
+			}
+
+			out.print("\n}");
+		}
+
+		if (!first)
+			out.print("]\n");
+	}
+
+	private static void executeWrite(List<String> paths,
+			Map<String, String> writeTags, String destination,
+			String overwrite, PrintWriter out) throws IOException {
+		int updated = 0;
+
+		for (String path : paths) {
+			sleep(FILE_LATENCY);
+			simulateFailure(path);
+
+			if (!new File(path).isFile()) {
+				System.err.println("Error: File not found - " + path);
+				continue;
+			}
+
+			Map<String, String> imageTags;
+
+			if (destination == null) {
+				imageTags = readImageTags(getWrittenTagsFile(path));
+				imageTags.putAll(writeTags);
+				writeImageTags(getWrittenTagsFile(path), imageTags);
+				replaceImage(path, overwrite);
+			} else if (new File(destination).exists()) {
+				System.err.println("Error: '" + destination
+						+ "' already exists - " + path);
+				continue;
+			} else {
+				// The copy has all the values of the image.
+				imageTags = new LinkedHashMap<String, String>(
+						getImageTags(path));
+				imageTags.putAll(writeTags);
+				new File(destination).createNewFile();
+				writeImageTags(getWrittenTagsFile(destination), imageTags);
+			}
+
+			updated++;
+		}
+
+		out.print("    " + updated + " image files "
+				+ (destination == null ? "updated" : "created") + "\n");
+
+		if (updated < paths.size())
+			out.print("    " + (paths.size() - updated)
+					+ " files weren't updated due to errors\n");
+	}
+
+	/**
+	 * Used to record how the given image was replaced after a write: like
+	 * ExifTool, a backup of the original is kept, unless one already exists,
+	 * when no overwrite option was given. Otherwise the option is stored in
+	 * <code>&lt;image&gt;.overwrite</code>.
+	 */
+	private static void replaceImage(String path, String overwrite)
+			throws IOException {
+		if (overwrite == null) {
+			new File(path + "_original").createNewFile();
+			return;
+		}
+
+		PrintWriter writer = new PrintWriter(path + ".overwrite", "UTF-8");
+
+		try {
+			writer.print(overwrite);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the given paths with every directory replaced by the files in
+	 *         it and its subdirectories that have one of the given extensions
+	 *         (any extension if there are none), like <code>-r</code> and
+	 *         <code>-ext</code> do.
+	 */
+	private static List<String> listFiles(List<String> paths,
+			List<String> extensions) {
+		List<String> fileList = new ArrayList<String>();
+
+		for (String path : paths) {
+			File[] files = new File(path).listFiles();
+
+			if (files == null) {
+				fileList.add(path);
+				continue;
+			}
+
+			Arrays.sort(files);
+
+			List<String> childList = new ArrayList<String>();
+
+			for (File file : files) {
+				String name = file.getName().toLowerCase();
+
+				if (file.isDirectory()
+						|| extensions.isEmpty()
+						|| extensions.contains(name.substring(name
+								.lastIndexOf('.') + 1)))
+					childList.add(file.getPath());
+			}
+
+			fileList.addAll(listFiles(childList, extensions));
+		}
+
+		return fileList;
+	}
+
+	/**
+	 * @return the tags and values of the given image, or <code>null</code> if
+	 *         it does not exist.
+	 */
+	private static Map<String, String> getImageTags(String path)
+			throws IOException {
+		sleep(FILE_LATENCY);
+		simulateFailure(path);
+
+		File image = new File(path);
+
+		if (!image.isFile() || new File(path + ".missing").exists()) {
+			System.err.println("Error: File not found - " + path);
+			return null;
+		}
+
+		Map<String, String> imageTags = IMAGE_TAGS_CACHE.get(path);
+
+		if (imageTags == null) {
+			File output = (OUTPUT_DIR == null ? null : new File(OUTPUT_DIR,
+					image.getName() + ".txt"));
+
+			imageTags = (output != null && output.isFile() ? readImageTags(output)
+					: generateImageTags(image));
+			IMAGE_TAGS_CACHE.put(path, imageTags);
+		}
+
+		// Not cached, another process may write to the image.
+		File writtenTags = getWrittenTagsFile(path);
+
+		if (writtenTags.isFile()) {
+			imageTags = new LinkedHashMap<String, String>(imageTags);
+			imageTags.putAll(readImageTags(writtenTags));
+		}
+
+		return imageTags;
+	}
+
+	/**
+	 * @return the file the values written to the given image are stored in.
+	 */
+	private static File getWrittenTagsFile(String path) {
+		return new File(path + ".tags");
+	}
+
+	/**
+	 * Used to crash, hang, warn about or linger after the given image if there
+	 * is a marker file telling the fake to.
+	 */
+	private static void simulateFailure(String path) throws IOException {
+		File crashMarker = new File(path + ".crash");
+
+		if (crashMarker.isFile()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(crashMarker), "UTF-8"));
+			String count;
+
+			try {
+				count = reader.readLine();
+			} finally {
+				reader.close();
+			}
+
+			int remaining = (count == null || count.trim().length() == 0 ? 1
+					: Integer.parseInt(count.trim()));
+
+			if (remaining > 1) {
+				PrintWriter writer = new PrintWriter(crashMarker, "UTF-8");
+
+				try {
+					writer.print(remaining - 1);
+				} finally {
+					writer.close();
+				}
+			} else
+				crashMarker.delete();
+
+			Runtime.getRuntime().halt(1);
+		}
+
+		if (new File(path + ".warn").exists())
+			System.err.println("Warning: Simulated warning - " + path);
+
+		if (new File(path + ".linger").exists())
+			lingering = true;
+
+		if (new File(path + ".hang").exists()) {
+			while (true)
+				sleep(1000);
+		}
+	}
+
+	/**
+	 * @return the tags and values in the given compact (<code>-S</code>)
+	 *         output, which are none if the file does not exist.
+	 */
+	private static Map<String, String> readImageTags(File output)
+			throws IOException {
+		Map<String, String> imageTags = new LinkedHashMap<String, String>();
+
+		if (!output.isFile())
+			return imageTags;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(output), "UTF-8"));
+
+		try {
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				int index = line.indexOf(": ");
+
+				if (index > 0)
+					imageTags.put(line.substring(0, index),
+							line.substring(index + 2));
+			}
+		} finally {
+			reader.close();
+		}
+
+		return imageTags;
+	}
+
+	/**
+	 * @return the contents of the given UTF-8 file.
+	 */
+	private static String readFile(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file),
+				"UTF-8");
+		StringBuilder contents = new StringBuilder();
+
+		try {
+			char[] buffer = new char[4096];
+
+			for (int read; (read = reader.read(buffer)) != -1;)
+				contents.append(buffer, 0, read);
+		} finally {
+			reader.close();
+		}
+
+		return contents.toString();
+	}
+
+	/**
+	 * Used to write the given tags and values to the given file in compact
+	 * (<code>-S</code>) output format.
+	 */
+	private static void writeImageTags(File output,
+			Map<String, String> imageTags) throws IOException {
+		PrintWriter writer = new PrintWriter(output, "UTF-8");
+
+		try {
+			for (Entry<String, String> entry : imageTags.entrySet())
+				writer.print(entry.getKey() + ": " + entry.getValue() + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return a value for every {@link Tag}, derived from the image name so
+	 *         every run produces the same output.
+	 */
+	private static Map<String, String> generateImageTags(File image) {
+		Map<String, String> imageTags = new LinkedHashMap<String, String>();
+		int seed = image.getName().hashCode() & 0x7FFFFFFF;
+
+		for (Tag tag : Tag.values()) {
+			Class<?> type = tag.getType();
+			String value;
+
+			if (Integer.class.equals(type))
+				value = Integer.toString(seed % 4000 + tag.ordinal());
+			else if (Double.class.equals(type))
+				value = Double.toString((seed % 1000 + tag.ordinal()) / 100.0);
+			else
+				value = tag.getName() + " of " + image.getName();
+
+			imageTags.put(tag.getName(), value);
+		}
+
+		return imageTags;
+	}
+
+	/**
+	 * @return the requested tags of the image, or all of them if none were
+	 *         requested.
+	 */
+	private static Map<String, String> selectTags(
+			Map<String, String> imageTags, List<String> tagNames) {
+		if (tagNames.isEmpty())
+			return imageTags;
+
+		Map<String, String> selected = new LinkedHashMap<String, String>();
+
+		for (String name : tagNames) {
+			String value = imageTags.get(name);
+
+			if (value != null)
+				selected.put(name, value);
+		}
+
+		return selected;
+	}
+
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2);
+
+		quoted.append('"');
+
+		for (int i = 0, length = value.length(); i < length; i++) {
+			char c = value.charAt(i);
+
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c == '\n')
+				quoted.append("\\n");
+			else if (c == '\r')
+				quoted.append("\\r");
+			else if (c == '\t')
+				quoted.append("\\t");
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+
+		return quoted.append('"').toString();
+	}
+
+	private static boolean isNumber(String value) {
+		try {
+			Double.parseDouble(value);
+			return !value.endsWith(".") && !value.startsWith(".")
+					&& Character.isDigit(value.charAt(value.length() - 1));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static boolean isTrue(String value) {
+		return "1".equals(value) || "true".equalsIgnoreCase(value);
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String getEnv(String name, String defaultValue) {
+		String value = System.getenv(name);
+		return (value == null || value.length() == 0 ? defaultValue : value);
+	}
+
+	private static long getEnv(String name, long defaultValue) {
+		String value = getEnv(name, null);
+		return (value == null ? defaultValue : Long.parseLong(value));
+	}
+}
@@ -0,0 +1,190 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.Query;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Tests of reading tag values from ExifTool's JSON output
+ * ({@link Feature#JSON}), with and without daemon processes. The JSON
+ * members of every image are replayed by {@link FakeExifTool} from a
+ * <code>.json</code> file next to it.
+ *
+ * @since 1.2
+ */
+public class JsonTest {
+	public static void testEscapedValues() throws Exception {
+		File image = createImages("escaped", 1)[0];
+
+		createMembers(image, "  \"Copyright\": \"Say \\\"cheese\\\" \\\\ \\/\",\n"
+				+ "  \"Artist\": \"\\u00c9l\\u00e8ve \\u2013 \u00fcber\",\n"
+				+ "  \"XPComment\": \"Line 1\\nLine 2\\tTabbed\\r\\n\"");
+
+		for (ExifTool tool : createTools()) {
+			try {
+				TagValueMap valueMap = tool.getImageMeta(image, new Query(
+						Tag.COPYRIGHT, Tag.ARTIST, Tag.COMMENT));
+
+				assertEquals("escaped quotes", "Say \"cheese\" \\ /",
+						valueMap.get(Tag.COPYRIGHT));
+				assertEquals("unicode escapes", "\u00c9l\u00e8ve \u2013 \u00fcber",
+						valueMap.get(Tag.ARTIST));
+				assertEquals("line breaks", "Line 1\nLine 2\tTabbed\r\n",
+						valueMap.get(Tag.COMMENT));
+			} finally {
+				tool.close();
+			}
+		}
+	}
+
+	public static void testListValues() throws Exception {
+		File image = createImages("listed", 1)[0];
+
+		createMembers(image, "  \"Keywords\": [\"one\",\"two, three\",\"[four]\",5],\n"
+				+ "  \"XPKeywords\": [\n    \"multi\",\n    \"line\"\n  ],\n"
+				+ "  \"Make\": \"After the lists\"");
+
+		for (ExifTool tool : createTools()) {
+			try {
+				TagValueMap valueMap = tool.getImageMeta(image, new Query(
+						Tag.IPTC_KEYWORDS, Tag.KEYWORDS, Tag.MAKE));
+
+				assertEquals("list", "one, two, three, [four], 5",
+						valueMap.get(Tag.IPTC_KEYWORDS));
+				assertEquals("list over several lines", "multi, line",
+						valueMap.get(Tag.KEYWORDS));
+				assertEquals("value after the lists", "After the lists",
+						valueMap.get(Tag.MAKE));
+			} finally {
+				tool.close();
+			}
+		}
+	}
+
+	public static void testValuesContainingColons() throws Exception {
+		File image = createImages("colons", 1)[0];
+
+		createMembers(image, "  \"Make\": \"Brand: Model\",\n"
+				+ "  \"Model\": \"\\\": \\\"quoted\\\": \",\n"
+				+ "  \"Copyright\": \"{\\\"Artist\\\": \\\"Not a tag\\\"}\"");
+
+		for (ExifTool tool : createTools()) {
+			try {
+				TagValueMap valueMap = tool.getImageMeta(image, new Query(
+						Tag.MAKE, Tag.MODEL, Tag.COPYRIGHT, Tag.ARTIST));
+
+				assertEquals("value with a colon", "Brand: Model",
+						valueMap.get(Tag.MAKE));
+				assertEquals("value with quoted colons", "\": \"quoted\": ",
+						valueMap.get(Tag.MODEL));
+				assertEquals("value looking like an object",
+						"{\"Artist\": \"Not a tag\"}",
+						valueMap.get(Tag.COPYRIGHT));
+				assertEquals("tags found", 3, valueMap.size());
+			} finally {
+				tool.close();
+			}
+		}
+	}
+
+	public static void testNumericLiterals() throws Exception {
+		File image = createImages("numeric", 1)[0];
+
+		createMembers(image, "  \"ISO\": 200,\n"
+				+ "  \"GPSLongitude\": -122.4194,\n"
+				+ "  \"ShutterSpeedValue\": 1.5e-3,\n"
+				+ "  \"Rating\":0");
+
+		for (ExifTool tool : createTools()) {
+			try {
+				TagValueMap valueMap = tool.getImageMeta(image, new Query(
+						Tag.ISO, Tag.GPS_LONGITUDE, Tag.SHUTTER_SPEED,
+						Tag.RATING));
+
+				assertEquals("integer", "200", valueMap.get(Tag.ISO));
+				assertEquals("parsed integer", 200, valueMap.getInt(Tag.ISO));
+				assertEquals("negative number", "-122.4194",
+						valueMap.get(Tag.GPS_LONGITUDE));
+				assertEquals("parsed negative number", -122.4194,
+						valueMap.getDouble(Tag.GPS_LONGITUDE));
+				assertEquals("exponent", "1.5e-3",
+						valueMap.get(Tag.SHUTTER_SPEED));
+				assertEquals("parsed exponent", 0.0015,
+						valueMap.getDouble(Tag.SHUTTER_SPEED));
+				assertEquals("number without a space", "0",
+						valueMap.get(Tag.RATING));
+			} finally {
+				tool.close();
+			}
+		}
+	}
+
+	public static void testImagesSplitOnSourceFile() throws Exception {
+		File[] images = createImages("split", 3);
+
+		createMembers(images[0], "  \"Make\": \"First\",\n"
+				+ "  \"Model\": \"Only in the first\"");
+		createMembers(images[1], "  \"Make\": \"Second\"");
+		createMembers(images[2], "  \"Make\": \"Third\",\n"
+				+ "  \"Keywords\": [\"a\",\"b\"]");
+
+		for (ExifTool tool : createTools()) {
+			try {
+				Map<File, TagValueMap> fileResultMap = tool.getImageMeta(
+						Arrays.asList(images), new Query(Tag.MAKE, Tag.MODEL,
+								Tag.IPTC_KEYWORDS));
+
+				assertEquals("images", 3, fileResultMap.size());
+				assertEquals("values of the first image", 2, fileResultMap
+						.get(images[0]).size());
+				assertEquals("first image", "Only in the first", fileResultMap
+						.get(images[0]).get(Tag.MODEL));
+				assertEquals("second image", "Second",
+						fileResultMap.get(images[1]).get(Tag.MAKE));
+				assertTrue("values of the second image: "
+						+ fileResultMap.get(images[1]), fileResultMap.get(
+						images[1]).size() == 1);
+				assertEquals("third image", "a, b", fileResultMap
+						.get(images[2]).get(Tag.IPTC_KEYWORDS));
+				assertEquals("third image", "Third",
+						fileResultMap.get(images[2]).get(Tag.MAKE));
+			} finally {
+				tool.close();
+			}
+		}
+	}
+
+	private static ExifTool[] createTools() {
+		return new ExifTool[] { new ExifTool(Feature.JSON),
+				new ExifTool(1, 1, Feature.STAY_OPEN, Feature.JSON) };
+	}
+
+	/**
+	 * Used to create the file {@link FakeExifTool} prints the given JSON
+	 * members of the given image from.
+	 */
+	private static void createMembers(File image, String members)
+			throws IOException {
+		File file = new File(image.getPath() + ".json");
+		PrintWriter writer = new PrintWriter(file, "UTF-8");
+
+		try {
+			writer.print(members);
+		} finally {
+			writer.close();
+		}
+
+		file.deleteOnExit();
+	}
+}
@@ -0,0 +1,207 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.MetadataCache;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+
+/**
+ * Tests of the persistent store backing a {@link MetadataCache} recovering
+ * from damaged records and compacting its log.
+ *
+ * @since 1.2
+ */
+public class MetadataStoreTest {
+	public static void testDamagedRecordDropped() throws Exception {
+		File[] images = createImages("damaged", 10);
+		File store = createStoreFile(images[0].getParentFile());
+
+		// Fills the new store.
+		assertCached(store, images, images.length);
+
+		// Flip a bit in the record of one image, after its name.
+		RandomAccessFile file = new RandomAccessFile(store, "rw");
+
+		try {
+			long offset = indexOf(store, images[3].getCanonicalPath())
+					+ images[3].getCanonicalPath().length() + 2;
+
+			file.seek(offset);
+			int value = file.read();
+			file.seek(offset);
+			file.write(value ^ 0x01);
+		} finally {
+			file.close();
+		}
+
+		assertCached(store, images, 1);
+
+		// The values queried again replace the damaged record.
+		assertCached(store, images, 0);
+	}
+
+	public static void testTruncatedLogRecovered() throws Exception {
+		File[] images = createImages("truncated", 10);
+		File store = createStoreFile(images[0].getParentFile());
+
+		// Fills the new store.
+		assertCached(store, images, images.length);
+
+		/*
+		 * As if the JVM died while appending the last record. The index now
+		 * points past the end of the log, so it is rebuilt from the log.
+		 */
+		RandomAccessFile file = new RandomAccessFile(store, "rw");
+
+		try {
+			file.setLength(file.length() - 3);
+		} finally {
+			file.close();
+		}
+
+		assertCached(store, images, 1);
+
+		// Records appended after recovery are found after a restart.
+		assertCached(store, images, 0);
+	}
+
+	public static void testLogCompacted() throws Exception {
+		File[] images = createImages("compacted", 10);
+		File store = createStoreFile(images[0].getParentFile());
+		MetadataCache cache = new MetadataCache(100, false, store);
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+		long roundLength = 0;
+
+		tool.setMetadataCache(cache);
+
+		try {
+			// Every round replaces the record of every image.
+			for (int round = 0; round < 30; round++) {
+				for (File image : images) {
+					cache.invalidate(image);
+					tool.getImageMeta(image, Tag.values());
+				}
+
+				if (round == 0)
+					roundLength = store.length();
+			}
+
+			assertTrue("first round wrote " + roundLength + " bytes",
+					roundLength > 10000);
+			assertTrue("log of " + store.length() + " bytes not compacted",
+					store.length() < 3 * roundLength);
+		} finally {
+			tool.close();
+			cache.close();
+		}
+
+		assertTrue("compacted log left behind",
+				!new File(store.getPath() + ".compact").exists());
+
+		// The index points at the records in the compacted log.
+		assertCached(store, images, 0);
+	}
+
+	public static void testLogCompactedOnOpen() throws Exception {
+		File[] images = createImages("uncompacted", 10);
+		File store = createStoreFile(images[0].getParentFile());
+
+		// Fills the new store.
+		assertCached(store, images, images.length);
+
+		long length = store.length();
+		byte[] records = readFile(store);
+
+		/*
+		 * As if the same records were written over and over by a version that
+		 * never compacted the log, the index of which is ignored.
+		 */
+		RandomAccessFile file = new RandomAccessFile(store, "rw");
+
+		try {
+			// Long enough to be compacted.
+			while (file.length() < 64 * 1024) {
+				file.seek(file.length());
+				file.write(records, 8, records.length - 8);
+			}
+		} finally {
+			file.close();
+		}
+
+		new File(store.getPath() + ".index").delete();
+		assertCached(store, images, 0);
+		assertEquals("length of the compacted log", length, store.length());
+	}
+
+	/**
+	 * Used to query the given images through a cache backed by the given
+	 * store, which is closed again afterwards, and check the number of images
+	 * that were not found in the store. Every image is queried once, so the
+	 * cache only holds what it read from the store.
+	 */
+	private static void assertCached(File store, File[] images, int missCount)
+			throws Exception {
+		MetadataCache cache = new MetadataCache(100, false, store);
+		ExifTool tool = new ExifTool();
+
+		tool.setMetadataCache(cache);
+
+		try {
+			for (File image : images)
+				assertEquals("value of " + image.getName(), "Make of "
+						+ image.getName(), tool.getImageMeta(image, Tag.MAKE)
+						.get(Tag.MAKE));
+
+			assertEquals("images not found in the store", (long) missCount,
+					cache.getMissCount());
+			assertEquals("images found in the store",
+					(long) (images.length - missCount), cache.getHitCount());
+		} finally {
+			tool.close();
+			cache.close();
+		}
+	}
+
+	private static File createStoreFile(File dir) {
+		File store = new File(dir, "metadata.store");
+
+		store.deleteOnExit();
+		new File(store.getPath() + ".index").deleteOnExit();
+		new File(store.getPath() + ".compact").deleteOnExit();
+		return store;
+	}
+
+	/**
+	 * @return the offset of the first occurrence of the given ASCII text in
+	 *         the given file.
+	 */
+	private static long indexOf(File file, String text) throws IOException {
+		String contents = new String(readFile(file), "ISO-8859-1");
+		int index = contents.indexOf(text);
+
+		assertTrue(text + " not found in " + file, index != -1);
+		return index;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+
+		try {
+			for (int read = 0; read < bytes.length;)
+				read += in.read(bytes, read, bytes.length - read);
+		} finally {
+			in.close();
+		}
+
+		return bytes;
+	}
+}
@@ -0,0 +1,54 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.awaitExit;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+
+import java.io.File;
+
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+
+/**
+ * Tests of calls that start a new ExifTool process each time. Run with
+ * <code>-Dexiftool.path</code> pointing at
+ * <code>src/test/bin/exiftool-holding-stderr</code>, which leaves a
+ * background process holding the stderr of every ExifTool process open after
+ * it exits.
+ *
+ * @since 1.2
+ */
+public class NonDaemonTest {
+	public static void testCallsReturnWhileStderrIsHeldOpen() throws Exception {
+		final File[] images = createImages("held", 3);
+		final ExifTool tool = new ExifTool();
+		final String[] values = new String[images.length];
+		final Throwable[] failure = new Throwable[1];
+
+		Thread caller = new Thread("Caller") {
+			public void run() {
+				try {
+					for (int i = 0; i < images.length; i++)
+						values[i] = tool.getImageMeta(images[i], Tag.MAKE)
+								.get(Tag.MAKE);
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		};
+
+		caller.setDaemon(true);
+		caller.start();
+
+		// The stderr is held open for 30 seconds after each call.
+		assertTrue("calls still waiting for the stderr to close",
+				awaitExit(caller, 10000));
+
+		if (failure[0] != null)
+			throw new AssertionError(failure[0]);
+
+		for (int i = 0; i < images.length; i++)
+			assertEquals("value of " + images[i].getName(), "Make of "
+					+ images[i].getName(), values[i]);
+	}
+}
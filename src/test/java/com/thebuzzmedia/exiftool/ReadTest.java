@@ -0,0 +1,80 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+import static com.thebuzzmedia.exiftool.TestRunner.createMarker;
+import static com.thebuzzmedia.exiftool.TestRunner.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Tests of reading many images with a single command, with and without
+ * daemon processes.
+ *
+ * @since 1.2
+ */
+public class ReadTest {
+	public static void testManyImagesReadInOneCommand() throws Exception {
+		testManyImagesReadInOneCommand(new ExifTool());
+		testManyImagesReadInOneCommand(new ExifTool(1, 1, Feature.STAY_OPEN));
+	}
+
+	private static void testManyImagesReadInOneCommand(ExifTool tool)
+			throws Exception {
+		File[] images = createImages("many", 5);
+
+		// Deleted after it was handed to ExifTool.
+		createMarker(images[2], "missing");
+
+		try {
+			Map<File, TagValueMap> fileResultMap = tool.getImageMeta(
+					Arrays.asList(images), Tag.MAKE, Tag.MODEL);
+
+			assertEquals("images in call order", Arrays.asList(images),
+					new ArrayList<File>(fileResultMap.keySet()));
+
+			for (File image : images) {
+				TagValueMap values = fileResultMap.get(image);
+
+				if (image == images[2]) {
+					assertEquals("values of " + image.getName(), 0,
+							values.size());
+					assertEquals("messages of " + image.getName(),
+							Collections.singletonList("Error: File not found - "
+									+ image.getAbsolutePath()),
+							values.getMessages());
+				} else {
+					assertEquals("value of " + image.getName(), "Make of "
+							+ image.getName(), values.get(Tag.MAKE));
+					assertEquals("value of " + image.getName(), "Model of "
+							+ image.getName(), values.get(Tag.MODEL));
+					assertEquals("messages of " + image.getName(),
+							Collections.emptyList(), values.getMessages());
+				}
+			}
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testMissingImageRejected() throws Exception {
+		File[] images = createImages("rejected", 2);
+		ExifTool tool = new ExifTool();
+
+		try {
+			tool.getImageMeta(Arrays.asList(images[0], new File(images[0]
+					.getParentFile(), "missing.jpg"), images[1]), Tag.MAKE);
+			fail("missing image was queried");
+		} catch (SecurityException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.DaemonPoolTest.getWriterThreads;
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.MetricsListener;
+import com.thebuzzmedia.exiftool.ExifTool.RequestMetrics;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Tests of daemon processes being recycled after
+ * {@link ExifTool#MAX_PROCESS_REQUESTS} commands. Run with
+ * <code>-Dexiftool.maxProcessRequests=10</code>.
+ *
+ * @since 1.2
+ */
+public class RecycleTest {
+	public static void testProcessesRecycled() throws Exception {
+		assertEquals("exiftool.maxProcessRequests", 10,
+				ExifTool.MAX_PROCESS_REQUESTS);
+
+		File[] images = createImages("recycled", 10);
+		ProcessCounter counter = new ProcessCounter();
+		// Only watch the processes of this test.
+		List<Thread> otherList = getWriterThreads();
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		tool.setMetricsListener(counter);
+
+		try {
+			Set<Thread> writerSet = new LinkedHashSet<Thread>();
+			long deadline = System.currentTimeMillis() + 20000;
+			int callCount = 0;
+
+			// Replacements start in the background, so keep calling.
+			while (counter.getStartedCount() < 4
+					&& System.currentTimeMillis() < deadline) {
+				File image = images[callCount++ % images.length];
+
+				assertEquals("value of " + image.getName(), "Make of "
+						+ image.getName(), tool.getImageMeta(image, Tag.MAKE)
+						.get(Tag.MAKE));
+
+				writerSet.addAll(getWriterThreads());
+				writerSet.removeAll(otherList);
+			}
+
+			assertTrue("processes started: " + counter.getStartedCount(),
+					counter.getStartedCount() >= 4);
+			// A process is only replaced once it ran its share of commands.
+			assertTrue("calls made: " + callCount, callCount >= 30);
+			assertEquals("dead processes", 0, tool.getProcessFailureCount());
+			assertEquals("failed processes", 0, counter.getFailedCount());
+
+			// Only the latest process is left running.
+			deadline = System.currentTimeMillis() + 10000;
+
+			while (countAlive(writerSet) > 1
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+
+			assertEquals("writer threads running", 1, countAlive(writerSet));
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testPipelinedCallsSurviveRecycling() throws Exception {
+		File[] images = createImages("pipelined", 300);
+		ProcessCounter counter = new ProcessCounter();
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		tool.setMetricsListener(counter);
+
+		try {
+			List<Future<TagValueMap>> futureList = new ArrayList<Future<TagValueMap>>();
+
+			for (File image : images)
+				futureList.add(tool.getImageMetaAsync(image, Tag.MAKE));
+
+			// Including the calls already handed to a process being replaced.
+			for (int i = 0; i < images.length; i++)
+				assertEquals("value of " + images[i].getName(), "Make of "
+						+ images[i].getName(), futureList.get(i).get()
+						.get(Tag.MAKE));
+
+			assertTrue("processes started: " + counter.getStartedCount(),
+					counter.getStartedCount() >= 2);
+			assertEquals("dead processes", 0, tool.getProcessFailureCount());
+		} finally {
+			tool.close();
+		}
+	}
+
+	private static int countAlive(Set<Thread> threadSet) {
+		int count = 0;
+
+		for (Thread thread : threadSet) {
+			if (thread.isAlive())
+				count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Counts the daemon processes started and failed.
+	 */
+	static class ProcessCounter implements MetricsListener {
+		private int startedCount;
+		private int failedCount;
+
+		public void requestCompleted(RequestMetrics metrics) {
+			// no-op
+		}
+
+		public synchronized void processStarted(boolean daemon) {
+			if (daemon)
+				startedCount++;
+		}
+
+		public synchronized void processFailed(int retriedCount) {
+			failedCount++;
+		}
+
+		public void processesReaped(int count) {
+			// no-op
+		}
+
+		synchronized int getStartedCount() {
+			return startedCount;
+		}
+
+		synchronized int getFailedCount() {
+			return failedCount;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.awaitExit;
+import static com.thebuzzmedia.exiftool.TestRunner.createCrashMarker;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+import static com.thebuzzmedia.exiftool.TestRunner.createMarker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.Query;
+import com.thebuzzmedia.exiftool.ExifTool.ScanIterator;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Tests of recursive scans, run by a single ExifTool process or in parallel
+ * on daemon processes.
+ *
+ * @since 1.2
+ */
+public class ScanTest {
+	public static void testScanReturnsEveryImage() throws Exception {
+		File[] images = createImages("scanned", 50);
+		ExifTool tool = new ExifTool();
+
+		createMarker(images[7], "warn");
+
+		Map<String, TagValueMap> resultMap = scan(tool, images[0]
+				.getParentFile(), new Query(Tag.MAKE));
+
+		assertEquals("images scanned", images.length, resultMap.size());
+
+		for (File image : images) {
+			TagValueMap values = resultMap.get(image.getName());
+
+			assertEquals("value of " + image.getName(), "Make of "
+					+ image.getName(), values.get(Tag.MAKE));
+		}
+
+		assertEquals("messages of " + images[7].getName(),
+				Collections.singletonList("Warning: Simulated warning - "
+						+ images[7].getAbsolutePath()),
+				resultMap.get(images[7].getName()).getMessages());
+	}
+
+	public static void testScanEndsWhenExifToolDoesNotExit() throws Exception {
+		final File[] images = createImages("lingering", 5);
+		final ExifTool tool = new ExifTool();
+		final Map<String, TagValueMap> resultMap = new HashMap<String, TagValueMap>();
+		final Throwable[] failure = new Throwable[1];
+
+		// Closes its output when done, but never exits.
+		createMarker(images[2], "linger");
+
+		Thread caller = new Thread("Caller") {
+			public void run() {
+				try {
+					resultMap.putAll(scan(tool, images[0].getParentFile(),
+							new Query(Tag.MAKE).withTimeout(1000)));
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		};
+
+		caller.setDaemon(true);
+		caller.start();
+
+		assertTrue("scan still waiting for ExifTool to exit",
+				awaitExit(caller, 10000));
+
+		if (failure[0] != null)
+			throw new AssertionError(failure[0]);
+
+		assertEquals("images scanned", images.length, resultMap.size());
+	}
+
+	public static void testParallelScanReturnsEveryImageOnce()
+			throws Exception {
+		for (boolean ordered : new boolean[] { true, false }) {
+			List<File> imageList = createTree("parallel");
+			ExifTool tool = new ExifTool(1, 4, Feature.STAY_OPEN);
+
+			try {
+				List<Entry<File, TagValueMap>> resultList = scanParallel(tool,
+						imageList.get(0).getParentFile(), new Query(Tag.MAKE),
+						ordered);
+
+				assertScanned(imageList, resultList, ordered);
+
+				for (Entry<File, TagValueMap> result : resultList)
+					assertEquals("value of " + result.getKey().getName(),
+							"Make of " + result.getKey().getName(), result
+									.getValue().get(Tag.MAKE));
+			} finally {
+				tool.close();
+			}
+		}
+	}
+
+	public static void testParallelScanRetriesFailedBatches()
+			throws Exception {
+		for (boolean ordered : new boolean[] { true, false }) {
+			List<File> imageList = createTree("failing");
+			// In the middle of the second batch and of the fifth.
+			File crashed = imageList.get(4);
+			File hung = imageList.get(13);
+			ExifTool tool = new ExifTool(1, 4, Feature.STAY_OPEN);
+
+			// Crashes every time, so the retries of the pool fail too.
+			createCrashMarker(crashed, 100);
+			createMarker(hung, "hang");
+
+			try {
+				List<Entry<File, TagValueMap>> resultList = scanParallel(tool,
+						imageList.get(0).getParentFile(), new Query(Tag.MAKE)
+								.withTimeout(1000), ordered);
+
+				assertScanned(imageList, resultList, ordered);
+
+				for (Entry<File, TagValueMap> result : resultList) {
+					File image = result.getKey();
+					TagValueMap values = result.getValue();
+
+					if (image.equals(crashed) || image.equals(hung)) {
+						assertEquals("values of " + image.getName(), 0,
+								values.size());
+						assertEquals("messages of " + image.getName(), 1,
+								values.getMessages().size());
+						assertTrue("message of " + image.getName() + ": "
+								+ values.getMessages(), values.getMessages()
+								.get(0).startsWith("Error: "));
+					} else
+						// Including the others of the failed batches.
+						assertEquals("value of " + image.getName(),
+								"Make of " + image.getName(),
+								values.get(Tag.MAKE));
+				}
+			} finally {
+				tool.close();
+			}
+		}
+	}
+
+	/**
+	 * Used to check that every image of the given tree was scanned exactly
+	 * once, in walk order if the scan was ordered.
+	 */
+	private static void assertScanned(List<File> imageList,
+			List<Entry<File, TagValueMap>> resultList, boolean ordered) {
+		List<File> scannedList = new ArrayList<File>();
+
+		for (Entry<File, TagValueMap> result : resultList)
+			scannedList.add(result.getKey());
+
+		if (ordered)
+			assertEquals("images scanned in walk order", imageList,
+					scannedList);
+		else {
+			assertEquals("images scanned", imageList.size(),
+					scannedList.size());
+			assertEquals("distinct images scanned", new HashSet<File>(
+					imageList), new HashSet<File>(scannedList));
+		}
+	}
+
+	/**
+	 * @return the results of scanning the JPEG images in the given directory
+	 *         in parallel, in batches of 3 images, in the order they were
+	 *         returned.
+	 */
+	private static List<Entry<File, TagValueMap>> scanParallel(ExifTool tool,
+			File dir, Query query, boolean ordered) {
+		List<Entry<File, TagValueMap>> resultList = new ArrayList<Entry<File, TagValueMap>>();
+		ScanIterator iterator = tool.scanParallel(dir, query, 3, ordered,
+				"jpg");
+
+		try {
+			while (iterator.hasNext())
+				resultList.add(iterator.next());
+		} finally {
+			iterator.close();
+		}
+
+		return resultList;
+	}
+
+	/**
+	 * Used to create a tree of 20 images: 5 in the root directory, followed
+	 * by subdirectories "a" (with a subdirectory "c" of its own) and "b".
+	 * Hidden files and files of other types are skipped by the scan.
+	 * 
+	 * @return the images in the order the tree is walked in.
+	 */
+	private static List<File> createTree(String prefix) throws IOException {
+		List<File> imageList = new ArrayList<File>(Arrays.asList(createImages(
+				prefix, 5)));
+		File root = imageList.get(0).getParentFile();
+
+		new File(root, "." + prefix + ".jpg").createNewFile();
+		new File(root, prefix + ".txt").createNewFile();
+		new File(root, "." + prefix + ".jpg").deleteOnExit();
+		new File(root, prefix + ".txt").deleteOnExit();
+
+		File a = new File(root, "a");
+		File c = new File(a, "c");
+		File b = new File(root, "b");
+
+		imageList.addAll(createDirectory(a, prefix + "-a", 5));
+		imageList.addAll(createDirectory(c, prefix + "-c", 5));
+		imageList.addAll(createDirectory(b, prefix + "-b", 5));
+		return imageList;
+	}
+
+	private static List<File> createDirectory(File dir, String prefix,
+			int count) throws IOException {
+		if (!dir.mkdir())
+			throw new IOException("Unable to create directory: " + dir);
+
+		// Deleted after the images in it.
+		dir.deleteOnExit();
+
+		List<File> imageList = new ArrayList<File>(count);
+
+		for (int i = 0; i < count; i++) {
+			File image = new File(dir, prefix + i + ".jpg");
+
+			if (!image.createNewFile())
+				throw new IOException("Unable to create test image: " + image);
+
+			image.deleteOnExit();
+			imageList.add(image);
+		}
+
+		return imageList;
+	}
+
+	/**
+	 * @return the results of scanning the JPEG images in the given directory,
+	 *         by image name.
+	 */
+	static Map<String, TagValueMap> scan(ExifTool tool, File dir, Query query) {
+		Map<String, TagValueMap> resultMap = new HashMap<String, TagValueMap>();
+		ScanIterator iterator = tool.scan(dir, query, "jpg");
+
+		try {
+			while (iterator.hasNext()) {
+				Entry<File, TagValueMap> result = iterator.next();
+				resultMap.put(result.getKey().getName(), result.getValue());
+			}
+		} finally {
+			iterator.close();
+		}
+
+		return resultMap;
+	}
+}
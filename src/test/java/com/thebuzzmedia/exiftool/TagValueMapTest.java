@@ -0,0 +1,183 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.fail;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Tests of the numeric accessors of {@link TagValueMap} and of its cache of
+ * parsed values.
+ *
+ * @since 1.2
+ */
+public class TagValueMapTest {
+	public static void testNumericValues() throws Exception {
+		TagValueMap map = new TagValueMap();
+
+		map.put(Tag.ISO, "400");
+		map.put(Tag.APERTURE, "2.8010323841");
+		map.put(Tag.GPS_LONGITUDE, "-122.4194");
+		map.put(Tag.MAKE, "Canon");
+
+		assertEquals("int", 400, map.getInt(Tag.ISO));
+		assertEquals("int read as a double", 400.0, map.getDouble(Tag.ISO));
+		assertEquals("double", 2.8010323841, map.getDouble(Tag.APERTURE));
+		assertEquals("negative double", -122.4194,
+				map.getDouble(Tag.GPS_LONGITUDE));
+		assertEquals("int default", 7, map.getInt(Tag.RATING, 7));
+		assertEquals("double default", 1.5, map.getDouble(Tag.FOCAL_LENGTH,
+				1.5));
+		assertEquals("int with a default", 400, map.getInt(Tag.ISO, 7));
+
+		for (Tag tag : new Tag[] { Tag.MAKE, Tag.APERTURE, Tag.RATING }) {
+			try {
+				map.getInt(tag);
+				fail("int parsed from " + map.get(tag));
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+
+		for (Tag tag : new Tag[] { Tag.MAKE, Tag.RATING }) {
+			try {
+				map.getDouble(tag);
+				fail("double parsed from " + map.get(tag));
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+
+		try {
+			map.getInt(null);
+			fail("int of a null tag");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		// The accessors leave the map itself alone.
+		Map<Tag, String> expected = new HashMap<Tag, String>();
+
+		expected.put(Tag.ISO, "400");
+		expected.put(Tag.APERTURE, "2.8010323841");
+		expected.put(Tag.GPS_LONGITUDE, "-122.4194");
+		expected.put(Tag.MAKE, "Canon");
+		assertEquals("map", expected, map);
+	}
+
+	public static void testParsedValuesCached() throws Exception {
+		TagValueMap map = new TagValueMap();
+
+		map.put(Tag.ISO, "400");
+		map.put(Tag.APERTURE, "2.8");
+
+		// Nothing is allocated until a value is parsed.
+		assertTrue("ints parsed", getField(map, "intParsed") == null);
+		assertTrue("doubles parsed", getField(map, "doubleParsed") == null);
+
+		assertEquals("int", 400, map.getInt(Tag.ISO));
+		assertTrue("int cached", isParsed(map, "intParsed", Tag.ISO));
+		assertTrue("other int cached",
+				!isParsed(map, "intParsed", Tag.APERTURE));
+		assertTrue("doubles parsed", getField(map, "doubleParsed") == null);
+
+		assertEquals("cached int", 400, map.getInt(Tag.ISO));
+		assertEquals("double", 2.8, map.getDouble(Tag.APERTURE));
+		assertTrue("double cached",
+				isParsed(map, "doubleParsed", Tag.APERTURE));
+	}
+
+	public static void testCacheInvalidatedByPut() throws Exception {
+		TagValueMap map = new TagValueMap();
+
+		map.put(Tag.ISO, "400");
+		assertEquals("int", 400, map.getInt(Tag.ISO));
+		assertEquals("double", 400.0, map.getDouble(Tag.ISO));
+
+		map.put(Tag.ISO, "800");
+		assertEquals("int after put", 800, map.getInt(Tag.ISO));
+		assertEquals("double after put", 800.0, map.getDouble(Tag.ISO));
+
+		map.remove(Tag.ISO);
+		assertEquals("int after remove", -1, map.getInt(Tag.ISO, -1));
+		assertEquals("double after remove", -1.0, map.getDouble(Tag.ISO,
+				-1.0));
+	}
+
+	public static void testCacheInvalidatedBySetValue() throws Exception {
+		TagValueMap map = new TagValueMap();
+
+		map.put(Tag.ISO, "400");
+		assertEquals("int", 400, map.getInt(Tag.ISO));
+		assertEquals("double", 400.0, map.getDouble(Tag.ISO));
+
+		Entry<Tag, String> entry = map.entrySet().iterator().next();
+
+		assertEquals("previous value", "400", entry.setValue("1600"));
+		assertEquals("value after setValue", "1600", map.get(Tag.ISO));
+		assertEquals("int after setValue", 1600, map.getInt(Tag.ISO));
+		assertEquals("double after setValue", 1600.0, map.getDouble(Tag.ISO));
+	}
+
+	public static void testCacheInvalidatedByIteratorRemove()
+			throws Exception {
+		TagValueMap map = new TagValueMap();
+
+		map.put(Tag.ISO, "400");
+		map.put(Tag.APERTURE, "2.8");
+		assertEquals("int", 400, map.getInt(Tag.ISO));
+		assertEquals("double", 2.8, map.getDouble(Tag.APERTURE));
+
+		for (Iterator<Entry<Tag, String>> it = map.entrySet().iterator(); it
+				.hasNext();) {
+			if (it.next().getKey() == Tag.ISO)
+				it.remove();
+		}
+
+		assertEquals("size after remove", 1, map.size());
+		assertTrue("removed value", !map.containsKey(Tag.ISO));
+		assertEquals("int after remove", -1, map.getInt(Tag.ISO, -1));
+
+		try {
+			map.getInt(Tag.ISO);
+			fail("int of a removed value");
+		} catch (NumberFormatException e) {
+			// expected
+		}
+
+		// Values that were not removed stay cached.
+		assertTrue("double cached",
+				isParsed(map, "doubleParsed", Tag.APERTURE));
+		assertEquals("double", 2.8, map.getDouble(Tag.APERTURE));
+
+		map.clear();
+		assertEquals("double after clear", -1.0, map.getDouble(Tag.APERTURE,
+				-1.0));
+	}
+
+	/**
+	 * @return whether the value of the given tag is marked as parsed in the
+	 *         given cache flags of the map.
+	 */
+	private static boolean isParsed(TagValueMap map, String name, Tag tag)
+			throws Exception {
+		boolean[] parsed = (boolean[]) getField(map, name);
+		return (parsed != null && parsed[tag.ordinal()]);
+	}
+
+	private static Object getField(TagValueMap map, String name)
+			throws Exception {
+		Field field = TagValueMap.class.getDeclaredField(name);
+
+		field.setAccessible(true);
+		return field.get(map);
+	}
+}
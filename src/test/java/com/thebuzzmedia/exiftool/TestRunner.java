@@ -0,0 +1,157 @@
+package com.thebuzzmedia.exiftool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Minimal runner for the tests of this library, which are plain classes
+ * whose <code>public static void test*()</code> methods make {@link ExifTool}
+ * calls against {@link FakeExifTool} and throw an {@link AssertionError} (or
+ * any other exception) when they fail.
+ * <p/>
+ * {@link ExifTool} reads its configuration from system properties once, when
+ * it is loaded, so every test class is run by its own forked JVM with the
+ * properties it needs (see the <code>test</code> Ant target). The runner
+ * exits with status 1 if any test failed.
+ *
+ * @since 1.2
+ */
+public class TestRunner {
+	public static void main(String[] args) throws Exception {
+		int runCount = 0;
+		int failedCount = 0;
+
+		for (String className : args) {
+			Method[] methods = Class.forName(className).getMethods();
+
+			Arrays.sort(methods, new Comparator<Method>() {
+				public int compare(Method m1, Method m2) {
+					return m1.getName().compareTo(m2.getName());
+				}
+			});
+
+			for (Method method : methods) {
+				if (!method.getName().startsWith("test")
+						|| !Modifier.isStatic(method.getModifiers())
+						|| method.getParameterTypes().length > 0)
+					continue;
+
+				String name = className + '.' + method.getName();
+				long startTime = System.currentTimeMillis();
+
+				runCount++;
+
+				try {
+					method.invoke(null);
+					System.out.println("PASS " + name + " ("
+							+ (System.currentTimeMillis() - startTime)
+							+ " ms)");
+				} catch (InvocationTargetException e) {
+					failedCount++;
+					System.out.println("FAIL " + name);
+					e.getCause().printStackTrace(System.out);
+				}
+			}
+		}
+
+		System.out.println((runCount - failedCount) + " of " + runCount
+				+ " tests passed.");
+
+		// Daemon processes left behind by a failed test must not keep us up.
+		System.exit(failedCount == 0 ? 0 : 1);
+	}
+
+	static void assertTrue(String message, boolean condition) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	static void assertEquals(String message, Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual))
+			throw new AssertionError(message + ": expected [" + expected
+					+ "] but was [" + actual + "]");
+	}
+
+	static void fail(String message) {
+		throw new AssertionError(message);
+	}
+
+	/**
+	 * @return <code>count</code> new empty files, named
+	 *         <code>&lt;prefix&gt;&lt;index&gt;.jpg</code>, in a new temporary
+	 *         directory that is deleted when the JVM exits.
+	 *         {@link FakeExifTool} only needs the files to exist.
+	 */
+	static File[] createImages(String prefix, int count) throws IOException {
+		File dir = File.createTempFile("exiftool-test", "");
+
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create a temporary directory: "
+					+ dir);
+
+		dir.deleteOnExit();
+
+		File[] images = new File[count];
+
+		for (int i = 0; i < count; i++) {
+			images[i] = new File(dir, prefix + i + ".jpg");
+
+			if (!images[i].createNewFile())
+				throw new IOException("Unable to create test image: "
+						+ images[i]);
+
+			images[i].deleteOnExit();
+		}
+
+		return images;
+	}
+
+	/**
+	 * Used to create a marker file telling {@link FakeExifTool} to crash or
+	 * hang on the given image.
+	 */
+	static File createMarker(File image, String failure) throws IOException {
+		File marker = new File(image.getPath() + '.' + failure);
+
+		if (!marker.createNewFile())
+			throw new IOException("Unable to create marker: " + marker);
+
+		marker.deleteOnExit();
+		return marker;
+	}
+
+	/**
+	 * Used to create a marker file telling {@link FakeExifTool} to crash the
+	 * given number of times on the given image.
+	 */
+	static File createCrashMarker(File image, int count) throws IOException {
+		File marker = createMarker(image, "crash");
+		PrintWriter writer = new PrintWriter(marker, "UTF-8");
+
+		try {
+			writer.print(count);
+		} finally {
+			writer.close();
+		}
+
+		return marker;
+	}
+
+	/**
+	 * Used to wait up to <code>timeout</code> milliseconds for the given
+	 * thread to exit.
+	 *
+	 * @return <code>true</code> if the thread exited.
+	 */
+	static boolean awaitExit(Thread thread, long timeout)
+			throws InterruptedException {
+		thread.join(timeout);
+		return !thread.isAlive();
+	}
+}
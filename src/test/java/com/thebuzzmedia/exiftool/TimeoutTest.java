@@ -0,0 +1,103 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+import static com.thebuzzmedia.exiftool.TestRunner.createMarker;
+import static com.thebuzzmedia.exiftool.TestRunner.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.thebuzzmedia.exiftool.ExifTool.CommandTimeoutException;
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.Query;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.TagValueMap;
+
+/**
+ * Tests of calls timing out on an ExifTool process that hangs. Run with
+ * <code>-Dexiftool.pipelineDepth</code> greater than 1.
+ *
+ * @since 1.2
+ */
+public class TimeoutTest {
+	private static final Query QUERY = new Query(Tag.MAKE);
+
+	public static void testDaemonCallTimesOut() throws Exception {
+		testCallTimesOut(new ExifTool(1, 1, Feature.STAY_OPEN));
+	}
+
+	public static void testNonDaemonCallTimesOut() throws Exception {
+		testCallTimesOut(new ExifTool());
+	}
+
+	private static void testCallTimesOut(ExifTool tool) throws Exception {
+		File[] images = createImages("hung", 2);
+
+		createMarker(images[0], "hang");
+
+		try {
+			long startTime = System.currentTimeMillis();
+
+			try {
+				tool.getImageMeta(images[0], QUERY.withTimeout(500));
+				fail("call on a hung process completed");
+			} catch (CommandTimeoutException e) {
+				// expected
+			}
+
+			long elapsedTime = System.currentTimeMillis() - startTime;
+
+			assertTrue("timed out after " + elapsedTime + " ms",
+					elapsedTime >= 500 && elapsedTime < 5000);
+
+			// The hung process was killed, the next call gets a new one.
+			assertEquals("value after timeout", "Make of "
+					+ images[1].getName(), tool.getImageMeta(images[1], QUERY)
+					.get(Tag.MAKE));
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testPipelinedCallsRetriedAfterTimeout()
+			throws Exception {
+		assertTrue("exiftool.pipelineDepth must be > 1",
+				ExifTool.PIPELINE_DEPTH > 1);
+
+		File[] images = createImages("stuck", 20);
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		createMarker(images[0], "hang");
+
+		try {
+			List<Future<TagValueMap>> futureList = new ArrayList<Future<TagValueMap>>();
+
+			futureList.add(tool.getImageMetaAsync(images[0],
+					QUERY.withTimeout(500), null));
+
+			// Pipelined behind the hung call, without a timeout of their own.
+			for (int i = 1; i < images.length; i++)
+				futureList.add(tool.getImageMetaAsync(images[i], QUERY, null));
+
+			try {
+				futureList.get(0).get();
+				fail("call on a hung process completed");
+			} catch (ExecutionException e) {
+				assertTrue("failure of hung call: " + e.getCause(),
+						e.getCause() instanceof CommandTimeoutException);
+			}
+
+			for (int i = 1; i < images.length; i++)
+				assertEquals("value of " + images[i].getName(), "Make of "
+						+ images[i].getName(), futureList.get(i).get()
+						.get(Tag.MAKE));
+		} finally {
+			tool.close();
+		}
+	}
+}
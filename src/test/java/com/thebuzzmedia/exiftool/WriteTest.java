@@ -0,0 +1,351 @@
+package com.thebuzzmedia.exiftool;
+
+import static com.thebuzzmedia.exiftool.TestRunner.assertEquals;
+import static com.thebuzzmedia.exiftool.TestRunner.assertTrue;
+import static com.thebuzzmedia.exiftool.TestRunner.createImages;
+import static com.thebuzzmedia.exiftool.TestRunner.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thebuzzmedia.exiftool.ExifTool.Feature;
+import com.thebuzzmedia.exiftool.ExifTool.Format;
+import com.thebuzzmedia.exiftool.ExifTool.MetadataCache;
+import com.thebuzzmedia.exiftool.ExifTool.MetricsListener;
+import com.thebuzzmedia.exiftool.ExifTool.RequestMetrics;
+import com.thebuzzmedia.exiftool.ExifTool.Tag;
+import com.thebuzzmedia.exiftool.ExifTool.WriteMode;
+import com.thebuzzmedia.exiftool.ExifTool.WriteResult;
+
+/**
+ * Tests of writing tag values, with and without daemon processes.
+ *
+ * @since 1.2
+ */
+public class WriteTest {
+	public static void testBatchWritesGroupIdenticalValues() throws Exception {
+		testBatchWritesGroupIdenticalValues(new ExifTool());
+		testBatchWritesGroupIdenticalValues(new ExifTool(2, 2,
+				Feature.STAY_OPEN));
+	}
+
+	private static void testBatchWritesGroupIdenticalValues(ExifTool tool)
+			throws Exception {
+		File[] images = createImages("grouped", 250);
+		WriteCounter counter = new WriteCounter();
+		Map<File, Map<Tag, String>> imageTags = new LinkedHashMap<File, Map<Tag, String>>();
+
+		tool.setMetricsListener(counter);
+
+		// Two groups of 125 images, each written in batches of up to 100.
+		for (int i = 0; i < images.length; i++)
+			imageTags.put(images[i], Collections.singletonMap(Tag.COPYRIGHT,
+					"Copyright " + (i % 2)));
+
+		try {
+			WriteResult result = tool.setImageMeta(imageTags,
+					Format.HUMAN_READABLE);
+
+			assertEquals("updated images", images.length,
+					result.getUpdatedCount());
+			assertEquals("failed images", 0, result.getFailedCount());
+			assertEquals("images written per command",
+					Arrays.asList(25, 25, 100, 100), counter.await(4));
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testWrittenValuesReadBack() throws Exception {
+		testWrittenValuesReadBack(new ExifTool());
+		testWrittenValuesReadBack(new ExifTool(1, 1, Feature.STAY_OPEN));
+	}
+
+	private static void testWrittenValuesReadBack(ExifTool tool)
+			throws Exception {
+		File[] images = createImages("written", 3);
+		Map<Tag, String> tags = new LinkedHashMap<Tag, String>();
+
+		// Values a shell would have treated specially.
+		tags.put(Tag.COPYRIGHT, "(c) 'Quoted' \"Double\" O'Brien");
+		tags.put(Tag.ARTIST, "$HOME & -n");
+
+		try {
+			WriteResult result = tool.setImageMeta(images[0],
+					Format.HUMAN_READABLE, tags);
+
+			assertTrue("write failed: " + result, result.isSuccess());
+			assertEquals("updated images", 1, result.getUpdatedCount());
+			assertEquals("values read back", tags, readTags(tool, images[0]));
+
+			// Batch writes go through a different path.
+			result = tool.setImageMeta(Arrays.asList(images[1], images[2]),
+					Format.HUMAN_READABLE, tags);
+
+			assertEquals("updated images", 2, result.getUpdatedCount());
+
+			for (int i = 1; i < images.length; i++)
+				assertEquals("values read back", tags,
+						readTags(tool, images[i]));
+
+			File copy = new File(images[0].getParentFile(), "copy.jpg");
+			Map<Tag, String> copyTags = Collections.singletonMap(
+					Tag.COPYRIGHT, "Copy's copyright");
+
+			copy.deleteOnExit();
+			new File(copy.getPath() + ".tags").deleteOnExit();
+
+			result = tool.setImageMeta(images[0], copy, Format.HUMAN_READABLE,
+					copyTags);
+
+			assertTrue("copy failed: " + result, result.isSuccess());
+			assertEquals("value of the copy", copyTags.get(Tag.COPYRIGHT),
+					readTags(tool, copy).get(Tag.COPYRIGHT));
+			assertEquals("values of the image after the copy", tags,
+					readTags(tool, images[0]));
+
+			// ExifTool never overwrites a file with a copy.
+			copy.delete();
+			copy.createNewFile();
+
+			try {
+				tool.setImageMeta(images[0], copy, copyTags);
+				fail("copy overwrote an existing file");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testAsyncWriteInvalidatesCache() throws Exception {
+		File[] images = createImages("async", 20);
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		tool.setMetadataCache(new MetadataCache(100));
+
+		try {
+			for (File image : images) {
+				// Cached before the write, which leaves the image unchanged.
+				readTags(tool, image);
+
+				String value = "Written to " + image.getName();
+				WriteResult result = tool.setImageMetaAsync(image,
+						Format.HUMAN_READABLE, null,
+						Collections.singletonMap(Tag.COPYRIGHT, value)).get();
+
+				assertTrue("write failed: " + result, result.isSuccess());
+				assertEquals("value read right after the write", value,
+						readTags(tool, image).get(Tag.COPYRIGHT));
+			}
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testBatchWriteInvalidatesCache() throws Exception {
+		File[] images = createImages("cached", 20);
+		ExifTool tool = new ExifTool(1, 1, Feature.STAY_OPEN);
+
+		tool.setMetadataCache(new MetadataCache(100));
+
+		try {
+			for (int i = 0; i < 10; i++) {
+				List<File> imageList = Arrays.asList(images[2 * i],
+						images[2 * i + 1]);
+
+				// Cached before the write, which leaves the images unchanged.
+				for (File image : imageList)
+					readTags(tool, image);
+
+				String value = "Written in batch " + i;
+				WriteResult result = tool.setImageMeta(imageList,
+						Format.HUMAN_READABLE,
+						Collections.singletonMap(Tag.COPYRIGHT, value));
+
+				assertEquals("updated images", 2, result.getUpdatedCount());
+
+				for (File image : imageList)
+					assertEquals("value read right after the write", value,
+							readTags(tool, image).get(Tag.COPYRIGHT));
+			}
+		} finally {
+			tool.close();
+		}
+	}
+
+	public static void testWriteModeReachesExifTool() throws Exception {
+		testWriteModeReachesExifTool(new ExifTool());
+		testWriteModeReachesExifTool(new ExifTool(1, 1, Feature.STAY_OPEN));
+	}
+
+	private static void testWriteModeReachesExifTool(ExifTool tool)
+			throws Exception {
+		Map<Tag, String> tags = Collections.singletonMap(Tag.COPYRIGHT,
+				"Copyright");
+
+		try {
+			for (WriteMode mode : WriteMode.values()) {
+				File[] images = createImages(mode.name().toLowerCase(), 4);
+
+				tool.setWriteMode(mode);
+				tool.setImageMeta(images[0], tags);
+				// Batch writes go through a different path.
+				tool.setImageMeta(Arrays.asList(images[1], images[2]),
+						Format.NUMERIC, tags);
+
+				List<File> writtenList = new ArrayList<File>(Arrays.asList(
+						images[0], images[1], images[2]));
+
+				if (tool.isFeatureEnabled(Feature.STAY_OPEN)) {
+					tool.setImageMetaAsync(images[3], tags).get();
+					writtenList.add(images[3]);
+				}
+
+				for (File image : writtenList)
+					assertWriteMode(image, mode);
+			}
+		} finally {
+			tool.close();
+		}
+	}
+
+	/**
+	 * Used to check that the given image was written by FakeExifTool with the
+	 * arguments of the given write mode.
+	 */
+	private static void assertWriteMode(File image, WriteMode mode)
+			throws IOException {
+		File backup = new File(image.getPath() + "_original");
+		File overwrite = new File(image.getPath() + ".overwrite");
+
+		backup.deleteOnExit();
+		overwrite.deleteOnExit();
+		new File(image.getPath() + ".tags").deleteOnExit();
+
+		assertEquals("backup of " + image.getName() + " in mode " + mode,
+				mode == WriteMode.BACKUP, backup.exists());
+
+		if (mode == WriteMode.BACKUP)
+			assertTrue("overwrite option used in mode " + mode,
+					!overwrite.exists());
+		else {
+			BufferedReader reader = new BufferedReader(new FileReader(
+					overwrite));
+
+			try {
+				assertEquals("overwrite option of " + image.getName(),
+						mode == WriteMode.OVERWRITE ? "-overwrite_original"
+								: "-overwrite_original_in_place",
+						reader.readLine());
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	public static void testLineBreaksRejected() throws Exception {
+		File image = createImages("broken", 1)[0];
+		ExifTool tool = new ExifTool();
+
+		for (String value : new String[] { "Line\nbreak", "Line\rbreak" }) {
+			try {
+				tool.setImageMeta(image,
+						Collections.singletonMap(Tag.COPYRIGHT, value));
+				fail("value with a line break was written");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+
+		try {
+			tool.setImageMeta(
+					new File(image.getParentFile(), "line\nbreak.jpg"),
+					Collections.singletonMap(Tag.COPYRIGHT, "Copyright"));
+			fail("image with a line break in its path was written");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		try {
+			tool.setImageMeta(image, new File(image.getParentFile(),
+					"line\nbreak.jpg"), Collections.singletonMap(Tag.COPYRIGHT,
+					"Copyright"));
+			fail("copy with a line break in its path was written");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @return the values of the tags written by the tests of the given image.
+	 */
+	static Map<Tag, String> readTags(ExifTool tool, File image)
+			throws Exception {
+		// The values and backup FakeExifTool stores next to the image.
+		new File(image.getPath() + ".tags").deleteOnExit();
+		new File(image.getPath() + "_original").deleteOnExit();
+
+		Map<Tag, String> tags = new LinkedHashMap<Tag, String>(
+				tool.getImageMeta(image, Format.HUMAN_READABLE, Tag.COPYRIGHT,
+						Tag.ARTIST));
+
+		tags.keySet().retainAll(Arrays.asList(Tag.COPYRIGHT, Tag.ARTIST));
+		return tags;
+	}
+
+	/**
+	 * Records the number of images of every write command.
+	 */
+	static class WriteCounter implements MetricsListener {
+		private final List<Integer> imageCountList = new ArrayList<Integer>();
+
+		public synchronized void requestCompleted(RequestMetrics metrics) {
+			if (metrics.isWrite()) {
+				imageCountList.add(metrics.getImageCount());
+				notifyAll();
+			}
+		}
+
+		public void processStarted(boolean daemon) {
+			// no-op
+		}
+
+		public void processFailed(int retriedCount) {
+			// no-op
+		}
+
+		public void processesReaped(int count) {
+			// no-op
+		}
+
+		/**
+		 * Used to wait up to 5 seconds for the given number of write commands
+		 * to be reported, as they can be reported right after the call they
+		 * belong to returned.
+		 *
+		 * @return the sorted number of images of every write command.
+		 */
+		synchronized List<Integer> await(int count)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+
+			while (imageCountList.size() < count
+					&& System.currentTimeMillis() < deadline)
+				wait(100);
+
+			List<Integer> sortedList = new ArrayList<Integer>(imageCountList);
+			Collections.sort(sortedList);
+			return sortedList;
+		}
+	}
+}